@@ -0,0 +1,35 @@
+package com.r3.testing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each fork's share of the tests when they're shuffled rather than planned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ListShufflerAndAllocatorBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int tests;
+
+    @Param({"20"})
+    public int forks;
+
+    private ListShufflerAndAllocator allocator;
+
+    @Setup
+    public void setup() {
+        allocator = new ListShufflerAndAllocator(SyntheticTests.testNames(tests, SyntheticTests.SEED));
+    }
+
+    @Benchmark
+    public List<String> getTestsForFork() {
+        return allocator.getTestsForFork(forks / 2, forks, 42);
+    }
+}
@@ -0,0 +1,63 @@
+package com.r3.testing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Making the test plan, from discovering the tests to each fork's share of them, as the client or each pod does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PlanningBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int tests;
+
+    @Param({"20"})
+    public int forks;
+
+    @Param({"CLASS", "METHOD"})
+    public DistributeTestsBy distribution;
+
+    @Param({"GREEDY", "LOCAL_SEARCH"})
+    public AllocationStrategy strategy;
+
+    private Tests timedTests;
+    private List<String> discoveredTests;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() {
+        final List<String> testNames = SyntheticTests.testNames(tests, SyntheticTests.SEED);
+        timedTests = SyntheticTests.tests(testNames, SyntheticTests.SEED);
+        discoveredTests = distribution == DistributeTestsBy.CLASS ? SyntheticTests.classNames(testNames) : testNames;
+        // The plan summary would otherwise swamp the benchmark's own output.
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public BucketingAllocator generateTestPlan() {
+        final BucketingAllocator allocator = new BucketingAllocator(forks, () -> timedTests, strategy);
+        allocator.setDistribution(distribution);
+        allocator.addSource(() -> discoveredTests, "test");
+        allocator.generateTestPlan();
+        return allocator;
+    }
+}
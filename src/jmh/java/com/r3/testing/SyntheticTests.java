@@ -0,0 +1,145 @@
+package com.r3.testing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Made up tests for the benchmarks, from a thousand to a million or so, shaped like those of a large repo:  names
+ * spread over modules and packages with a long shared prefix, classes with a handful of methods and the odd one
+ * with hundreds, and durations that are mostly tens of milliseconds with a long tail of tests taking minutes.
+ * <p>
+ * Everything comes from a seed, so each run of a benchmark sees the same tests.
+ */
+final class SyntheticTests {
+    static final long SEED = 42L;
+
+    private static final String[] MODULES = {"core", "node", "node-api", "client", "finance", "serialization",
+            "confidential-identities", "testing", "tools", "notary", "docs", "samples", "flows", "crypto", "network"};
+    private static final String[] PACKAGES = {"services", "internal", "api", "flows", "contracts", "messaging",
+            "persistence", "vault", "identity", "transactions", "schemas", "utilities", "rpc", "amqp", "config"};
+    private static final String[] NOUNS = {"Vault", "Notary", "Flow", "Transaction", "Identity", "Network", "Message",
+            "Contract", "State", "Attachment", "Signature", "Party", "Cash", "Obligation", "Schema", "Query", "Key"};
+    private static final String[] KINDS = {"Service", "Manager", "Serializer", "Verifier", "Builder", "Handler",
+            "Storage", "Client", "Resolver", "Checker", "Cache", "Tracker"};
+    private static final String[] VERBS = {"should", "can", "does not", "must", "will"};
+    private static final String[] ACTIONS = {"accept", "reject", "record", "resolve", "sign", "verify", "serialise",
+            "query", "retry", "timeout", "notarise", "evolve", "store", "load", "upgrade"};
+    private static final String[] CONDITIONS = {"when empty", "after restart", "with two parties", "under load",
+            "for a null input", "if unchecked", "on a new version", "in a batch", "via RPC", "with no notary"};
+
+    private SyntheticTests() {
+    }
+
+    /**
+     * @return this many test names, i.e. classname.methodname, with the methods of each class together.
+     */
+    @NotNull
+    static List<String> testNames(int count, long seed) {
+        final Random random = new Random(seed);
+        final List<String> names = new ArrayList<>(count);
+        for (int classIndex = 0; names.size() < count; classIndex++) {
+            final String className = className(random, classIndex);
+            // Most classes have a few methods, some have hundreds.
+            final int methods = Math.min(1 + (int) Math.exp(1.5 + 0.9 * random.nextGaussian()), 500);
+            for (int method = 0; method < methods && names.size() < count; method++) {
+                names.add(className + "." + methodName(random, method));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the distinct classes of the given tests, in order of first appearance.
+     */
+    @NotNull
+    static List<String> classNames(@NotNull final List<String> testNames) {
+        final List<String> classNames = new ArrayList<>();
+        String previous = null;
+        for (String testName : testNames) {
+            final String className = testName.substring(0, testName.lastIndexOf('.'));
+            if (!className.equals(previous)) {
+                classNames.add(className);
+                previous = className;
+            }
+        }
+        return classNames;
+    }
+
+    /**
+     * A log-normal duration with a median of about 50ms, capped at 20 minutes.
+     */
+    static long durationNanos(@NotNull final Random random) {
+        final double millis = Math.exp(Math.log(50.0) + 1.8 * random.nextGaussian());
+        return Math.min((long) (millis * 1_000_000.0), TimeUnit.MINUTES.toNanos(20));
+    }
+
+    /**
+     * @return the tests, each having run a few times, with class setups for some of their classes.
+     */
+    @NotNull
+    static Tests tests(@NotNull final List<String> testNames, long seed) {
+        final Random random = new Random(seed);
+        final Tests tests = new Tests();
+        for (String testName : testNames) {
+            final long mean = durationNanos(random);
+            for (int run = 1 + random.nextInt(3); run > 0; run--) {
+                tests.addDuration(testName, Math.max((long) (mean * (1.0 + 0.2 * random.nextGaussian())), 0L));
+            }
+        }
+        for (String className : classNames(testNames)) {
+            if (random.nextInt(4) == 0) {
+                tests.addClassSetupDuration(className, durationNanos(random) * 10);
+            }
+        }
+        tests.addForkSetupDuration(TimeUnit.MINUTES.toNanos(2));
+        return tests;
+    }
+
+    /**
+     * @return a junit xml report of the given tests, as Gradle writes them, though with every class in one file.
+     */
+    @NotNull
+    static String junitXml(@NotNull final List<String> testNames, long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n");
+        String suite = null;
+        for (String testName : testNames) {
+            final String className = testName.substring(0, testName.lastIndexOf('.'));
+            if (!className.equals(suite)) {
+                if (suite != null) {
+                    xml.append("  </testsuite>\n");
+                }
+                suite = className;
+                xml.append("  <testsuite name=\"").append(className).append("\" hostname=\"pod\">\n");
+            }
+            xml.append("    <testcase name=\"").append(testName.substring(testName.lastIndexOf('.') + 1))
+                    .append("\" classname=\"").append(className)
+                    .append("\" time=\"").append(String.format(Locale.ROOT, "%.3f", durationNanos(random) / 1_000_000_000.0))
+                    .append("\"/>\n");
+        }
+        if (suite != null) {
+            xml.append("  </testsuite>\n");
+        }
+        return xml.append("</testsuites>\n").toString();
+    }
+
+    private static String className(@NotNull final Random random, int classIndex) {
+        return "net.corda." + pick(random, MODULES).replace("-", "") + "." + pick(random, PACKAGES) + "."
+                + pick(random, NOUNS) + pick(random, KINDS) + classIndex + "Test";
+    }
+
+    private static String methodName(@NotNull final Random random, int method) {
+        // As Kotlin names in backticks come out:  long, with spaces, and sharing prefixes.
+        return pick(random, NOUNS).toLowerCase() + " " + pick(random, VERBS) + " " + pick(random, ACTIONS) + " "
+                + pick(random, CONDITIONS) + " " + method;
+    }
+
+    private static String pick(@NotNull final Random random, @NotNull final String[] words) {
+        return words[random.nextInt(words.length)];
+    }
+}
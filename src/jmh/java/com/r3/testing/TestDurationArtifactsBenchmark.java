@@ -0,0 +1,36 @@
+package com.r3.testing;
+
+import groovy.lang.Tuple2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading test durations from junit xml, as we do for every report in the test results zip after a run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TestDurationArtifactsBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int tests;
+
+    private byte[] xml;
+
+    @Setup
+    public void setup() {
+        xml = SyntheticTests.junitXml(SyntheticTests.testNames(tests, SyntheticTests.SEED), SyntheticTests.SEED)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<Tuple2<String, Long>> fromJunitXml() {
+        return TestDurationArtifacts.fromJunitXml(new ByteArrayInputStream(xml));
+    }
+}
@@ -0,0 +1,132 @@
+package com.r3.testing;
+
+import groovy.lang.Tuple2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up the durations of tests, as the plan does for every test it discovers, and reading and writing the
+ * durations file and its binary snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TestsBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int tests;
+
+    private Tests timedTests;
+    private String[] testNames;
+    private String[] classNames;
+    private String csv;
+    private ByteBuffer snapshot;
+    private int next;
+
+    @Setup
+    public void setup() {
+        final List<String> names = SyntheticTests.testNames(tests, SyntheticTests.SEED);
+        timedTests = SyntheticTests.tests(names, SyntheticTests.SEED);
+        // Look them up in a random order, as they're discovered in a different order to how they're stored.
+        final Random random = new Random(SyntheticTests.SEED);
+        testNames = names.toArray(new String[0]);
+        classNames = SyntheticTests.classNames(names).toArray(new String[0]);
+        shuffle(testNames, random);
+        shuffle(classNames, random);
+
+        final StringWriter writer = new StringWriter();
+        timedTests.write(writer);
+        csv = writer.toString();
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            TestDurationSnapshot.write(timedTests, outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        snapshot = ByteBuffer.wrap(outputStream.toByteArray());
+    }
+
+    private static void shuffle(String[] names, Random random) {
+        for (int i = names.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final String name = names[i];
+            names[i] = names[j];
+            names[j] = name;
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<Tuple2<String, Long>> startsWithClass() {
+        next = (next + 1) % classNames.length;
+        return timedTests.startsWith(classNames[next]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<Tuple2<String, Long>> equalsTest() {
+        next = (next + 1) % testNames.length;
+        return timedTests.equals(testNames[next]);
+    }
+
+    /**
+     * What {@link #equalsTest()} replaced:  scanning every test name for the one we want.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long equalsTestByScanningNames() {
+        next = (next + 1) % testNames.length;
+        final String testName = testNames[next];
+        return Arrays.stream(testNames).filter(t -> t.equals(testName)).count();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Tuple2<String, Tests.Stats>> readCsv() {
+        return Tests.readStats(new StringReader(csv));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Tests addTestsFromCsv() {
+        final Tests loaded = new Tests();
+        loaded.addTests(new StringReader(csv));
+        return loaded;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Tests addTestsFromSnapshot() throws IOException {
+        final Tests loaded = new Tests();
+        loaded.addTests(TestDurationSnapshot.wrap(snapshot));
+        return loaded;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String writeCsv() {
+        final StringWriter writer = new StringWriter(csv.length());
+        timedTests.write(writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public byte[] writeSnapshot() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(snapshot.capacity());
+        TestDurationSnapshot.write(timedTests, outputStream);
+        return outputStream.toByteArray();
+    }
+}
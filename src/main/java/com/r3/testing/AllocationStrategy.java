@@ -0,0 +1,5 @@
+package com.r3.testing;
+
+public enum AllocationStrategy {
+    GREEDY, LOCAL_SEARCH
+}
@@ -3,8 +3,10 @@ package com.r3.testing;
 //Why Java?! because sometimes types are useful.
 
 import groovy.lang.Tuple2;
+import org.gradle.api.Task;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
@@ -12,8 +14,28 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.r3.testing.ListTests.DISTRIBUTION_PROPERTY;
+import static com.r3.testing.LocalSearchRefiner.DEFAULT_MAX_STEPS;
 
 public class BucketingAllocator {
+    public static final String ALLOCATION_STRATEGY_PROPERTY = "allocationStrategy";
+    public static final String DURATION_DEVIATIONS_PROPERTY = "durationDeviations";
+    public static final String FORK_CAPACITIES_PROPERTY = "forkCapacities";
+    public static final String PLAN_CACHE_PROPERTY = "testPlanCache";
+
+    // The order we allocate buckets in:  longest first, which is what keeps the plan balanced, but within each band of
+    // durations no more than twice as long as each other, those most likely to fail go first.  So failure prone buckets
+    // land on the least loaded forks of their band and are spread across the forks, without a short one being placed
+    // ahead of much longer ones.
+    private static final Comparator<TestBucket> LONGEST_BAND_FIRST_THEN_FAILURE_PRONE =
+            Comparator.comparingInt((TestBucket tb) -> getDurationBand(tb.getDuration())).reversed()
+                    .thenComparing(Comparator.comparingDouble((TestBucket tb) -> tb.failureRate).reversed())
+                    .thenComparing(Comparator.comparingLong(TestBucket::getDuration).reversed());
+    // The order each fork runs its own tests in, see TestsForForkContainer#freeze.  This doesn't change how long a
+    // fork takes, so those most likely to fail simply go first.
+    private static final Comparator<TestBucket> FAILURE_PRONE_THEN_LONGEST_FIRST =
+            Comparator.comparingDouble((TestBucket tb) -> tb.failureRate).reversed()
+                    .thenComparing(Comparator.comparingLong(TestBucket::getDuration).reversed());
+
     private final List<TestsForForkContainer> forkContainers;
     private final Supplier<Tests> timedTestsProvider;
     private List<Tuple2<TestLister, Object>> sources = new ArrayList<>();
@@ -21,32 +43,176 @@ public class BucketingAllocator {
     private DistributeTestsBy distribution = System.getProperty(DISTRIBUTION_PROPERTY) != null && !System.getProperty(DISTRIBUTION_PROPERTY).isEmpty() ?
             DistributeTestsBy.valueOf(System.getProperty(DISTRIBUTION_PROPERTY)) : DistributeTestsBy.METHOD;
 
+    private final AllocationStrategy strategy;
+    // What every fork pays before its first Test task starts.  The same for every fork, so it doesn't change the plan.
+    private long forkSetupNanos = 0L;
+    // Where to keep plans for reuse, or null to always make a new one.
+    private File planCacheDirectory = !System.getProperty(PLAN_CACHE_PROPERTY, "").trim().isEmpty() ?
+            new File(System.getProperty(PLAN_CACHE_PROPERTY).trim()) : null;
+    private boolean loadedFromCache = false;
+    // Which durations the timed tests provider gives us, for the plan cache's key;  null for those of this branch.
+    private String durationsTag = null;
+    // Size each test as its mean duration plus this many standard deviations.
+    private double durationDeviations = System.getProperty(DURATION_DEVIATIONS_PROPERTY) != null && !System.getProperty(DURATION_DEVIATIONS_PROPERTY).isEmpty() ?
+            Double.parseDouble(System.getProperty(DURATION_DEVIATIONS_PROPERTY)) : 0.0;
 
     public BucketingAllocator(Integer forkCount, Supplier<Tests> timedTestsProvider) {
+        this(forkCount, timedTestsProvider, System.getProperty(ALLOCATION_STRATEGY_PROPERTY) != null && !System.getProperty(ALLOCATION_STRATEGY_PROPERTY).isEmpty() ?
+                AllocationStrategy.valueOf(System.getProperty(ALLOCATION_STRATEGY_PROPERTY)) : AllocationStrategy.GREEDY);
+    }
+
+    public BucketingAllocator(Integer forkCount, Supplier<Tests> timedTestsProvider, AllocationStrategy strategy) {
         this.forkContainers = IntStream.range(0, forkCount).mapToObj(TestsForForkContainer::new).collect(Collectors.toList());
         this.timedTestsProvider = timedTestsProvider;
+        this.strategy = strategy;
+        final String capacities = System.getProperty(FORK_CAPACITIES_PROPERTY, "").trim();
+        if (!capacities.isEmpty()) {
+            setForkCapacities(Arrays.stream(capacities.split(",")).mapToDouble(c -> Double.parseDouble(c.trim())).toArray());
+        }
     }
 
     public void addSource(TestLister source, Object testTask) {
         sources.add(new Tuple2<>(source, testTask));
     }
 
+    /**
+     * Whether the tests the sources discover are methods or classes, when it isn't this build's own setting.
+     */
+    public void setDistribution(DistributeTestsBy distribution) {
+        this.distribution = distribution;
+    }
+
+    /**
+     * Size tests by their mean duration plus this many standard deviations, rather than by the mean alone,
+     * so that tests with erratic durations are budgeted more pessimistically.
+     *
+     * @param deviations e.g. 1.28 for (roughly) the 90th percentile.
+     */
+    public void setDurationDeviations(double deviations) {
+        this.durationDeviations = deviations;
+    }
+
+    /**
+     * How fast each fork runs tests relative to the others, e.g. 2.0 for a fork with twice the cores.
+     * Each fork is given work in proportion, so that they all finish together.
+     *
+     * @param capacities one per fork, or fewer to repeat them across the forks.
+     */
+    public void setForkCapacities(double... capacities) {
+        if (capacities.length == 0) {
+            return;
+        }
+        for (TestsForForkContainer container : forkContainers) {
+            container.setCapacity(capacities[container.forkIdx % capacities.length]);
+        }
+    }
+
+    /**
+     * Keep test plans in this directory, and reuse one whenever the tests, the tag of their durations and the forks
+     * are unchanged, rather than downloading the durations and making it again.
+     *
+     * @param directory where to keep plans, or null to always make a new one.
+     */
+    public void setPlanCacheDirectory(File directory) {
+        this.planCacheDirectory = directory;
+    }
+
+    public boolean hasPlanCacheDirectory() {
+        return planCacheDirectory != null;
+    }
+
+    /**
+     * @param tag identifies the durations the timed tests provider gives, so a cached plan is only reused with them.
+     */
+    void setDurationsTag(String tag) {
+        this.durationsTag = tag;
+    }
+
+    boolean wasLoadedFromCache() {
+        return loadedFromCache;
+    }
+
     public List<String> getTestsForForkAndTestTask(Integer fork, Object testTask) {
         return forkContainers.get(fork).getTestsForTask(testTask);
     }
 
     public void generateTestPlan() {
-        Tests allTestsFromFile = timedTestsProvider.get();
-        List<Tuple2<String, Object>> allDiscoveredTests = getTestsOnClasspathOfTestingTasks();
-        List<TestBucket> matchedTests = matchClasspathTestsToFile(allTestsFromFile, allDiscoveredTests);
-
-        //use greedy algo - for each testbucket find the currently smallest container and add to it
-        allocateTestsToForks(matchedTests);
+        final List<Tuple2<String, Object>> allDiscoveredTests = getTestsOnClasspathOfTestingTasks();
+
+        // Keyed on what we know before downloading the durations, so a cached plan saves us that too.
+        final TestPlanCache cache = planCacheDirectory != null ? new TestPlanCache(planCacheDirectory) : null;
+        final String key = cache != null ? TestPlanCache.key(allDiscoveredTests, getDurationsTag(), forkContainers, strategy,
+                distribution, durationDeviations) : null;
+        final Long cachedForkSetupNanos = cache != null ? cache.load(key, allDiscoveredTests, forkContainers) : null;
+        loadedFromCache = cachedForkSetupNanos != null;
+        if (loadedFromCache) {
+            forkSetupNanos = cachedForkSetupNanos;
+            System.out.println("####### TEST PLAN LOADED FROM " + cache.getFile(key) + " #######");
+        } else {
+            //use greedy algo - for each testbucket find the currently smallest container and add to it
+            allocateTestsToForks(matchTests(allDiscoveredTests));
+            if (strategy == AllocationStrategy.LOCAL_SEARCH) {
+                refineAllocation();
+            }
+            if (cache != null) {
+                cache.save(key, forkContainers, forkSetupNanos);
+            }
+        }
         forkContainers.forEach(TestsForForkContainer::freeze);
 
         printSummary();
     }
 
+    @NotNull
+    private String getDurationsTag() {
+        // We fall back to the target branch's durations when this branch has none, and estimate them as configured.
+        return durationsTag != null ? durationsTag : getDurationsTag(Properties.getProperty(Tests.DURATION_MODEL_PROPERTY),
+                Properties.getProperty(Tests.DURATION_HALF_LIFE_PROPERTY), Properties.getProperty(Tests.DURATION_OUTLIER_FACTOR_PROPERTY));
+    }
+
+    @NotNull
+    static String getDurationsTag(Object durationModel, Object halfLife, Object outlierFactor) {
+        return TestDurationArtifacts.getBranchTag() + "," + TestDurationArtifacts.getTargetBranchTag() + "," + durationModel + "," + halfLife + "," + outlierFactor;
+    }
+
+    /**
+     * Rather than a fixed plan, put the tests in a queue for the forks to take batches from as they go.
+     *
+     * @param batchesPerFork roughly how many batches each fork should get through.
+     */
+    TestBatchQueue generateTestQueue(int batchesPerFork) {
+        final TestBatchQueue queue = new TestBatchQueue(matchTests(), forkContainers.size(), batchesPerFork);
+        System.out.println("####### TEST QUEUE: " + queue.size() + " batches, predicting about " + getDuration(forkSetupNanos + queue.getDurationPerFork())
+                + " on " + forkContainers.size() + " forks #######");
+        return queue;
+    }
+
+    /**
+     * Make the plan as our strategy would, but quietly, to see how long it would take.
+     *
+     * @param matchedTests the tests matched to their durations, by {@link #matchTests()} of an allocator of the same
+     *                     tests, as they are the same whatever the number of forks.
+     * @return how long we expect each fork to take, including its setup.
+     */
+    long[] predictForkDurations(@NotNull final List<TestBucket> matchedTests) {
+        forkSetupNanos = timedTestsProvider.get().getForkSetupDuration();
+        allocateTestsToForks(matchedTests);
+        if (strategy == AllocationStrategy.LOCAL_SEARCH) {
+            new LocalSearchRefiner(forkContainers, DEFAULT_MAX_STEPS).refine();
+        }
+        return forkContainers.stream().mapToLong(container -> forkSetupNanos + container.getCurrentDuration()).toArray();
+    }
+
+    List<TestBucket> matchTests() {
+        return matchTests(getTestsOnClasspathOfTestingTasks());
+    }
+
+    private List<TestBucket> matchTests(@NotNull final List<Tuple2<String, Object>> allDiscoveredTests) {
+        Tests allTestsFromFile = timedTestsProvider.get();
+        forkSetupNanos = allTestsFromFile.getForkSetupDuration();
+        return matchClasspathTestsToFile(allTestsFromFile, allDiscoveredTests);
+    }
+
     static String getDuration(long nanos) {
         long t = TimeUnit.NANOSECONDS.toMinutes(nanos);
         if (t > 0) {
@@ -63,7 +229,47 @@ public class BucketingAllocator {
         return nanos + " ns";
     }
 
+    /**
+     * How long we expect the whole plan to take:  the slowest fork, including its setup.
+     *
+     * @return duration in nanos.
+     */
+    long getPredictedDuration() {
+        return forkSetupNanos + forkContainers.stream().mapToLong(TestsForForkContainer::getCurrentDuration).max().orElse(0L);
+    }
+
+    /**
+     * How far the slowest fork is predicted to run over the mean fork duration, were the work spread in
+     * proportion to capacity.
+     *
+     * @return (max / mean) - 1, or zero if there is nothing to run.
+     */
+    double getImbalance() {
+        final long total = forkContainers.stream().mapToLong(container -> container.runningDuration).sum();
+        final long max = forkContainers.stream().mapToLong(TestsForForkContainer::getCurrentDuration).max().orElse(0L);
+        return total > 0 ? ((double) max * getTotalCapacity() / total) - 1.0 : 0.0;
+    }
+
+    private double getTotalCapacity() {
+        return forkContainers.stream().mapToDouble(container -> container.capacity).sum();
+    }
+
+    private void refineAllocation() {
+        final double imbalanceBefore = getImbalance();
+        final int steps = new LocalSearchRefiner(forkContainers, DEFAULT_MAX_STEPS).refine();
+        System.out.println(String.format("####### TEST PLAN REFINEMENT: %d moves/swaps, slowest fork %.2f%% above mean before, %.2f%% after #######",
+                steps, imbalanceBefore * 100.0, getImbalance() * 100.0));
+    }
+
     private void printSummary() {
+        System.out.println("####### TEST PLAN PREDICTION: " + getDuration(getPredictedDuration()) + " on " + forkContainers.size()
+                + " forks, including " + getDuration(forkSetupNanos) + " of setup per fork #######");
+        final long failureProne = forkContainers.stream().mapToLong(container -> container.testsForFork.stream().filter(tb -> tb.failureRate > 0.0).count()).sum();
+        if (failureProne > 0) {
+            System.out.println("####### TEST PLAN FAILURE PRONE: " + failureProne + " buckets with failures in their history, on "
+                    + forkContainers.stream().filter(container -> container.testsForFork.stream().anyMatch(tb -> tb.failureRate > 0.0)).count()
+                    + " forks #######");
+        }
         forkContainers.forEach(container -> {
             System.out.println("####### TEST PLAN SUMMARY ( " + container.forkIdx + " ) #######");
             System.out.println("Duration: " + getDuration(container.getCurrentDuration()));
@@ -76,11 +282,110 @@ public class BucketingAllocator {
         });
     }
 
+    /**
+     * Longest processing time first:  the buckets arrive sorted by decreasing duration (with those that have failed
+     * before first within each band of durations, see {@link #LONGEST_BAND_FIRST_THEN_FAILURE_PRONE}), and each one
+     * goes to the fork where it would finish soonest.  For forks of equal capacity that's the one with the least work
+     * so far, so keeping a heap of forks per capacity makes this O(tests * capacities * log(forks)).  The forks already
+     * running each class and task are kept in heaps of their own, so finding the least loaded of them is as cheap.
+     * <p>
+     * A fork that doesn't yet run any of a bucket's class must also pay for that class's fixture setup, and likewise
+     * for the bucket's Test task.  When the class or task is already running somewhere, we weigh the least loaded
+     * fork against the least loaded fork already running it, by the better of two lower bounds on the final plan:
+     * the slowest fork so far, and all the work (including what's still to come) spread evenly.  Splitting a class
+     * or task adds work, so it only happens when that shortens the plan.
+     *
+     * @param matchedTests buckets, largest band first, then failure prone, then largest.
+     */
     private void allocateTestsToForks(@NotNull List<TestBucket> matchedTests) {
-        matchedTests.forEach(matchedTestBucket -> {
-            TestsForForkContainer smallestContainer = Collections.min(forkContainers, Comparator.comparing(TestsForForkContainer::getCurrentDuration));
-            smallestContainer.addBucket(matchedTestBucket);
-        });
+        final Map<Double, LeastLoadedForks> leastLoadedByCapacity = new TreeMap<>();
+        forkContainers.forEach(container -> leastLoadedByCapacity.computeIfAbsent(container.capacity,
+                c -> new LeastLoadedForks()).offer(container));
+        final Map<String, LeastLoadedForks> forksByClass = new HashMap<>();
+        final Map<Object, LeastLoadedForks> forksByTask = new HashMap<>();
+
+        // Work not yet allocated, counting each class's and each task's setup once, and work allocated so far.
+        long remaining = matchedTests.stream().mapToLong(TestBucket::getDuration).sum()
+                + matchedTests.stream().filter(tb -> tb.classSetupNanos > 0L)
+                .collect(Collectors.toMap(tb -> tb.className, tb -> tb.classSetupNanos, (a, b) -> a))
+                .values().stream().mapToLong(Long::longValue).sum()
+                + matchedTests.stream().filter(tb -> tb.taskSetupNanos > 0L)
+                .collect(Collectors.toMap(tb -> tb.testTask, tb -> tb.taskSetupNanos, (a, b) -> a))
+                .values().stream().mapToLong(Long::longValue).sum();
+        long allocated = 0L;
+        long slowest = 0L;
+
+        for (TestBucket matchedTestBucket : matchedTests) {
+            TestsForForkContainer container = soonestFinished(leastLoadedByCapacity.values(), matchedTestBucket);
+            final LeastLoadedForks runningClass = matchedTestBucket.classSetupNanos > 0L ?
+                    forksByClass.computeIfAbsent(matchedTestBucket.className, c -> new LeastLoadedForks()) : null;
+            final LeastLoadedForks runningTask = matchedTestBucket.taskSetupNanos > 0L ?
+                    forksByTask.computeIfAbsent(matchedTestBucket.testTask, t -> new LeastLoadedForks()) : null;
+            if (runningClass != null && runningClass.isEmpty()) {
+                remaining -= matchedTestBucket.classSetupNanos;
+            }
+            if (runningTask != null && runningTask.isEmpty()) {
+                remaining -= matchedTestBucket.taskSetupNanos;
+            }
+            remaining -= matchedTestBucket.durationNanos;
+
+            if (runningClass != null || runningTask != null) {
+                long best = lowerBound(container, matchedTestBucket, slowest, allocated, remaining);
+                for (LeastLoadedForks running : Arrays.asList(runningClass, runningTask)) {
+                    final TestsForForkContainer alreadyRunning = running != null ? running.peek() : null;
+                    if (alreadyRunning != null && alreadyRunning != container) {
+                        final long together = lowerBound(alreadyRunning, matchedTestBucket, slowest, allocated, remaining);
+                        if (together <= best) {
+                            best = together;
+                            container = alreadyRunning;
+                        }
+                    }
+                }
+            }
+            final boolean joinsClass = runningClass != null && !container.runsClass(matchedTestBucket.className);
+            final boolean joinsTask = runningTask != null && !container.runsTask(matchedTestBucket.testTask);
+            allocated += container.addedCost(matchedTestBucket);
+
+            // Only the least loaded fork of its capacity is at the top of its heap;  any other fork's place is fixed
+            // when it comes to the top.
+            final LeastLoadedForks leastLoaded = leastLoadedByCapacity.get(container.capacity);
+            final boolean leastLoadedOfItsCapacity = leastLoaded.peek() == container;
+            if (leastLoadedOfItsCapacity) {
+                leastLoaded.poll();
+            }
+            container.addBucket(matchedTestBucket);
+            if (leastLoadedOfItsCapacity) {
+                leastLoaded.offer(container);
+            }
+            if (joinsClass) {
+                runningClass.offer(container);
+            }
+            if (joinsTask) {
+                runningTask.offer(container);
+            }
+            slowest = Math.max(slowest, container.getCurrentDuration());
+        }
+    }
+
+    @NotNull
+    private static TestsForForkContainer soonestFinished(@NotNull final Collection<LeastLoadedForks> leastLoadedByCapacity,
+                                                         @NotNull final TestBucket tb) {
+        TestsForForkContainer soonest = null;
+        for (LeastLoadedForks leastLoaded : leastLoadedByCapacity) {
+            final TestsForForkContainer candidate = leastLoaded.peek();
+            if (soonest == null || candidate.durationWith(candidate.addedCost(tb)) < soonest.durationWith(soonest.addedCost(tb))
+                    || (candidate.durationWith(candidate.addedCost(tb)) == soonest.durationWith(soonest.addedCost(tb)) && candidate.forkIdx < soonest.forkIdx)) {
+                soonest = candidate;
+            }
+        }
+        return soonest;
+    }
+
+    private long lowerBound(@NotNull final TestsForForkContainer container, @NotNull final TestBucket tb,
+                            long slowest, long allocated, long remaining) {
+        final long added = container.addedCost(tb);
+        final long evenlySpread = Math.round((allocated + added + remaining) / getTotalCapacity());
+        return Math.max(Math.max(container.durationWith(added), slowest), evenlySpread);
     }
 
     List<TestsForForkContainer> getForkContainers() {
@@ -101,17 +406,41 @@ public class BucketingAllocator {
             final List<Tuple2<String, Long>> matchingTests;
             switch (distribution) {
                 case METHOD:
-                    matchingTests = tests.equals(testName);
+                    matchingTests = tests.method(testName, durationDeviations);
                     break;
                 case CLASS:
-                    matchingTests = tests.startsWith(testName);
+                    matchingTests = tests.startsWith(testName, durationDeviations);
                     break;
                 default:
                     throw new IllegalArgumentException("Unknown distribution type: " + distribution);
             }
 
-            return new TestBucket(task, testName, matchingTests);
-        }).sorted(Comparator.comparing(TestBucket::getDuration).reversed()).collect(Collectors.toList());
+            // In METHOD mode the class is everything before the method name.
+            final String className = distribution == DistributeTestsBy.METHOD && testName.lastIndexOf('.') > 0 ?
+                    testName.substring(0, testName.lastIndexOf('.')) : testName;
+
+            // The chance that at least one of its tests fails.
+            double passRate = 1.0;
+            for (Tuple2<String, Long> matchingTest : matchingTests) {
+                passRate *= 1.0 - tests.getFailureRate(matchingTest.getFirst());
+            }
+
+            return new TestBucket(task, testName, matchingTests, className, tests.getClassSetupDuration(className),
+                    tests.getTaskSetupDuration(getTaskPath(task)), 1.0 - passRate);
+        }).sorted(LONGEST_BAND_FIRST_THEN_FAILURE_PRONE).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the band of durations this one is in:  each band's durations are no more than twice as long as each
+     * other's, and a longer band's are longer.
+     */
+    static int getDurationBand(long nanos) {
+        return Long.SIZE - Long.numberOfLeadingZeros(Math.max(nanos, 0L));
+    }
+
+    @NotNull
+    static String getTaskPath(@NotNull final Object testTask) {
+        return testTask instanceof Task ? ((Task) testTask).getPath() : testTask.toString();
     }
 
     private List<Tuple2<String, Object>> getTestsOnClasspathOfTestingTasks() {
@@ -122,19 +451,84 @@ public class BucketingAllocator {
         }).flatMap(Collection::stream).sorted(Comparator.comparing(Tuple2::getFirst)).collect(Collectors.toList());
     }
 
+    /**
+     * A heap of forks, least loaded first;  ties go to the lowest fork index, which is what Collections.min would pick.
+     * A fork may be in several heaps, e.g. of the forks running a class, and while we allocate its load only grows.  So
+     * rather than finding and moving it in each of them, which is linear, each heap keeps the load it last saw, and
+     * puts the fork back in its place whenever it comes to the top with more work than that.  The top is then the
+     * least loaded, as every other fork is loaded at least as much as its place in the heap says.
+     */
+    private static final class LeastLoadedForks {
+        private final PriorityQueue<Tuple2<Long, TestsForForkContainer>> heap = new PriorityQueue<>(
+                Comparator.comparingLong((Tuple2<Long, TestsForForkContainer> loaded) -> loaded.getFirst())
+                        .thenComparingInt(loaded -> loaded.getSecond().forkIdx));
+
+        void offer(@NotNull final TestsForForkContainer container) {
+            heap.offer(new Tuple2<>(container.runningDuration, container));
+        }
+
+        TestsForForkContainer peek() {
+            Tuple2<Long, TestsForForkContainer> top;
+            while ((top = heap.peek()) != null && top.getFirst() != top.getSecond().runningDuration) {
+                heap.poll();
+                offer(top.getSecond());
+            }
+            return top != null ? top.getSecond() : null;
+        }
+
+        boolean isEmpty() {
+            return heap.isEmpty();
+        }
+
+        TestsForForkContainer poll() {
+            final TestsForForkContainer top = peek();
+            heap.poll();
+            return top;
+        }
+    }
+
     public static class TestBucket {
         final Object testTask;
         final String testName;
         final List<Tuple2<String, Long>> foundTests;
         final long durationNanos;
+        // The test class, and what a fork pays to set it up if it isn't already running any of it.  Likewise the task.
+        final String className;
+        final long classSetupNanos;
+        final long taskSetupNanos;
+        // How likely, from their history, any of its tests are to fail.
+        final double failureRate;
 
         public TestBucket(@NotNull final Object testTask,
                           @NotNull final String testName,
                           @NotNull final List<Tuple2<String, Long>> foundTests) {
+            this(testTask, testName, foundTests, testName, 0L, 0L);
+        }
+
+        public TestBucket(@NotNull final Object testTask,
+                          @NotNull final String testName,
+                          @NotNull final List<Tuple2<String, Long>> foundTests,
+                          @NotNull final String className,
+                          long classSetupNanos,
+                          long taskSetupNanos) {
+            this(testTask, testName, foundTests, className, classSetupNanos, taskSetupNanos, 0.0);
+        }
+
+        public TestBucket(@NotNull final Object testTask,
+                          @NotNull final String testName,
+                          @NotNull final List<Tuple2<String, Long>> foundTests,
+                          @NotNull final String className,
+                          long classSetupNanos,
+                          long taskSetupNanos,
+                          double failureRate) {
             this.testTask = testTask;
             this.testName = testName;
             this.foundTests = foundTests;
             this.durationNanos = foundTests.stream().mapToLong(tp -> Math.max(tp.getSecond(), 1)).sum();
+            this.className = className;
+            this.classSetupNanos = Math.max(classSetupNanos, 0L);
+            this.taskSetupNanos = Math.max(taskSetupNanos, 0L);
+            this.failureRate = Math.min(Math.max(failureRate, 0.0), 1.0);
         }
 
         public long getDuration() {
@@ -148,30 +542,119 @@ public class BucketingAllocator {
                     ", nameWithAsterix='" + testName + '\'' +
                     ", foundTests=" + foundTests +
                     ", durationNanos=" + durationNanos +
+                    ", classSetupNanos=" + classSetupNanos +
+                    ", taskSetupNanos=" + taskSetupNanos +
+                    ", failureRate=" + failureRate +
                     '}';
         }
     }
 
     public static class TestsForForkContainer {
-        private final Integer forkIdx;
+        private final int forkIdx;
         private final List<TestBucket> testsForFork = Collections.synchronizedList(new ArrayList<>());
         private final Map<Object, List<TestBucket>> frozenTests = new HashMap<>();
+        // class name -> number of buckets of that class on this fork, and likewise for Test tasks
+        private final Map<String, Integer> bucketsPerClass = new HashMap<>();
+        private final Map<Object, Integer> bucketsPerTask = new HashMap<>();
+        // Work in nanos at a capacity of 1;  this fork gets through it 'capacity' times as fast.
         private long runningDuration = 0L;
+        private double capacity = 1.0;
 
-        public TestsForForkContainer(Integer forkIdx) {
+        public TestsForForkContainer(int forkIdx) {
             this.forkIdx = forkIdx;
         }
 
+        void setCapacity(double capacity) {
+            if (capacity <= 0.0) {
+                throw new IllegalArgumentException("Fork capacity must be positive: " + capacity);
+            }
+            this.capacity = capacity;
+        }
+
+        double getCapacity() {
+            return capacity;
+        }
+
         public void addBucket(TestBucket tb) {
+            this.runningDuration += addedCost(tb);
             this.testsForFork.add(tb);
-            this.runningDuration = this.runningDuration + tb.durationNanos;
+            this.bucketsPerClass.merge(tb.className, 1, Integer::sum);
+            this.bucketsPerTask.merge(tb.testTask, 1, Integer::sum);
+        }
+
+        void removeBucket(TestBucket tb) {
+            final long cost = removedCost(tb);
+            if (this.testsForFork.remove(tb)) {
+                this.runningDuration -= cost;
+                this.bucketsPerClass.computeIfPresent(tb.className, (c, n) -> n > 1 ? n - 1 : null);
+                this.bucketsPerTask.computeIfPresent(tb.testTask, (t, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+
+        boolean runsClass(@NotNull final String className) {
+            return bucketsPerClass.containsKey(className);
+        }
+
+        boolean runsTask(@NotNull final Object testTask) {
+            return bucketsPerTask.containsKey(testTask);
+        }
+
+        /**
+         * @return how much longer this fork would take with the bucket, including its class and task setup if it is the first of either.
+         */
+        long addedCost(@NotNull final TestBucket tb) {
+            return tb.durationNanos + (runsClass(tb.className) ? 0L : tb.classSetupNanos) + (runsTask(tb.testTask) ? 0L : tb.taskSetupNanos);
+        }
+
+        /**
+         * @return how much less time this fork would take without the bucket, including its class and task setup if it is the last of either.
+         */
+        long removedCost(@NotNull final TestBucket tb) {
+            return tb.durationNanos + (bucketsPerClass.getOrDefault(tb.className, 0) == 1 ? tb.classSetupNanos : 0L)
+                    + (bucketsPerTask.getOrDefault(tb.testTask, 0) == 1 ? tb.taskSetupNanos : 0L);
         }
 
+        /**
+         * @return how much longer (or, if negative, shorter) this fork would take if we swapped one bucket for another.
+         */
+        long swappedCost(@NotNull final TestBucket out, @NotNull final TestBucket in) {
+            long cost = in.durationNanos - out.durationNanos;
+            if (!out.className.equals(in.className)) {
+                cost += (runsClass(in.className) ? 0L : in.classSetupNanos)
+                        - (bucketsPerClass.getOrDefault(out.className, 0) == 1 ? out.classSetupNanos : 0L);
+            }
+            if (!out.testTask.equals(in.testTask)) {
+                cost += (runsTask(in.testTask) ? 0L : in.taskSetupNanos)
+                        - (bucketsPerTask.getOrDefault(out.testTask, 0) == 1 ? out.taskSetupNanos : 0L);
+            }
+            return cost;
+        }
+
+        /**
+         * @return how long this fork will take to run its tests.
+         */
         public Long getCurrentDuration() {
-            return runningDuration;
+            return durationWith(0L);
         }
 
+        /**
+         * @param extraWork nanos of work to add (or, if negative, remove)
+         * @return how long this fork would take with that much more work.
+         */
+        long durationWith(long extraWork) {
+            return capacity == 1.0 ? runningDuration + extraWork : Math.round((runningDuration + extraWork) / capacity);
+        }
+
+        /**
+         * Fix the fork's tests, in the order it should run them:  those most likely to fail first, then the longest,
+         * so that a regression shows up early in the fork's run rather than at its end.  The order is that of the
+         * fork's slice of the plan, and so of the Test tasks it runs, when the plan is shipped to the fork.  The order
+         * of the tests within a Test task is Gradle's choice, so the order within a fork is only realised task by task.
+         */
         public void freeze() {
+            synchronized (testsForFork) {
+                testsForFork.sort(FAILURE_PRONE_THEN_LONGEST_FIRST);
+            }
             testsForFork.forEach(tb -> {
                 frozenTests.computeIfAbsent(tb.testTask, i -> new ArrayList<>()).add(tb);
             });
@@ -189,6 +672,7 @@ public class BucketingAllocator {
         public String toString() {
             return "TestsForForkContainer{" +
                     "runningDuration=" + runningDuration +
+                    ", capacity=" + capacity +
                     ", forkIdx=" + forkIdx +
                     ", testsForFork=" + testsForFork +
                     ", frozenTests=" + frozenTests +
@@ -1,15 +1,25 @@
 package com.r3.testing;
 
 import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.api.tasks.testing.Test;
 
 import javax.inject.Inject;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class BucketingAllocatorTask extends DefaultTask {
     private final BucketingAllocator allocator;
+    // This fork's slice of a plan made on the client, if it shipped us one;  then we needn't discover any tests.
+    private final File testPlanFile = TestPlanFile.fromSystemProperties();
+    private Map<String, List<String>> shippedPlan;
 
     @Inject
     public BucketingAllocatorTask(Integer forkCount) {
@@ -18,15 +28,31 @@ public class BucketingAllocatorTask extends DefaultTask {
 
     public void addSource(TestLister source, Test testTask) {
         allocator.addSource(source, testTask);
-        this.dependsOn(source);
+        if (testPlanFile == null) {
+            this.dependsOn(source);
+        }
     }
 
     public List<String> getTestIncludesForForkAndTestTask(Integer fork, Test testTask) {
-        return allocator.getTestsForForkAndTestTask(fork, testTask).stream().map(t -> t + "*").collect(Collectors.toList());
+        final List<String> tests = shippedPlan != null ? shippedPlan.getOrDefault(testTask.getPath(), Collections.emptyList()) :
+                allocator.getTestsForForkAndTestTask(fork, testTask);
+        return tests.stream().map(t -> t + "*").collect(Collectors.toList());
     }
 
     @TaskAction
     public void allocate() {
+        if (testPlanFile != null) {
+            try (Reader reader = new FileReader(testPlanFile)) {
+                shippedPlan = TestPlanFile.read(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new GradleException("Could not read the test plan " + testPlanFile, e);
+            }
+            System.out.println("####### TEST PLAN READ FROM " + testPlanFile + " #######");
+            return;
+        }
+        if (!allocator.hasPlanCacheDirectory()) {
+            allocator.setPlanCacheDirectory(new File(getProject().getRootProject().getBuildDir(), "test-plans"));
+        }
         allocator.generateTestPlan();
     }
 }
@@ -16,6 +16,12 @@ class DistributedTesting implements Plugin<Project> {
         if (System.getProperty("kubenetize") != null) {
             Properties.setRootProjectType(project.getRootProject().getName());
             Kubernetizer.configuredWith(DistributedTestingConfiguration.fromSystem()).kubernetize(project);
+        } else {
+            //the build in the image building container isn't kubenetized, but lists the tests for the image's pods
+            DistributedTestingProject distributedTestingProject = DistributedTestingProject.forProject(project);
+            if (distributedTestingProject.getPropertyAsBoolean(ListTests.PREBUILD_PROPERTY, false)) {
+                TestDistributor.prebuildTestLists(distributedTestingProject);
+            }
         }
 
         //  Added only so that we can manually run zipTask on the command line as a test.
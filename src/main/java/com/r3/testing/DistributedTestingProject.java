@@ -32,6 +32,10 @@ public final class DistributedTestingProject {
         return project.hasProperty(propertyName) ? Integer.parseInt(project.property(propertyName).toString()) : defaultValue;
     }
 
+    public boolean getPropertyAsBoolean(String propertyName, boolean defaultValue) {
+        return project.hasProperty(propertyName) ? Boolean.parseBoolean(project.property(propertyName).toString()) : defaultValue;
+    }
+
     public boolean isTaskRequested(String taskName) {
         return requestedTaskNames.contains(taskName);
     }
@@ -53,6 +57,14 @@ public final class DistributedTestingProject {
         return !project.getSubprojects().isEmpty();
     }
 
+    public void traverseSubProjects(Consumer<DistributedTestingSubProject> consumer) {
+        if (hasSubProjects()) {
+            project.getSubprojects().forEach(subProject -> consumer.accept(DistributedTestingSubProject.forSubProject(subProject)));
+        } else {
+            consumer.accept(DistributedTestingSubProject.forSubProject(project));
+        }
+    }
+
     public void traverseRequestedTasks(TestDistributor testDistributor) {
         if (hasSubProjects()) {
             project.getSubprojects().forEach(subProject -> testDistributor.generateDistributedTestTasksFor(
@@ -31,6 +31,10 @@ public final class DistributedTestingSubProject {
         return subProject.hasProperty(propertyName) ? Integer.parseInt(subProject.property(propertyName).toString()) : defaultValue;
     }
 
+    public boolean getPropertyAsBoolean(String propertyName, boolean defaultValue) {
+        return subProject.hasProperty(propertyName) ? Boolean.parseBoolean(subProject.property(propertyName).toString()) : defaultValue;
+    }
+
     public void traverseTestTasks(Consumer<Test> consumer) {
         subProject.getTasks().withType(Test.class, consumer::accept);
     }
@@ -43,6 +47,10 @@ public final class DistributedTestingSubProject {
         return createTask("listTestsFor", task, ListTests.class, configure);
     }
 
+    public ListTests getListTestsTaskFor(Test task) {
+        return (ListTests) subProject.getTasks().findByName(newTaskName("listTestsFor", task));
+    }
+
     public Task createPrintTaskFor(Test task, Consumer<Task> configure) {
         return createTask("printTestsFor", task, Task.class, configure);
     }
@@ -52,7 +60,9 @@ public final class DistributedTestingSubProject {
     }
 
     public File createReportsDirFor(Test task) {
-        return new File(new File(KubesTest.TEST_RUN_DIR, "test-reports"), subProject.getName() + "-" + task.getName());
+        //in work stealing mode a pod runs a task once per batch, so keep each batch's results apart
+        String batch = Properties.getProperty(TestBatchQueue.BATCH_PROPERTY);
+        return new File(new File(KubesTest.getTestRunDir(), "test-reports"), subProject.getName() + "-" + task.getName() + (batch.isEmpty() ? "" : "-batch" + batch));
     }
 
     public KubesTest createKubesTestTaskFor(Test task, Consumer<KubesTest> configure) {
@@ -0,0 +1,15 @@
+package com.r3.testing;
+
+/**
+ * How {@link Tests} turns a test's duration history into the duration we expect next time.
+ */
+public enum DurationModel {
+    /**
+     * The arithmetic mean of every run we have recorded.
+     */
+    MEAN,
+    /**
+     * An exponentially weighted moving average, so recent runs count for more.
+     */
+    EWMA
+}
@@ -0,0 +1,96 @@
+package com.r3.testing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancels the rest of a group's pods once enough of its builds have failed.  A regression usually breaks tests
+ * on more than one pod, and once we know the group has failed there's little point paying for the other pods, or
+ * their retries, to run to the end.  A failure is a build, i.e. a pod's run or a batch, that exits non-zero.
+ */
+class FailFast {
+    // The exit code of a build we cancelled, as a shell reports one stopped by SIGINT.
+    static final int CANCELLED = 130;
+
+    private final int maxFailures;
+    private final List<Runnable> cancellations = new ArrayList<>();
+    private int failures = 0;
+    private boolean cancelled = false;
+
+    /**
+     * @param maxFailures how many builds may fail before we cancel the rest, or zero to never cancel them.
+     */
+    FailFast(int maxFailures) {
+        if (maxFailures < 0) {
+            throw new IllegalArgumentException("Can't fail fast after a negative number of failures: " + maxFailures);
+        }
+        this.maxFailures = maxFailures;
+    }
+
+    boolean isEnabled() {
+        return maxFailures > 0;
+    }
+
+    /**
+     * Count a failed build, and cancel the rest if that's one too many.
+     *
+     * @return true if the rest are cancelled, so the build that failed shouldn't be retried either.
+     */
+    boolean recordFailure() {
+        final List<Runnable> toRun;
+        synchronized (this) {
+            failures++;
+            if (cancelled || !isEnabled() || failures < maxFailures) {
+                return cancelled;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(cancellations);
+            cancellations.clear();
+        }
+        System.out.println("####### FAIL FAST: " + failures + " failed builds, cancelling the rest #######");
+        toRun.forEach(Runnable::run);
+        return true;
+    }
+
+    /**
+     * Count a build's exit code, as a {@link TestBatchQueue.TestBatchRunner} would return it.
+     *
+     * @return the exit code.
+     */
+    int record(int exitCode) {
+        if (exitCode != 0) {
+            recordFailure();
+        }
+        return exitCode;
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Do this when we cancel the rest, e.g. delete a pod, or right away if we already have.
+     */
+    void onCancel(@NotNull final Runnable cancellation) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancellations.add(cancellation);
+                return;
+            }
+        }
+        cancellation.run();
+    }
+
+    /**
+     * Forget a cancellation that no longer applies, e.g. of a pod that has finished, so that retries don't pile them up.
+     */
+    synchronized void removeOnCancel(@NotNull final Runnable cancellation) {
+        cancellations.remove(cancellation);
+    }
+}
@@ -94,6 +94,8 @@ public class ImageBuilding implements Plugin<Project> {
                     map.put(gradleDir.getAbsolutePath(), "/tmp/gradle");
                     map.put(mavenDir.getAbsolutePath(), "/home/root/.m2");
                     dockerCreateContainer.getBinds().set(map);
+                    //have the build in the container list the tests as it compiles them, so that the image carries the test lists for its pods
+                    dockerCreateContainer.withEnvVar("ORG_GRADLE_PROJECT_" + ListTests.PREBUILD_PROPERTY, "true");
                     Properties props = System.getProperties();
                     for (Object obj : props.keySet()) {
                         if (obj.toString().contains("docker.container.env.parameter.")) {
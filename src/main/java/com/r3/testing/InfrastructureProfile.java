@@ -7,6 +7,8 @@ public class InfrastructureProfile {
     private int numberOfShards = 20;
     private boolean streamOutput = true;
     private int coresPerFork = 4;
+    // For mixed node pools:  the cores for each fork in turn, repeated across the shards.  Empty to use coresPerFork.
+    private List<Integer> coresByFork = new ArrayList<>();
     private int memoryInGbPerFork = 4;
     private List<String> nodeTaints = new ArrayList<>();
 
@@ -34,6 +36,14 @@ public class InfrastructureProfile {
         this.coresPerFork = coresPerFork;
     }
 
+    public List<Integer> getCoresByFork() {
+        return coresByFork;
+    }
+
+    public void setCoresByFork(List<Integer> coresByFork) {
+        this.coresByFork = coresByFork;
+    }
+
     public int getMemoryInGbPerFork() {
         return memoryInGbPerFork;
     }
@@ -8,6 +8,7 @@ import com.microsoft.azure.management.sql.ServiceObjectiveName;
 import com.microsoft.azure.management.sql.SqlDatabase;
 import com.microsoft.rest.LogLevel;
 import com.r3.testing.retry.Retry;
+import groovy.lang.Tuple2;
 import io.fabric8.kubernetes.api.model.*;
 import io.fabric8.kubernetes.client.*;
 import io.fabric8.kubernetes.client.dsl.ExecListener;
@@ -16,11 +17,14 @@ import io.fabric8.kubernetes.client.utils.Serialization;
 import okhttp3.Response;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.InvalidUserCodeException;
+import org.gradle.api.Project;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.testing.Test;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.Path;
@@ -33,6 +37,14 @@ import java.util.stream.IntStream;
 public class KubesTest extends DefaultTask {
 
     static final String TEST_RUN_DIR = "/test-runs";
+    static final String TEST_PLAN_DIR = "/tmp/test-plan";
+    static final String TEST_BATCH_DIR = "/tmp/test-batches";
+    // Run the batches of a work stealing group as local builds rather than on pods.
+    static final String LOCAL_PODS_PROPERTY = "localPods";
+    // A ConfigMap can hold no more than 1MiB;  leave some room for its metadata.
+    private static final int MAX_TEST_PLAN_BYTES = 1000 * 1000;
+    // How many pods a work stealing fork may go through, as a failed batch loses its pod.
+    private static final int MAX_POD_ATTEMPTS = 3;
     private static final ExecutorService executorService = Executors.newCachedThreadPool();
     /**
      * Name of the k8s Secret object that holds the credentials to access the docker image registry
@@ -52,6 +64,7 @@ public class KubesTest extends DefaultTask {
     List<String> taints = Collections.emptyList();
 
     Integer numberOfCoresPerFork = 4;
+    List<Integer> coresByFork = Collections.emptyList();
     Integer memoryGbPerFork = 6;
     public volatile List<File> testOutput = Collections.emptyList();
     public volatile List<KubePodResult> containerResults = Collections.emptyList();
@@ -62,7 +75,31 @@ public class KubesTest extends DefaultTask {
     int numberOfPods = 5;
 
     DistributeTestsBy distribution = DistributeTestsBy.METHOD;
+    AllocationStrategy allocationStrategy = AllocationStrategy.GREEDY;
+    double durationDeviations = 0.0;
+    DurationModel durationModel = DurationModel.MEAN;
+    double durationHalfLife = Tests.DEFAULT_HALF_LIFE_IN_RUNS;
+    double durationOutlierFactor = Tests.DEFAULT_OUTLIER_FACTOR;
     PodLogLevel podLogLevel = PodLogLevel.INFO;
+    // Test tasks to plan here, once, rather than on every pod.  Empty to plan on the pods.
+    private final List<Tuple2<TestLister, Test>> testPlanSources = new ArrayList<>();
+    // Rather than give each pod a fixed share of the tests, have them take batches from a queue we host.
+    boolean workStealing = false;
+    int batchesPerPod = TestBatchQueue.DEFAULT_BATCHES_PER_FORK;
+    // Pick the number of pods, up to numberOfPods, to finish within this many minutes and/or cost no more than this.
+    long targetMinutes = 0L;
+    double maxCoreHours = 0.0;
+    // Cancel the remaining pods once this many builds have failed, or zero to run them all to the end.
+    int failFastAfter = 0;
+    private FailFast failFast = new FailFast(0);
+    // How many threads to discover tests with, or zero for ClassGraph's default.
+    int testDiscoveryThreads = 0;
+    // The test durations for planning here, loaded once.
+    private Tests clientSideTests;
+    // The ConfigMap holding each pod's slice of the plan, or null if the pods make their own.
+    private String testPlanConfigMap;
+    // The Test tasks of each pod's slice of the plan, in plan order, if we shipped one.
+    private List<List<String>> testPlanTaskOrder = Collections.emptyList();
 
     private static final String RESOURCE_GROUP = "build-k8s-infrastructure";
     private static final String CLIENT = System.getProperty("azure.client");
@@ -75,6 +112,11 @@ public class KubesTest extends DefaultTask {
 
     @TaskAction
     public void runDistributedTests() {
+        failFast = new FailFast(failFastAfter);
+
+        if (isShardCountAutomatic()) {
+            numberOfPods = selectNumberOfPods();
+        }
 
         String buildId = System.getProperty("buildId", "0");
         String currentUser = System.getProperty("user.name", "UNKNOWN_USER");
@@ -82,6 +124,12 @@ public class KubesTest extends DefaultTask {
         String stableRunId = rnd64Base36(new Random(buildId.hashCode() + currentUser.hashCode() + taskToExecuteName.hashCode()));
         String random = rnd64Base36(new Random());
 
+        if (workStealing && isRunningLocally()) {
+            TestBatchQueue queue = createTestQueue();
+            collectResults(runBatchesLocally(queue), queue);
+            return;
+        }
+
         // Tear down any orphaned dbs from previous test run
         //tearDownOrphanedAzureSQLDbs();
 
@@ -96,11 +144,24 @@ public class KubesTest extends DefaultTask {
             //it's possible that a pod is being deleted by the original build, this can lead to racey conditions
         }
 
+        TestBatchQueue queue = workStealing ? createTestQueue() : null;
+        testPlanConfigMap = testPlanSources.isEmpty() || workStealing ? null : shipTestPlan(generateTestPlanName(stableRunId, random));
+
         List<Future<KubePodResult>> futures = IntStream.range(0, numberOfPods).mapToObj(i -> {
             String podName = generatePodName(stableRunId, random, i);
-            return submitBuild(NAMESPACE, numberOfPods, i, podName, printOutput, 3);
+            return queue != null ? submitBatches(NAMESPACE, queue, i, podName) : submitBuild(NAMESPACE, numberOfPods, i, podName, printOutput, 3);
         }).collect(Collectors.toList());
 
+        try {
+            collectResults(futures, queue);
+        } finally {
+            // Tear down Azure SQL DBs (if any) from this test run
+            tearDownAzureSQLDbs(stableRunId, random);
+            deleteTestPlan();
+        }
+    }
+
+    private void collectResults(List<? extends Future<KubePodResult>> futures, TestBatchQueue queue) {
         this.testOutput = Collections.synchronizedList(futures.stream().map(it -> {
             try {
                 return it.get().getBinaryResults();
@@ -116,8 +177,226 @@ public class KubesTest extends DefaultTask {
             }
         }).collect(Collectors.toList());
 
-        // Tear down Azure SQL DBs (if any) from this test run
-        tearDownAzureSQLDbs(stableRunId, random);
+        if (queue != null) {
+            queue.printSummary();
+            if (queue.size() > 0) {
+                throw new InvalidUserCodeException(queue.size() + " batches of tests were never run, as every pod was lost");
+            }
+        }
+        if (failFast.isCancelled()) {
+            throw new InvalidUserCodeException("Cancelled the remaining tests of " + getPath() + " after " + failFast.getFailures() + " failed builds");
+        }
+    }
+
+    /**
+     * Discover the tests of these Test tasks and make the plan for them here, rather than on each pod.
+     */
+    void planOnClient(TestLister lister, Test testTask) {
+        testPlanSources.add(new Tuple2<>(lister, testTask));
+        dependsOn(lister);
+    }
+
+    /**
+     * Make the test plan and put each pod's slice of it in a ConfigMap, to be mounted into the pod.
+     *
+     * @return the name of the ConfigMap, or null if the plan is too big and the pods must make their own.
+     */
+    private String shipTestPlan(String name) {
+        BucketingAllocator allocator = createClientSideAllocator();
+        allocator.setPlanCacheDirectory(new File(getProject().getRootProject().getBuildDir(), "test-plans"));
+        allocator.setDurationsTag(BucketingAllocator.getDurationsTag(durationModel, durationHalfLife, durationOutlierFactor));
+        allocator.generateTestPlan();
+
+        Map<String, String> slices = TestPlanFile.slices(allocator.getForkContainers());
+        int size = slices.values().stream().mapToInt(String::length).sum();
+        if (size > MAX_TEST_PLAN_BYTES) {
+            getProject().getLogger().warn("Test plan is too big to ship to the pods (" + size + " bytes), they will make their own");
+            return null;
+        }
+        testPlanTaskOrder = allocator.getForkContainers().stream()
+                .map(container -> container.getBucketsForFork().stream().map(tb -> BucketingAllocator.getTaskPath(tb.testTask)).distinct().collect(Collectors.toList()))
+                .collect(Collectors.toList());
+
+        try (KubernetesClient client = getKubernetesClient()) {
+            client.configMaps().inNamespace(NAMESPACE).createOrReplace(new ConfigMapBuilder()
+                    .withNewMetadata().withName(name).endMetadata()
+                    .withData(slices)
+                    .build());
+        }
+        addShutdownHook(() -> {
+            try (KubernetesClient client = getKubernetesClient()) {
+                client.configMaps().inNamespace(NAMESPACE).withName(name).delete();
+            }
+        });
+        getProject().getLogger().lifecycle("shipping test plan to pods in: " + name);
+        return name;
+    }
+
+    static boolean isRunningLocally() {
+        return System.getProperty(LOCAL_PODS_PROPERTY) != null;
+    }
+
+    private TestBatchQueue createTestQueue() {
+        if (testPlanSources.isEmpty()) {
+            throw new InvalidUserCodeException("Work stealing needs the tests to be listed on the client, but " + getPath() + " has no tests to list");
+        }
+        TestBatchQueue queue = createClientSideAllocator().generateTestQueue(batchesPerPod);
+        failFast.onCancel(queue::cancel);
+        return queue;
+    }
+
+    boolean isShardCountAutomatic() {
+        return targetMinutes > 0L || maxCoreHours > 0.0;
+    }
+
+    /**
+     * The fewest pods, up to the configured number, predicted to finish in time within the cost ceiling.
+     */
+    private int selectNumberOfPods() {
+        if (testPlanSources.isEmpty()) {
+            throw new InvalidUserCodeException("Picking the number of pods needs the tests to be listed on the client, but " + getPath() + " has no tests to list");
+        }
+        return new ShardCountSelector(TimeUnit.MINUTES.toNanos(targetMinutes), maxCoreHours, numberOfPods)
+                .select(this::createClientSideAllocator, this::getCoresForFork);
+    }
+
+    private BucketingAllocator createClientSideAllocator() {
+        return createClientSideAllocator(numberOfPods);
+    }
+
+    private BucketingAllocator createClientSideAllocator(int forks) {
+        BucketingAllocator allocator = new BucketingAllocator(forks, this::getClientSideTests, allocationStrategy);
+        allocator.setDistribution(distribution);
+        allocator.setDurationDeviations(durationDeviations);
+        allocator.setForkCapacities(IntStream.range(0, forks).mapToDouble(podIdx -> (double) getCoresForFork(podIdx) / numberOfCoresPerFork).toArray());
+        testPlanSources.forEach(source -> allocator.addSource(source.getFirst(), source.getSecond()));
+        return allocator;
+    }
+
+    private synchronized Tests getClientSideTests() {
+        if (clientSideTests == null) {
+            clientSideTests = TestDurationArtifacts.getTestsSupplier().get().withDurationModel(durationModel, durationHalfLife, durationOutlierFactor);
+        }
+        return clientSideTests;
+    }
+
+    /**
+     * The local stand-in for the pods:  each fork runs its batches as builds of this project, here.
+     */
+    private List<CompletableFuture<KubePodResult>> runBatchesLocally(TestBatchQueue queue) {
+        File rootDir = getProject().getRootDir();
+        List<String> command = new ArrayList<>();
+        command.add(new File(rootDir, System.getProperty("os.name").toLowerCase().contains("windows") ? "gradlew.bat" : "gradlew").getAbsolutePath());
+        command.add("--daemon");
+        Arrays.stream((getGradleOptions(numberOfPods) + " " + getAdditionalArgs(taskToExecuteName.toLowerCase()) + " " + getLoggingLevel()).split("\\s+"))
+                .filter(option -> !option.isEmpty())
+                .forEach(command::add);
+        // Each fork copies the project, but not what any of its builds made.
+        List<File> buildDirs = getProject().getRootProject().getAllprojects().stream().map(Project::getBuildDir).collect(Collectors.toList());
+        LocalTestBatchRunner runner = new LocalTestBatchRunner(rootDir, command, new File(new File(getProject().getBuildDir(), "local-pods"), taskToExecuteName), buildDirs);
+
+        return IntStream.range(0, numberOfPods).mapToObj(podIdx -> CompletableFuture.supplyAsync(() -> {
+            try {
+                int resCode = queue.drain(podIdx, (fork, batch) -> failFast.record(runner.run(fork, batch)));
+                File testReports = new File(runner.getTestRunDirectory(podIdx), "test-reports");
+                return new KubePodResult(podIdx, resCode, runner.getOutputFile(podIdx), findFolderContainingBinaryResultsFile(testReports, "results.bin"));
+            } catch (Exception e) {
+                throw new InvalidUserCodeException("Failed to run batches on local fork " + podIdx, e);
+            }
+        }, executorService)).collect(Collectors.toList());
+    }
+
+    private CompletableFuture<KubePodResult> submitBatches(String namespace, TestBatchQueue queue, int podIdx, String podName) {
+        return CompletableFuture.supplyAsync(() -> {
+            PersistentVolumeClaim pvc = createPvc(podName);
+            return runBatchesOnPod(namespace, queue, podIdx, podName, pvc);
+        }, executorService);
+    }
+
+    /**
+     * Prepare the pod once, then run batches from the queue on it until there are none left.  If we lose the pod,
+     * its batch goes back on the queue for the other pods, so we don't retry it.  On a pod we can't tell a failed test
+     * from a broken pod, so a batch that fails counts as losing the pod, and goes back on the queue too, until it has
+     * failed {@link TestBatchQueue#MAX_ATTEMPTS} times.  A lost pod is replaced, as pods are lost to failed tests far
+     * more often than to the cluster, but only so many times, and not once the group is cancelled.
+     */
+    private KubePodResult runBatchesOnPod(String namespace, TestBatchQueue queue, int podIdx, String podName, PersistentVolumeClaim pvc) {
+        addShutdownHook(() -> {
+            System.out.println("deleting pod: " + podName);
+            try (KubernetesClient client = getKubernetesClient()) {
+                client.pods().inNamespace(namespace).withName(podName).delete();
+            }
+        });
+
+        File outputFile = getOutputFileForPod(podIdx);
+        AtomicInteger resCode = new AtomicInteger(0);
+        Pod createdPod = null;
+        for (int podAttempt = 1; ; podAttempt++) {
+            try {
+                outputFile.createNewFile();
+                try (KubernetesClient client = getKubernetesClient()) {
+                    deletePodAndWaitForDeletion(namespace, podName, client);
+                    getProject().getLogger().lifecycle("creating pod: " + podName);
+                    synchronized (this) {
+                        createdPod = client.pods().inNamespace(namespace).create(buildPodRequest(podName, pvc, sidecarImage != null, podIdx));
+                        waitForPodToStart(createdPod);
+                    }
+                    remainingPods.add(podName);
+                    getProject().getLogger().lifecycle("scheduled pod: " + podName);
+                }
+                attachStatusListenerToPod(createdPod);
+
+                if (execOnPod(namespace, podIdx, podName, getPreparationCommand(), outputFile) != 0) {
+                    throw new InvalidUserCodeException("Failed to prepare pod " + podName);
+                }
+                queue.drain(podIdx, (fork, batch) -> {
+                    getProject().getLogger().lifecycle("running batch " + batch.getId() + " of " + batch.getTaskPath() + " on pod " + podName
+                            + " (attempt " + batch.getAttempts() + ")");
+                    int batchResCode = failFast.record(execOnPod(namespace, podIdx, podName, getBatchCommand(numberOfPods, podIdx, podName, batch), outputFile));
+                    // Only a failure we believe is the pod's result;  the others are run again elsewhere.
+                    if (batchResCode == 0 || batch.getAttempts() >= TestBatchQueue.MAX_ATTEMPTS || queue.isCancelled()) {
+                        resCode.compareAndSet(0, batchResCode);
+                    }
+                    return batchResCode;
+                }, TestBatchQueue.MAX_ATTEMPTS);
+                break;
+            } catch (Exception e) {
+                if (podAttempt >= MAX_POD_ATTEMPTS || failFast.isCancelled() || queue.size() == 0) {
+                    getProject().getLogger().warn("Lost pod " + podName + ", the other pods will run the rest of its tests", e);
+                    break;
+                }
+                getProject().getLogger().warn("Lost pod " + podName + ", replacing it (attempt " + (podAttempt + 1) + " of " + MAX_POD_ATTEMPTS + ")", e);
+            }
+        }
+
+        Collection<File> binaryResults = Collections.emptyList();
+        try (KubernetesClient client = getKubernetesClient()) {
+            if (createdPod != null) {
+                binaryResults = downloadTestXmlFromPod(namespace, createdPod);
+            }
+            getLogger().lifecycle("removing pod " + podName + " after its last batch");
+            deletePodAndWaitForDeletion(namespace, podName, client);
+            client.persistentVolumeClaims().delete(pvc);
+            remainingPods.remove(podName);
+        } catch (Exception e) {
+            getProject().getLogger().warn("Could not gather results from pod " + podName, e);
+        }
+        return new KubePodResult(podIdx, resCode.get(), outputFile, binaryResults);
+    }
+
+    private int execOnPod(String namespace, int podIdx, String podName, String[] command, File outputFile) throws IOException {
+        PipedOutputStream stdOutOs = new PipedOutputStream();
+        PipedInputStream stdOutIs = new PipedInputStream(4096);
+        ByteArrayOutputStream errChannelStream = new ByteArrayOutputStream();
+        return executeBuild(namespace, command, podIdx, podName, getPodLogsDirectory(), printOutput, stdOutOs, stdOutIs, errChannelStream, outputFile).join();
+    }
+
+    private void deleteTestPlan() {
+        if (testPlanConfigMap != null) {
+            try (KubernetesClient client = getKubernetesClient()) {
+                client.configMaps().inNamespace(NAMESPACE).withName(testPlanConfigMap).delete();
+            }
+        }
     }
 
     private void tearDownOrphanedAzureSQLDbs() {
@@ -190,6 +469,12 @@ public class KubesTest extends DefaultTask {
         return provisionalName.substring(Math.max(provisionalName.length() - magicMaxLength, 0));
     }
 
+    @NotNull
+    private String generateTestPlanName(String stableRunId, String random) {
+        String provisionalName = taskToExecuteName.toLowerCase() + "-" + stableRunId + "-" + random + "-plan";
+        return provisionalName.substring(Math.max(provisionalName.length() - 63, 0));
+    }
+
     @NotNull
     private synchronized KubernetesClient getKubernetesClient() {
 
@@ -287,16 +572,16 @@ public class KubesTest extends DefaultTask {
 
         int podNumber = podIdx + 1;
         final AtomicInteger testRetries = new AtomicInteger(0);
-        File podLogsDirectory = new File(getProject().getBuildDir(), "pod-logs");
-        if (!podLogsDirectory.exists()) {
-            podLogsDirectory.mkdirs();
-        }
-        File outputDir = new File(podLogsDirectory, taskToExecuteName);
-        outputDir.mkdirs();
-        File outputFile = new File(outputDir, "container-" + podIdx + ".log");
+        File podLogsDirectory = getPodLogsDirectory();
+        File outputFile = getOutputFileForPod(podIdx);
         try {
             // pods might die, so we retry
             return Retry.fixed(numberOfRetries, getProject().getLogger()).call(() -> {
+                if (failFast.isCancelled()) {
+                    getProject().getLogger().lifecycle("not running pod " + podName + " (" + podNumber + "/" + numberOfPods + "), the group was cancelled after "
+                            + failFast.getFailures() + " failed builds");
+                    return new KubePodResult(podIdx, FailFast.CANCELLED, outputFile, Collections.emptyList());
+                }
                 outputFile.createNewFile();
                 // remove pod if exists
                 Pod createdPod;
@@ -312,16 +597,30 @@ public class KubesTest extends DefaultTask {
                 }
 
                 attachStatusListenerToPod(createdPod);
-                PipedOutputStream stdOutOs = new PipedOutputStream();
-                PipedInputStream stdOutIs = new PipedInputStream(4096);
-                ByteArrayOutputStream errChannelStream = new ByteArrayOutputStream();
+                // If the group is cancelled while this pod is building, stop it.  We then come round again, and give up.
+                // Each attempt registers its own, and forgets it once the build ends, so retries don't pile them up.
+                Runnable cancelPod = () -> {
+                    getProject().getLogger().lifecycle("cancelling pod " + podName);
+                    try (KubernetesClient client = getKubernetesClient()) {
+                        client.pods().inNamespace(namespace).withName(podName).delete();
+                    }
+                };
+                failFast.onCancel(cancelPod);
+                int resCode;
+                try {
+                    PipedOutputStream stdOutOs = new PipedOutputStream();
+                    PipedInputStream stdOutIs = new PipedInputStream(4096);
+                    ByteArrayOutputStream errChannelStream = new ByteArrayOutputStream();
 
-                CompletableFuture<Integer> waiter = executeBuild(namespace, numberOfPods, podIdx, podName, podLogsDirectory, printOutput, stdOutOs, stdOutIs, errChannelStream, outputFile);
-                int resCode = waiter.join();
+                    CompletableFuture<Integer> waiter = executeBuild(namespace, getBuildCommand(numberOfPods, podIdx, podName), podIdx, podName, podLogsDirectory, printOutput, stdOutOs, stdOutIs, errChannelStream, outputFile);
+                    resCode = waiter.join();
+                } finally {
+                    failFast.removeOnCancel(cancelPod);
+                }
                 getProject().getLogger().lifecycle("build has ended on on pod " + podName + " (" + podNumber + "/" + numberOfPods + ") with result " + resCode + " , gathering results");
                 Collection<File> binaryResults;
                 //we don't retry on the final attempt as this will crash the build and some pods might not get to finish
-                if (resCode != 0 && testRetries.getAndIncrement() < numberOfRetries - 1) {
+                if (resCode != 0 && !failFast.recordFailure() && testRetries.getAndIncrement() < numberOfRetries - 1) {
                     downloadTestXmlFromPod(namespace, createdPod);
                     getProject().getLogger().lifecycle("There are test failures in this pod. Retrying failed tests!!!");
                     throw new InvalidUserCodeException("There are test failures in this pod");
@@ -359,6 +658,20 @@ public class KubesTest extends DefaultTask {
         }
     }
 
+    private File getPodLogsDirectory() {
+        File podLogsDirectory = new File(getProject().getBuildDir(), "pod-logs");
+        if (!podLogsDirectory.exists()) {
+            podLogsDirectory.mkdirs();
+        }
+        return podLogsDirectory;
+    }
+
+    private File getOutputFileForPod(int podIdx) {
+        File outputDir = new File(getPodLogsDirectory(), taskToExecuteName);
+        outputDir.mkdirs();
+        return new File(outputDir, "container-" + podIdx + ".log");
+    }
+
     private void deletePodAndWaitForDeletion(String namespace, String podName, KubernetesClient client) {
         RetryablePodOperations oldPod = new RetryablePodOperations(client.pods().inNamespace(namespace).withName(podName));
         if (oldPod.get() != null) {
@@ -377,7 +690,7 @@ public class KubesTest extends DefaultTask {
 
     @NotNull
     private CompletableFuture<Integer> executeBuild(String namespace,
-                                                    int numberOfPods,
+                                                    String[] buildCommand,
                                                     int podIdx,
                                                     String podName,
                                                     File podLogsDirectory,
@@ -393,7 +706,6 @@ public class KubesTest extends DefaultTask {
         ExecListener execListener = buildExecListenerForPod(podName, errChannelStream, waiter, client);
         stdOutIs.connect(stdOutOs);
 
-        String[] buildCommand = getBuildCommand(numberOfPods, podIdx, podName);
         getProject().getLogger().quiet("About to execute " + Arrays.stream(buildCommand).reduce("", (s, s2) -> s + " " + s2) + " on pod " + podName);
         client.pods().inNamespace(namespace).withName(podName)
                 .inContainer(podName)
@@ -407,6 +719,30 @@ public class KubesTest extends DefaultTask {
     }
 
     private Pod buildPodRequest(String podName, PersistentVolumeClaim pvc, boolean withDb, int podIdx) {
+        return withTestPlan(buildPodRequestWithoutTestPlan(podName, pvc, withDb, podIdx), podIdx);
+    }
+
+    /**
+     * Mount the pod's slice of the test plan, if we made one.  The worker is always the first container.
+     */
+    private Pod withTestPlan(Pod pod, int podIdx) {
+        if (testPlanConfigMap == null) {
+            return pod;
+        }
+        String fileName = TestPlanFile.getFileName(podIdx);
+        pod.getSpec().getVolumes().add(new VolumeBuilder()
+                .withName("testplan")
+                .withNewConfigMap()
+                .withName(testPlanConfigMap)
+                .addNewItem().withKey(fileName).withPath(fileName).endItem()
+                .endConfigMap()
+                .build());
+        pod.getSpec().getContainers().get(0).getVolumeMounts().add(new VolumeMountBuilder()
+                .withName("testplan").withMountPath(TEST_PLAN_DIR).withReadOnly(true).build());
+        return pod;
+    }
+
+    private Pod buildPodRequestWithoutTestPlan(String podName, PersistentVolumeClaim pvc, boolean withDb, int podIdx) {
         if (additionalArgs.stream().anyMatch(arg -> arg.contains("azure"))) {
             // Azure SQL
             setUpAzureSQLDbSchemaForPod(podName);
@@ -422,7 +758,7 @@ public class KubesTest extends DefaultTask {
 
     private Pod buildPodRequestWithOnlyWorkerNode(String podName, PersistentVolumeClaim pvc, int podIdx) {
         return getBasePodDefinition(podName, pvc, podIdx)
-                .addToRequests("cpu", new Quantity(numberOfCoresPerFork.toString()))
+                .addToRequests("cpu", new Quantity(Integer.toString(getCoresForFork(podIdx))))
                 .addToRequests("memory", new Quantity(memoryGbPerFork.toString()))
                 .endResources()
                 .addNewVolumeMount().withName("gradlecache").withMountPath("/tmp/gradle").endVolumeMount()
@@ -436,7 +772,7 @@ public class KubesTest extends DefaultTask {
 
     private Pod buildPodRequestWithWorkerNodeAndDbContainer(String podName, PersistentVolumeClaim pvc, int podIdx) {
         return getBasePodDefinition(podName, pvc, podIdx)
-                .addToRequests("cpu", new Quantity(Integer.valueOf(numberOfCoresPerFork - 1).toString()))
+                .addToRequests("cpu", new Quantity(Integer.valueOf(getCoresForFork(podIdx) - 1).toString()))
                 .addToRequests("memory", new Quantity(Integer.valueOf(memoryGbPerFork - 1).toString() + "Gi"))
                 .endResources()
                 .addNewVolumeMount().withName("gradlecache").withMountPath("/tmp/gradle").endVolumeMount()
@@ -582,25 +918,119 @@ public class KubesTest extends DefaultTask {
         return findFolderContainingBinaryResultsFile(new File(tempDir.toFile().getAbsolutePath()), binaryResultsFile);
     }
 
-    private String[] getBuildCommand(int numberOfPods, int podIdx, String podName) {
+    private int getCoresForFork(int podIdx) {
+        return coresByFork.isEmpty() ? numberOfCoresPerFork : coresByFork.get(podIdx % coresByFork.size());
+    }
+
+    /**
+     * Each fork's cores relative to the default, so the test plan can give the bigger forks more work.
+     */
+    private String getForkCapacities(int numberOfPods) {
+        if (coresByFork.isEmpty()) {
+            return "";
+        }
+        return " -D" + BucketingAllocator.FORK_CAPACITIES_PROPERTY + "=" + IntStream.range(0, numberOfPods)
+                .mapToObj(podIdx -> Double.toString((double) getCoresForFork(podIdx) / numberOfCoresPerFork))
+                .collect(Collectors.joining(","));
+    }
+
+    private String getTestPlanFile(int podIdx) {
+        return testPlanConfigMap == null ? "" : " -D" + TestPlanFile.PROPERTY + "=" + TEST_PLAN_DIR + "/" + TestPlanFile.getFileName(podIdx);
+    }
+
+    /**
+     * Where builds on a pod keep their test runs;  a local stand-in for a pod can put them elsewhere.
+     */
+    static String getTestRunDir() {
+        String testRunDir = Properties.getProperty(LocalTestBatchRunner.TEST_RUN_DIR_PROPERTY);
+        return testRunDir.isEmpty() ? TEST_RUN_DIR : testRunDir;
+    }
+
+    private String getPreparationScript() {
+        return "(let x=1 ; while [ ${x} -ne 0 ] ; do echo \"Waiting for DNS\" ; curl services.gradle.org > /dev/null 2>&1 ; x=$? ; sleep 1 ; done ) && "
+                + " cd /tmp/source && " +
+                "(let y=1 ; while [ ${y} -ne 0 ] ; do echo \"Preparing build directory\" ; ./gradlew --no-daemon testClasses integrationTestClasses --parallel -P" + ListTests.PREBUILD_PROPERTY + "=false 2>&1 ; y=$? ; sleep 1 ; done )";
+    }
+
+    private String getGradleOptions(int numberOfPods) {
         final String gitBranch = " -Dgit.branch=" + Properties.getGitBranch();
-        final String gitTargetBranch = " -Dgit.target.branch=" + Properties.getTargetGitBranch();
+        // As given, rather than as a tag, as it names a branch.
+        final String gitTargetBranch = " -D" + TestImpactAnalysis.TARGET_BRANCH_PROPERTY + "=" + Properties.getProperty(TestImpactAnalysis.TARGET_BRANCH_PROPERTY);
         final String artifactoryUsername = " -Dartifactory.username=" + Properties.getUsername() + " ";
         final String artifactoryPassword = " -Dartifactory.password=" + Properties.getPassword() + " ";
 
-        String shellScript = "(let x=1 ; while [ ${x} -ne 0 ] ; do echo \"Waiting for DNS\" ; curl services.gradle.org > /dev/null 2>&1 ; x=$? ; sleep 1 ; done ) && "
-                + " cd /tmp/source && " +
-                "(let y=1 ; while [ ${y} -ne 0 ] ; do echo \"Preparing build directory\" ; ./gradlew --no-daemon testClasses integrationTestClasses --parallel 2>&1 ; y=$? ; sleep 1 ; done ) && " +
-                "(./gradlew --no-daemon -D" + ListTests.DISTRIBUTION_PROPERTY + "=" + distribution.name() +
+        return " -D" + ListTests.DISTRIBUTION_PROPERTY + "=" + distribution.name() +
+                " -D" + BucketingAllocator.ALLOCATION_STRATEGY_PROPERTY + "=" + allocationStrategy.name() +
+                " -D" + BucketingAllocator.DURATION_DEVIATIONS_PROPERTY + "=" + durationDeviations +
+                // The pods have no git history, and are sent the tests that impact analysis selected in the test plan.
+                " -D" + TestImpactAnalysis.PROPERTY + "=false" +
+                " -D" + ListTests.THREADS_PROPERTY + "=" + testDiscoveryThreads +
+                // The image was built with the test lists, and the pods only list tests when they need to.
+                " -P" + ListTests.PREBUILD_PROPERTY + "=false" +
+                " -D" + ListTests.PREBUILT_PROPERTY + "=true" +
+                " -D" + Tests.DURATION_MODEL_PROPERTY + "=" + durationModel.name() +
+                " -D" + Tests.DURATION_HALF_LIFE_PROPERTY + "=" + durationHalfLife +
+                " -D" + Tests.DURATION_OUTLIER_FACTOR_PROPERTY + "=" + durationOutlierFactor +
+                getForkCapacities(numberOfPods) +
+                " -D" + BucketingAllocator.PLAN_CACHE_PROPERTY + "=/tmp/gradle/test-plans" +
                 gitBranch +
                 gitTargetBranch +
                 artifactoryUsername +
                 artifactoryPassword +
-                "-Dkubenetize -PdockerFork=" + podIdx + " -PdockerForks=" + numberOfPods + " " + fullTaskToExecutePath + " " + getAdditionalArgs(podName) + " " + getLoggingLevel() + " 2>&1) ; " +
+                "-Dkubenetize -PdockerForks=" + numberOfPods;
+    }
+
+    private String[] getBuildCommand(int numberOfPods, int podIdx, String podName) {
+        String shellScript = "forkStart=$(date +%s%3N) ; " + getPreparationScript() + " && " +
+                "(./gradlew --no-daemon" + getGradleOptions(numberOfPods) +
+                " -D" + PhaseTimings.FORK_START_PROPERTY + "=${forkStart}" +
+                getTestPlanFile(podIdx) +
+                " -PdockerFork=" + podIdx + " " + getTasksToExecute(podIdx) + " " + getAdditionalArgs(podName) + " " + getLoggingLevel() + " 2>&1) ; " +
                 "let rs=$? ; sleep 10 ; exit ${rs}";
         return new String[]{"bash", "-c", shellScript};
     }
 
+    /**
+     * The Test tasks for the pod to run:  those of its slice of the plan first, in plan order so that the one most
+     * likely to fail runs first, then the rest.  Gradle runs tasks that don't depend on each other in the order asked.
+     * Only a plan shipped from the client can order them:  a pod that makes its own plan does so once Gradle has
+     * already fixed the order, and planning in a build of its own first would cost the pod as much again.
+     */
+    private String getTasksToExecute(int podIdx) {
+        if (testPlanConfigMap == null || podIdx >= testPlanTaskOrder.size()) {
+            return fullTaskToExecutePath;
+        }
+        Set<String> tasks = new LinkedHashSet<>(testPlanTaskOrder.get(podIdx));
+        tasks.addAll(Arrays.asList(fullTaskToExecutePath.split(" ")));
+        return String.join(" ", tasks);
+    }
+
+    private String[] getPreparationCommand() {
+        return new String[]{"bash", "-c", getPreparationScript()};
+    }
+
+    /**
+     * Run one batch of a work stealing group.  The batch is small enough to pass on the command line, and the
+     * Gradle daemon stays up between batches so that only the first pays for starting it.
+     */
+    private String[] getBatchCommand(int numberOfPods, int podIdx, String podName, TestBatchQueue.TestBatch batch) {
+        StringWriter slice = new StringWriter();
+        TestPlanFile.write(batch.buckets, slice);
+        String batchFile = TEST_BATCH_DIR + "/" + batch.getFileName();
+        // If it fails, and will be run again elsewhere, we don't want its results from here too.
+        String onFailure = batch.getAttempts() < TestBatchQueue.MAX_ATTEMPTS ?
+                " ; let rs=$? ; [ ${rs} -eq 0 ] || rm -rf " + TEST_RUN_DIR + "/test-reports/*-batch" + batch.getId() + " ; exit ${rs}" : "";
+        String shellScript = "forkStart=$(date +%s%3N) ; mkdir -p " + TEST_BATCH_DIR + " && echo " + Base64.getEncoder().encodeToString(slice.toString().getBytes(StandardCharsets.UTF_8)) +
+                " | base64 -d > " + batchFile + " && cd /tmp/source && " +
+                "(./gradlew --daemon" + getGradleOptions(numberOfPods) +
+                " -D" + PhaseTimings.FORK_START_PROPERTY + "=${forkStart}" +
+                " -D" + TestPlanFile.PROPERTY + "=" + batchFile +
+                " -D" + TestBatchQueue.BATCH_PROPERTY + "=" + batch.getId() +
+                " -PdockerFork=" + podIdx + " " + batch.getTaskPath() + " " + getAdditionalArgs(podName) + " " + getLoggingLevel() + " 2>&1)" +
+                onFailure;
+        return new String[]{"bash", "-c", shellScript};
+    }
+
     private String getAdditionalArgs(String podName) {
         return this.additionalArgs.isEmpty() ? "" : String.join(" ", reworkDbNameForASQL(this.additionalArgs, podName));
     }
@@ -1,33 +1,127 @@
 package com.r3.testing;
 
-import io.github.classgraph.ClassGraph;
-import io.github.classgraph.ClassInfo;
-import io.github.classgraph.ClassInfoList;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
 import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.LocalState;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
-import org.jetbrains.annotations.NotNull;
+import org.gradle.workers.WorkerExecutor;
 
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 interface TestLister {
     List<String> getAllTestsDiscovered();
 }
 
+/**
+ * Lists the tests of a Test task, from the class files in its classes directories.  What each class file declares
+ * is kept in a {@link TestDiscoveryIndex} between builds, so only changed class files are read again, and the list
+ * itself is an output, so an unchanged task is up to date, or comes from the build cache.  With test impact analysis
+ * the list depends on git too, so then the task always runs.  The discovery itself is a {@link TestDiscoveryWork},
+ * so that the tests of every module are discovered in parallel.
+ */
+@CacheableTask
 public class ListTests extends DefaultTask implements TestLister {
 
     public static final String DISTRIBUTION_PROPERTY = "distributeBy";
+    public static final String THREADS_PROPERTY = "testDiscoveryThreads";
+    // A project property:  list the tests as soon as they're compiled, so that the image we build carries the lists
+    // and their index, and its pods needn't read the class files again.
+    public static final String PREBUILD_PROPERTY = "prebuildTestIndex";
+    // A system property set on the pods, whose image should already have listed the tests.
+    public static final String PREBUILT_PROPERTY = "testListsPrebuilt";
 
     public FileCollection scanClassPath;
+    // This build's own classes that the tests may depend on:  they may inherit tests from them, and test impact
+    // analysis follows the dependencies through them.
+    public FileCollection dependencyClassPath;
     private List<String> allTests;
     private DistributeTestsBy distribution = System.getProperty(DISTRIBUTION_PROPERTY) != null && !System.getProperty(DISTRIBUTION_PROPERTY).isEmpty() ?
             DistributeTestsBy.valueOf(System.getProperty(DISTRIBUTION_PROPERTY)) : DistributeTestsBy.METHOD;
+    private boolean impactAnalysis = Boolean.parseBoolean(Properties.getProperty(TestImpactAnalysis.PROPERTY));
+    // How many threads ClassGraph scans with, or zero for its default.
+    private int threads = !Properties.getProperty(THREADS_PROPERTY).isEmpty() ? Integer.parseInt(Properties.getProperty(THREADS_PROPERTY)) : 0;
+
+    public ListTests() {
+        getOutputs().upToDateWhen(task -> !impactAnalysis);
+        getOutputs().cacheIf("test impact analysis depends on what git says has changed", task -> !impactAnalysis);
+    }
+
+    @Classpath
+    public FileCollection getScanClassPath() {
+        return scanClassPath != null ? scanClassPath : getProject().files();
+    }
+
+    // The tests may inherit test methods from another module's classes.
+    @Classpath
+    public FileCollection getDependencyClassPath() {
+        return dependencyClassPath != null ? dependencyClassPath : getScanClassPath();
+    }
+
+    // The list is always of test methods, and only grouped by class as we read it, so the same list serves either
+    // distribution, and one listed as the image was built is up to date on its pods, whichever they use.
+    @Internal
+    public DistributeTestsBy getDistribution() {
+        return distribution;
+    }
+
+    @Input
+    public boolean getImpactAnalysis() {
+        return impactAnalysis;
+    }
+
+    @Internal
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * The test methods we found, one per line.
+     */
+    @OutputFile
+    public File getTestsFile() {
+        return new File(new File(getProject().getBuildDir(), "test-lists"), getName() + ".txt");
+    }
+
+    /**
+     * What we found in each class file last time, only of use to this task on this machine.
+     */
+    @LocalState
+    public File getIndexFile() {
+        return new File(new File(getProject().getBuildDir(), "test-lists"), getName() + "-index-v" + TestDiscoveryIndex.VERSION + ".csv");
+    }
+
+    public void setDistribution(DistributeTestsBy distribution) {
+        this.distribution = distribution;
+    }
+
+    /**
+     * Scan the classes for test impact analysis with this many threads, e.g. more for a large module, or zero for
+     * ClassGraph's default.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Only list the tests that depend on code changed since this branch left its target branch.
+     */
+    public void setImpactAnalysis(boolean impactAnalysis) {
+        this.impactAnalysis = impactAnalysis;
+    }
 
     public List<String> getTestsForFork(int fork, int forks, Integer seed) {
         BigInteger gitSha = new BigInteger(getProject().hasProperty("corda_revision") ?
@@ -36,61 +130,57 @@ public class ListTests extends DefaultTask implements TestLister {
             throw new IllegalArgumentException("requested shard " + (fork + 1) + " for total shards " + forks);
         }
         int seedToUse = seed != null ? (seed + (this.getPath()).hashCode() + gitSha.intValue()) : 0;
-        return new ListShufflerAndAllocator(allTests).getTestsForFork(fork, forks, seedToUse);
+        return new ListShufflerAndAllocator(getAllTestsDiscovered()).getTestsForFork(fork, forks, seedToUse);
     }
 
     @Override
     public List<String> getAllTestsDiscovered() {
-        return new ArrayList<>(allTests);
+        if (allTests == null) {
+            // We were up to date, or came from the build cache.
+            try {
+                allTests = Files.readAllLines(getTestsFile().toPath(), StandardCharsets.UTF_8).stream()
+                        .filter(line -> !line.isEmpty()).collect(Collectors.toList());
+            } catch (IOException e) {
+                throw new GradleException("Could not read the tests listed by " + getPath() + " from " + getTestsFile(), e);
+            }
+        }
+        return distribution == DistributeTestsBy.CLASS ? getClasses(allTests) : new ArrayList<>(allTests);
+    }
+
+    /**
+     * @param testMethods test names, as "class.method"
+     * @return the classes they belong to, sorted.
+     */
+    static List<String> getClasses(List<String> testMethods) {
+        return testMethods.stream().map(test -> test.lastIndexOf('.') > 0 ? test.substring(0, test.lastIndexOf('.')) : test)
+                .distinct().sorted().collect(Collectors.toList());
     }
 
+    @Inject
+    protected WorkerExecutor getWorkerExecutor() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Hand the discovery to a worker, so that Gradle can discover the tests of other modules at the same time.  The
+     * task isn't done, and the tests file isn't read, until the worker has finished.
+     */
     @TaskAction
     void discoverTests() {
-        Collection<String> results;
-        switch (distribution) {
-            case METHOD:
-                results = getClassGraphStreamOfTestClasses()
-                        .map(classInfo -> classInfo.getMethodInfo().filter(methodInfo -> methodInfo.hasAnnotation("org.junit.Test"))
-                                .stream().map(methodInfo -> classInfo.getName() + "." + methodInfo.getName()))
-                        .flatMap(Function.identity())
-                        .collect(Collectors.toSet());
-
-                this.allTests = results.stream().sorted().collect(Collectors.toList());
-                break;
-            case CLASS:
-                results = getClassGraphStreamOfTestClasses()
-                        .map(ClassInfo::getName)
-                        .collect(Collectors.toSet());
-                this.allTests = results.stream().sorted().collect(Collectors.toList());
-                break;
+        allTests = null;
+        if (Boolean.parseBoolean(Properties.getProperty(PREBUILT_PROPERTY))) {
+            getLogger().warn("####### TEST DISCOVERY: {} is listing the tests again, though the image should have listed them #######", getPath());
         }
+        getWorkerExecutor().classLoaderIsolation().submit(TestDiscoveryWork.class, parameters -> {
+            parameters.getTaskPath().set(getPath());
+            parameters.getClassesDirs().from(getScanClassPath());
+            parameters.getIndexFile().set(getIndexFile());
+            parameters.getTestsFile().set(getTestsFile());
+            parameters.getImpactAnalysis().set(impactAnalysis);
+            parameters.getDependencyClassPath().from(getDependencyClassPath());
+            parameters.getRootDir().set(getProject().getRootDir());
+            parameters.getTargetBranch().set(Properties.getProperty(TestImpactAnalysis.TARGET_BRANCH_PROPERTY));
+            parameters.getThreads().set(threads);
+        });
     }
-
-    @NotNull
-    private Stream<ClassInfo> getClassGraphStreamOfTestClasses() {
-        Stream<ClassInfo> junit4ClassGraphStream = getClassGraphStreamForAnnotation("org.junit.Test");
-        Stream<ClassInfo> junit5ClassGraphStream = getClassGraphStreamForAnnotation("org.junit.jupiter.api.Test");
-        return Stream.concat(junit4ClassGraphStream, junit5ClassGraphStream);
-    }
-
-    @NotNull
-    private Stream<ClassInfo> getClassGraphStreamForAnnotation(String annotation) {
-        return new ClassGraph()
-                .enableClassInfo()
-                .enableMethodInfo()
-                .ignoreClassVisibility()
-                .ignoreMethodVisibility()
-                .enableAnnotationInfo()
-                .overrideClasspath(scanClassPath)
-                .scan()
-                .getClassesWithMethodAnnotation(annotation)
-                .stream()
-                .map(classInfo -> {
-                    ClassInfoList returnList = new ClassInfoList();
-                    returnList.add(classInfo);
-                    returnList.addAll(classInfo.getSubclasses());
-                    return returnList;
-                })
-                .flatMap(ClassInfoList::stream);
-    }
-}
\ No newline at end of file
+}
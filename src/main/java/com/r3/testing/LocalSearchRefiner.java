@@ -0,0 +1,151 @@
+package com.r3.testing;
+
+import com.r3.testing.BucketingAllocator.TestBucket;
+import com.r3.testing.BucketingAllocator.TestsForForkContainer;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Improves a test plan by repeatedly moving a bucket off the slowest fork, or swapping a bucket on the
+ * slowest fork for a shorter one elsewhere, whichever brings the pair of forks closest to level.
+ * <p>
+ * Every step strictly reduces the duration of the slowest fork without pushing the other fork up to it,
+ * so the search always terminates.  It is bounded by a number of steps rather than by wall-clock time,
+ * because every pod computes the plan for itself and they must all arrive at the same one.
+ * <p>
+ * Moves and swaps are costed including class and Test task setup:  a fork gains it with the first bucket of a
+ * class or task and loses it with the last, so a bucket may also move to a fork already running its class or task.
+ */
+class LocalSearchRefiner {
+    static final int DEFAULT_MAX_STEPS = 10_000;
+
+    private final List<TestsForForkContainer> forkContainers;
+    private final int maxSteps;
+    // Per fork, the buckets sorted by duration, for finding swap candidates.  Null when stale.
+    private final TestBucket[][] sortedBuckets;
+    private final long[][] sortedDurations;
+
+    LocalSearchRefiner(@NotNull final List<TestsForForkContainer> forkContainers, int maxSteps) {
+        this.forkContainers = forkContainers;
+        this.maxSteps = maxSteps;
+        this.sortedBuckets = new TestBucket[forkContainers.size()][];
+        this.sortedDurations = new long[forkContainers.size()][];
+    }
+
+    /**
+     * @return the number of moves and swaps made.
+     */
+    int refine() {
+        int steps = 0;
+        while (steps < maxSteps && step()) {
+            steps++;
+        }
+        return steps;
+    }
+
+    private boolean step() {
+        int slowest = 0;
+        int fastest = 0;
+        for (int i = 1; i < forkContainers.size(); i++) {
+            if (load(i) > load(slowest)) slowest = i;
+            if (load(i) < load(fastest)) fastest = i;
+        }
+        if (slowest == fastest) {
+            return false;
+        }
+        final long makespan = load(slowest);
+
+        // The best candidate is the one that leaves the larger of the two forks smallest.
+        long bestPairMax = makespan;
+        TestBucket bestFromSlowest = null;
+        TestBucket bestFromOther = null;
+        int bestOther = -1;
+
+        // A move is best made to the fastest fork, or to a fork that already pays for the bucket's class setup.
+        final TestsForForkContainer from = forkContainers.get(slowest);
+        for (TestBucket bucket : buckets(slowest)) {
+            for (int other = 0; other < forkContainers.size(); other++) {
+                final TestsForForkContainer to = forkContainers.get(other);
+                if (other != fastest && (other == slowest || !sharesSetup(to, bucket))) continue;
+                final long pairMax = Math.max(from.durationWith(-from.removedCost(bucket)), to.durationWith(to.addedCost(bucket)));
+                if (pairMax < bestPairMax) {
+                    bestPairMax = pairMax;
+                    bestFromSlowest = bucket;
+                    bestFromOther = null;
+                    bestOther = other;
+                }
+            }
+        }
+
+        // A swap with any other fork:  we want the difference in work to close the gap, shared between the two
+        // forks in proportion to their capacities (i.e. half of it, for forks of equal capacity).
+        for (int other = 0; other < forkContainers.size(); other++) {
+            if (other == slowest) continue;
+            final long gap = makespan - load(other);
+            final long idealDifference = Math.round(gap / (1.0 / from.getCapacity() + 1.0 / forkContainers.get(other).getCapacity()));
+            final long[] durations = durations(other);
+            for (TestBucket bucket : buckets(slowest)) {
+                final long ideal = bucket.durationNanos - idealDifference;
+                final int found = Arrays.binarySearch(durations, ideal);
+                final int insertionPoint = found >= 0 ? found : -(found + 1);
+                for (int i = Math.max(insertionPoint - 1, 0); i <= Math.min(insertionPoint, durations.length - 1); i++) {
+                    final long difference = bucket.durationNanos - durations[i];
+                    if (difference <= 0) continue;
+                    final long pairMax = pairMaxAfterSwap(slowest, bucket, other, sortedBuckets[other][i]);
+                    if (pairMax < bestPairMax) {
+                        bestPairMax = pairMax;
+                        bestFromSlowest = bucket;
+                        bestFromOther = sortedBuckets[other][i];
+                        bestOther = other;
+                    }
+                }
+            }
+        }
+
+        if (bestFromSlowest == null) {
+            return false;
+        }
+
+        forkContainers.get(slowest).removeBucket(bestFromSlowest);
+        forkContainers.get(bestOther).addBucket(bestFromSlowest);
+        if (bestFromOther != null) {
+            forkContainers.get(bestOther).removeBucket(bestFromOther);
+            forkContainers.get(slowest).addBucket(bestFromOther);
+        }
+        sortedBuckets[slowest] = null;
+        sortedBuckets[bestOther] = null;
+        return true;
+    }
+
+    private long pairMaxAfterSwap(int slowest, @NotNull final TestBucket fromSlowest, int other, @NotNull final TestBucket fromOther) {
+        return Math.max(forkContainers.get(slowest).durationWith(forkContainers.get(slowest).swappedCost(fromSlowest, fromOther)),
+                forkContainers.get(other).durationWith(forkContainers.get(other).swappedCost(fromOther, fromSlowest)));
+    }
+
+    private static boolean sharesSetup(@NotNull final TestsForForkContainer container, @NotNull final TestBucket bucket) {
+        return (bucket.classSetupNanos > 0L && container.runsClass(bucket.className))
+                || (bucket.taskSetupNanos > 0L && container.runsTask(bucket.testTask));
+    }
+
+    private long load(int fork) {
+        return forkContainers.get(fork).getCurrentDuration();
+    }
+
+    private TestBucket[] buckets(int fork) {
+        if (sortedBuckets[fork] == null) {
+            final TestBucket[] buckets = forkContainers.get(fork).getBucketsForFork().toArray(new TestBucket[0]);
+            Arrays.sort(buckets, Comparator.comparingLong(TestBucket::getDuration));
+            sortedBuckets[fork] = buckets;
+            sortedDurations[fork] = Arrays.stream(buckets).mapToLong(TestBucket::getDuration).toArray();
+        }
+        return sortedBuckets[fork];
+    }
+
+    private long[] durations(int fork) {
+        buckets(fork);
+        return sortedDurations[fork];
+    }
+}
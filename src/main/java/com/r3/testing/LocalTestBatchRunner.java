@@ -0,0 +1,133 @@
+package com.r3.testing;
+
+import com.r3.testing.TestBatchQueue.TestBatch;
+import com.r3.testing.TestBatchQueue.TestBatchRunner;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A stand-in for the pods in work stealing mode:  runs each batch as a process here, so that the whole mode can
+ * be tried out, and tested, without a cluster.  Each fork gets its own directory for its batches, its test run
+ * directory and the output of its builds.
+ * <p>
+ * Like a pod, each fork builds its own copy of the project, made before its first batch, as builds that run at
+ * once in the same project would share, and fight over, its build directories and Gradle's caches.
+ */
+class LocalTestBatchRunner implements TestBatchRunner {
+    static final String TEST_RUN_DIR_PROPERTY = "testRunDir";
+    // Not copied, wherever they are in the project.
+    private static final Set<String> NOT_COPIED = new HashSet<>(Arrays.asList(".git", ".gradle"));
+
+    private final File projectDirectory;
+    private final List<String> command;
+    private final File forksDirectory;
+    private final Set<Path> excluded;
+    private final Set<Integer> copied = new HashSet<>();
+
+    /**
+     * @param projectDirectory the project to build, e.g. the root project
+     * @param command          the build, e.g. gradlew and its options, to which we add the batch and its Test task
+     * @param forksDirectory   where to keep each fork's copy of the project, batches, test runs and output
+     * @param excluded         what not to copy, e.g. the build directories
+     */
+    LocalTestBatchRunner(@NotNull final File projectDirectory, @NotNull final List<String> command, @NotNull final File forksDirectory,
+                         @NotNull final Collection<File> excluded) {
+        this.projectDirectory = projectDirectory;
+        this.command = new ArrayList<>(command);
+        this.forksDirectory = forksDirectory;
+        this.excluded = excluded.stream().map(file -> file.getAbsoluteFile().toPath().normalize()).collect(Collectors.toSet());
+        this.excluded.add(forksDirectory.getAbsoluteFile().toPath().normalize());
+    }
+
+    @NotNull
+    File getForkDirectory(int fork) {
+        return new File(forksDirectory, "fork-" + fork);
+    }
+
+    @NotNull
+    File getProjectDirectory(int fork) {
+        return new File(getForkDirectory(fork), "project");
+    }
+
+    @NotNull
+    File getTestRunDirectory(int fork) {
+        return new File(getForkDirectory(fork), "test-runs");
+    }
+
+    @NotNull
+    File getOutputFile(int fork) {
+        return new File(getForkDirectory(fork), "output.log");
+    }
+
+    /**
+     * Copy the project for the fork to build, unless we already have.  A copy left by an earlier run is replaced.
+     */
+    private void copyProject(int fork) throws IOException {
+        synchronized (copied) {
+            if (!copied.add(fork)) {
+                return;
+            }
+        }
+        final Path target = getProjectDirectory(fork).toPath();
+        if (Files.exists(target)) {
+            try (Stream<Path> paths = Files.walk(target)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+        final Path source = projectDirectory.getAbsoluteFile().toPath().normalize();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (excluded.contains(dir) || (!dir.equals(source) && NOT_COPIED.contains(dir.getFileName().toString()))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public int run(int fork, @NotNull final TestBatch batch) throws IOException, InterruptedException {
+        copyProject(fork);
+        final File batchFile = new File(new File(getForkDirectory(fork), "batches"), batch.getFileName());
+        Files.createDirectories(batchFile.getParentFile().toPath());
+        Files.createDirectories(getTestRunDirectory(fork).toPath());
+        try (Writer writer = new FileWriter(batchFile)) {
+            if (!TestPlanFile.write(batch.buckets, writer)) {
+                throw new IOException("Could not write " + batchFile);
+            }
+        }
+
+        final List<String> batchCommand = new ArrayList<>(command);
+        batchCommand.add("-D" + TestPlanFile.PROPERTY + "=" + batchFile.getAbsolutePath());
+        batchCommand.add("-D" + TestBatchQueue.BATCH_PROPERTY + "=" + batch.getId());
+        batchCommand.add("-D" + TEST_RUN_DIR_PROPERTY + "=" + getTestRunDirectory(fork).getAbsolutePath());
+        batchCommand.add("-D" + PhaseTimings.FORK_START_PROPERTY + "=" + System.currentTimeMillis());
+        batchCommand.add("-PdockerFork=" + fork);
+        batchCommand.add(batch.getTaskPath());
+        final Process process = new ProcessBuilder(batchCommand)
+                .directory(getProjectDirectory(fork))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(getOutputFile(fork)))
+                .start();
+        return process.waitFor();
+    }
+}
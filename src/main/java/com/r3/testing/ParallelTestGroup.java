@@ -12,6 +12,19 @@ public class ParallelTestGroup extends DefaultTask {
     private List<String> groups = new ArrayList<>();
     private InfrastructureProfile profile;
     private DistributeTestsBy distribution = DistributeTestsBy.METHOD;
+    private AllocationStrategy allocationStrategy = AllocationStrategy.GREEDY;
+    private double durationDeviations = 0.0;
+    private DurationModel durationModel = DurationModel.MEAN;
+    private double durationHalfLife = Tests.DEFAULT_HALF_LIFE_IN_RUNS;
+    private double durationOutlierFactor = Tests.DEFAULT_OUTLIER_FACTOR;
+    private boolean planOnClient = false;
+    private boolean workStealing = false;
+    private int batchesPerPod = TestBatchQueue.DEFAULT_BATCHES_PER_FORK;
+    private long targetMinutes = 0L;
+    private double maxCoreHours = 0.0;
+    private int failFastAfter = 0;
+    private boolean testImpactAnalysis = false;
+    private int testDiscoveryThreads = 0;
     private String sidecarImage;
     private List<String> additionalArgs = new ArrayList<>();
 
@@ -19,6 +32,58 @@ public class ParallelTestGroup extends DefaultTask {
         return distribution;
     }
 
+    public AllocationStrategy getAllocationStrategy() {
+        return allocationStrategy;
+    }
+
+    public double getDurationDeviations() {
+        return durationDeviations;
+    }
+
+    public DurationModel getDurationModel() {
+        return durationModel;
+    }
+
+    public double getDurationHalfLife() {
+        return durationHalfLife;
+    }
+
+    public double getDurationOutlierFactor() {
+        return durationOutlierFactor;
+    }
+
+    public boolean getPlanOnClient() {
+        return planOnClient;
+    }
+
+    public boolean getWorkStealing() {
+        return workStealing;
+    }
+
+    public int getBatchesPerPod() {
+        return batchesPerPod;
+    }
+
+    public long getTargetMinutes() {
+        return targetMinutes;
+    }
+
+    public double getMaxCoreHours() {
+        return maxCoreHours;
+    }
+
+    public int getFailFastAfter() {
+        return failFastAfter;
+    }
+
+    public boolean getTestImpactAnalysis() {
+        return testImpactAnalysis;
+    }
+
+    public int getTestDiscoveryThreads() {
+        return testDiscoveryThreads;
+    }
+
     public List<String> getGroups() {
         return groups;
     }
@@ -31,6 +96,10 @@ public class ParallelTestGroup extends DefaultTask {
         return profile.getCoresPerFork();
     }
 
+    public List<Integer> getCoresByFork() {
+        return new ArrayList<>(profile.getCoresByFork());
+    }
+
     public int getGbOfMemory() {
         return profile.getMemoryInGbPerFork();
     }
@@ -67,6 +136,61 @@ public class ParallelTestGroup extends DefaultTask {
         this.distribution = dist;
     }
 
+    public void allocate(AllocationStrategy strategy) {
+        this.allocationStrategy = strategy;
+    }
+
+    public void durationDeviations(double deviations) {
+        this.durationDeviations = deviations;
+    }
+
+    public void durationModel(DurationModel model) {
+        this.durationModel = model;
+    }
+
+    public void durationModel(DurationModel model, double halfLifeInRuns, double outlierFactor) {
+        this.durationModel = model;
+        this.durationHalfLife = halfLifeInRuns;
+        this.durationOutlierFactor = outlierFactor;
+    }
+
+    public void planOnClient() {
+        this.planOnClient = true;
+    }
+
+    public void workStealing() {
+        this.workStealing = true;
+    }
+
+    public void workStealing(int batchesPerPod) {
+        this.workStealing = true;
+        this.batchesPerPod = batchesPerPod;
+    }
+
+    public void targetMinutes(long minutes) {
+        this.targetMinutes = minutes;
+    }
+
+    public void maxCoreHours(double coreHours) {
+        this.maxCoreHours = coreHours;
+    }
+
+    public void failFast() {
+        failFast(1);
+    }
+
+    public void failFast(int failures) {
+        this.failFastAfter = failures;
+    }
+
+    public void testImpactAnalysis() {
+        this.testImpactAnalysis = true;
+    }
+
+    public void testDiscoveryThreads(int threads) {
+        this.testDiscoveryThreads = threads;
+    }
+
     public void testGroups(String... group) {
         testGroups(Arrays.asList(group));
     }
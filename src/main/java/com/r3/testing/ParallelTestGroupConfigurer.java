@@ -43,9 +43,14 @@ public final class ParallelTestGroupConfigurer {
             imagePushTask.finalizedBy(deAllocateTask);
         }
 
-        KubesTest userDefinedParallelTask = project.createKubesTestFor(testGrouping, kubesTest ->
-            configureKubesTest(testGrouping, superListOfTasks, deAllocateTask, kubesTest)
-        );
+        KubesTest userDefinedParallelTask = project.createKubesTestFor(testGrouping, kubesTest -> {
+            configureKubesTest(testGrouping, superListOfTasks, deAllocateTask, kubesTest);
+            //only the client has the git history that test impact analysis needs, so it sends the pods the selected tests
+            if (testGrouping.getPlanOnClient() || testGrouping.getWorkStealing() || kubesTest.isShardCountAutomatic()
+                    || testGrouping.getTestImpactAnalysis()) {
+                configureClientSidePlan(testGrouping, testTasksToRunInGroup, kubesTest);
+            }
+        });
 
         KubesReporting reportOnAllTask = project.createKubesReportingTaskFor(testGrouping, kubesReporting -> {
             configureKubesReporting(testGrouping, userDefinedParallelTask, kubesReporting);
@@ -61,7 +66,8 @@ public final class ParallelTestGroupConfigurer {
 
     private void configureKubesTest(ParallelTestGroup testGrouping, String superListOfTasks, Task deAllocateTask, KubesTest kubesTest) {
         kubesTest.setGroup(DistributedTesting.GRADLE_GROUP);
-        if (StringUtils.isEmpty(tagToUseForRunningTests)) {
+        //the local stand-in for the pods runs the tests here, so it needs no image
+        if (StringUtils.isEmpty(tagToUseForRunningTests) && !(testGrouping.getWorkStealing() && KubesTest.isRunningLocally())) {
             kubesTest.dependsOn(imagePushTask);
         }
 
@@ -75,7 +81,19 @@ public final class ParallelTestGroupConfigurer {
         kubesTest.taskToExecuteName = String.join("And", testGrouping.getGroups());
         kubesTest.memoryGbPerFork = testGrouping.getGbOfMemory();
         kubesTest.numberOfCoresPerFork = testGrouping.getCoresToUse();
+        kubesTest.coresByFork = testGrouping.getCoresByFork();
         kubesTest.distribution = testGrouping.getDistribution();
+        kubesTest.allocationStrategy = testGrouping.getAllocationStrategy();
+        kubesTest.durationDeviations = testGrouping.getDurationDeviations();
+        kubesTest.durationModel = testGrouping.getDurationModel();
+        kubesTest.durationHalfLife = testGrouping.getDurationHalfLife();
+        kubesTest.durationOutlierFactor = testGrouping.getDurationOutlierFactor();
+        kubesTest.workStealing = testGrouping.getWorkStealing();
+        kubesTest.batchesPerPod = testGrouping.getBatchesPerPod();
+        kubesTest.targetMinutes = testGrouping.getTargetMinutes();
+        kubesTest.maxCoreHours = testGrouping.getMaxCoreHours();
+        kubesTest.failFastAfter = testGrouping.getFailFastAfter();
+        kubesTest.testDiscoveryThreads = testGrouping.getTestDiscoveryThreads();
         kubesTest.podLogLevel = testGrouping.getLogLevel();
         kubesTest.taints = testGrouping.getNodeTaints();
         kubesTest.sidecarImage = testGrouping.getSidecarImage();
@@ -85,6 +103,19 @@ public final class ParallelTestGroupConfigurer {
                 (imagePushTask.getImageName().get() + ":" + imagePushTask.getTag().get()));
     }
 
+    private void configureClientSidePlan(ParallelTestGroup testGrouping, List<Test> testTasksToRunInGroup, KubesTest kubesTest) {
+        testTasksToRunInGroup.forEach(testTask -> {
+            //tasks ignored for distribution have no listing task, and run in full on every pod anyway
+            ListTests listTests = DistributedTestingSubProject.forSubProject(testTask.getProject()).getListTestsTaskFor(testTask);
+            if (listTests != null) {
+                listTests.setDistribution(testGrouping.getDistribution());
+                listTests.setImpactAnalysis(testGrouping.getTestImpactAnalysis());
+                listTests.setThreads(testGrouping.getTestDiscoveryThreads());
+                kubesTest.planOnClient(listTests, testTask);
+            }
+        });
+    }
+
     private void configureKubesReporting(ParallelTestGroup testGrouping, KubesTest userDefinedParallelTask, KubesReporting kubesReporting) {
         kubesReporting.setGroup(DistributedTesting.GRADLE_GROUP);
         kubesReporting.dependsOn(userDefinedParallelTask);
@@ -0,0 +1,127 @@
+package com.r3.testing;
+
+import groovy.lang.Tuple3;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a Test task running on a fork spends outside its tests.  Recorded on the pod, next to the junit
+ * results so they are copied back with them, and read when we update the test durations:
+ * <ul>
+ * <li>fork setup:  from the build command starting to this Test task starting, i.e. waiting for DNS,
+ * compiling the tests and starting Gradle.  The earliest Test task on a fork gives the fork's setup cost.</li>
+ * <li>task setup:  the task's duration less the time from its first test starting to its last test finishing,
+ * i.e. starting and stopping the test JVM.</li>
+ * </ul>
+ */
+class PhaseTimings {
+    static final String FORK_START_PROPERTY = "forkStartMillis";
+    static final String FILE_NAME = "phase-timings.csv";
+    static final String TASK_PATH = "Task Path";
+    static final String FORK_SETUP_NANOS = "Fork Setup Nanos";
+    static final String TASK_SETUP_NANOS = "Task Setup Nanos";
+    // Written when we have no measurement.
+    static final long UNKNOWN = -1L;
+
+    private final String taskPath;
+    private final long forkStartMillis;
+    private long taskStartMillis = UNKNOWN;
+    private long taskEndMillis = UNKNOWN;
+    private long firstTestStartMillis = Long.MAX_VALUE;
+    private long lastTestEndMillis = Long.MIN_VALUE;
+
+    PhaseTimings(@NotNull final String taskPath, long forkStartMillis) {
+        this.taskPath = taskPath;
+        this.forkStartMillis = forkStartMillis;
+    }
+
+    /**
+     * @param taskPath the Gradle path of the Test task
+     * @return timings for the task, using the fork start time passed to the build, if any.
+     */
+    @NotNull
+    static PhaseTimings forTask(@NotNull final String taskPath) {
+        final String forkStart = Properties.getProperty(FORK_START_PROPERTY);
+        long forkStartMillis = UNKNOWN;
+        try {
+            forkStartMillis = forkStart.isEmpty() ? UNKNOWN : Long.parseLong(forkStart);
+        } catch (NumberFormatException ignored) {
+        }
+        return new PhaseTimings(taskPath, forkStartMillis);
+    }
+
+    synchronized void taskStarted(long millis) {
+        taskStartMillis = millis;
+    }
+
+    synchronized void testFinished(long startMillis, long endMillis) {
+        firstTestStartMillis = Math.min(firstTestStartMillis, startMillis);
+        lastTestEndMillis = Math.max(lastTestEndMillis, endMillis);
+    }
+
+    synchronized void taskFinished(long millis) {
+        taskEndMillis = millis;
+    }
+
+    synchronized long getForkSetupNanos() {
+        return forkStartMillis != UNKNOWN && taskStartMillis != UNKNOWN ?
+                TimeUnit.MILLISECONDS.toNanos(Math.max(taskStartMillis - forkStartMillis, 0L)) : UNKNOWN;
+    }
+
+    synchronized long getTaskSetupNanos() {
+        // Without any tests we can't tell the setup from the tests.
+        if (taskStartMillis == UNKNOWN || taskEndMillis == UNKNOWN || firstTestStartMillis > lastTestEndMillis) {
+            return UNKNOWN;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max((taskEndMillis - taskStartMillis) - (lastTestEndMillis - firstTestStartMillis), 0L));
+    }
+
+    /**
+     * Write a csv file of task path, fork setup and task setup.
+     *
+     * @param writer a writer
+     * @return true if no problems.
+     */
+    boolean write(@NotNull final Writer writer) {
+        try {
+            final CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(TASK_PATH, FORK_SETUP_NANOS, TASK_SETUP_NANOS));
+            printer.printRecord(taskPath, getForkSetupNanos(), getTaskSetupNanos());
+            printer.flush();
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read task path, fork setup and task setup from a csv file.
+     *
+     * @param reader a reader
+     * @return list of timings, {@link #UNKNOWN} where not measured, or an empty list if none or we have a problem.
+     */
+    @NotNull
+    static List<Tuple3<String, Long, Long>> read(@NotNull final Reader reader) {
+        final List<Tuple3<String, Long, Long>> results = new ArrayList<>();
+        try {
+            for (CSVRecord record : CSVFormat.DEFAULT.withHeader().parse(reader)) {
+                try {
+                    results.add(new Tuple3<>(record.get(TASK_PATH),
+                            Long.parseLong(record.get(FORK_SETUP_NANOS)),
+                            Long.parseLong(record.get(TASK_SETUP_NANOS))));
+                } catch (IllegalArgumentException | IllegalStateException ignored) {
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return results;
+    }
+}
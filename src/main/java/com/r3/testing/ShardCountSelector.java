@@ -0,0 +1,94 @@
+package com.r3.testing;
+
+import com.r3.testing.BucketingAllocator.TestBucket;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+import static com.r3.testing.BucketingAllocator.getDuration;
+
+/**
+ * Picks how many forks to run a group of tests on, from their durations and setup costs, rather than always using
+ * the same number:  the fewest forks predicted to finish within a target duration, without the cost going over a
+ * ceiling.  The cost is what we pay for the nodes, i.e. each fork's cores times how long it runs.
+ * <p>
+ * If no number of forks meets the target within the ceiling, we pick the one predicted to finish soonest within
+ * the ceiling, or failing that the cheapest.
+ */
+class ShardCountSelector {
+    private final long targetNanos;
+    private final double maxCoreHours;
+    private final int maxForks;
+
+    /**
+     * @param targetNanos  how long the group should take, or zero or less for as fast as the ceiling allows
+     * @param maxCoreHours how much the group may cost, or zero or less for no ceiling
+     * @param maxForks     the most forks we may use
+     */
+    ShardCountSelector(long targetNanos, double maxCoreHours, int maxForks) {
+        if (maxForks <= 0) {
+            throw new IllegalArgumentException("Need at least one fork: " + maxForks);
+        }
+        this.targetNanos = targetNanos;
+        this.maxCoreHours = maxCoreHours;
+        this.maxForks = maxForks;
+    }
+
+    /**
+     * @param allocatorForForks an allocator for the group's tests with the given number of forks, and the strategy
+     *                          that will make the plan
+     * @param coresForFork      each fork's cores
+     * @return the number of forks to use.
+     */
+    int select(@NotNull final IntFunction<BucketingAllocator> allocatorForForks, @NotNull final IntUnaryOperator coresForFork) {
+        int fastest = 0;
+        long fastestNanos = Long.MAX_VALUE;
+        double fastestCost = 0.0;
+        int cheapest = 1;
+        double cheapestCost = Double.MAX_VALUE;
+        // Listing the tests and matching them to their durations doesn't depend on the number of forks, so do it once.
+        final List<TestBucket> matchedTests = allocatorForForks.apply(maxForks).matchTests();
+        for (int forks = 1; forks <= maxForks; forks++) {
+            final long[] forkNanos = allocatorForForks.apply(forks).predictForkDurations(matchedTests);
+            long predictedNanos = 0L;
+            double coreHours = 0.0;
+            for (int fork = 0; fork < forkNanos.length; fork++) {
+                predictedNanos = Math.max(predictedNanos, forkNanos[fork]);
+                coreHours += coresForFork.applyAsInt(fork) * (double) forkNanos[fork] / TimeUnit.HOURS.toNanos(1);
+            }
+
+            if (coreHours < cheapestCost) {
+                cheapest = forks;
+                cheapestCost = coreHours;
+            }
+            if (maxCoreHours > 0.0 && coreHours > maxCoreHours) {
+                continue;
+            }
+            if (targetNanos > 0L && predictedNanos <= targetNanos) {
+                printSelection(forks, predictedNanos, coreHours);
+                return forks;
+            }
+            if (predictedNanos < fastestNanos) {
+                fastest = forks;
+                fastestNanos = predictedNanos;
+                fastestCost = coreHours;
+            }
+        }
+
+        if (fastest == 0) {
+            System.out.println(String.format("####### SHARD COUNT: no number of forks costs less than %.2f core hours #######", maxCoreHours));
+            return cheapest;
+        }
+        printSelection(fastest, fastestNanos, fastestCost);
+        return fastest;
+    }
+
+    private void printSelection(int forks, long predictedNanos, double coreHours) {
+        System.out.println(String.format("####### SHARD COUNT: %d forks, predicting %s%s and %.2f core hours%s #######",
+                forks, getDuration(predictedNanos), targetNanos > 0L ? " (target " + getDuration(targetNanos) + ")" : "",
+                coreHours, maxCoreHours > 0.0 ? String.format(" (ceiling %.2f)", maxCoreHours) : ""));
+    }
+}
@@ -0,0 +1,301 @@
+package com.r3.testing;
+
+import com.r3.testing.BucketingAllocator.TestBucket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.r3.testing.BucketingAllocator.getDuration;
+
+/**
+ * Work stealing:  rather than each fork running a fixed share of the tests, the forks take batches of tests from
+ * one queue, longest first, until it is empty.  A fork that gets through its batches sooner than we predicted
+ * simply takes more of them, so stale durations cost us a batch at the end rather than a whole fork's share.
+ * <p>
+ * Each batch belongs to a single Test task, and keeps the tests of a class together unless the class alone is
+ * bigger than a batch, so that we pay for as little class setup as we can.  A batch is passed to a fork as a
+ * {@link TestPlanFile} slice.
+ */
+class TestBatchQueue {
+    static final String BATCH_PROPERTY = "testBatch";
+    static final int DEFAULT_BATCHES_PER_FORK = 4;
+    // Keeps a batch small enough to hand to a pod on its command line.
+    static final int MAX_TESTS_PER_BATCH = 200;
+    // How often a batch that fails may be run before we believe it, when a failure may be the fork's fault.
+    static final int MAX_ATTEMPTS = 3;
+
+    private final int forks;
+    private final Deque<TestBatch> queue = new ArrayDeque<>();
+    private final List<List<TestBatch>> takenByFork = new ArrayList<>();
+    private final Set<TestBatch> running = new HashSet<>();
+    // Batches we'll never run, as the group was cancelled.
+    private int cancelled = 0;
+    private boolean isCancelled = false;
+
+    /**
+     * @param buckets        the tests and their durations, e.g. from {@link BucketingAllocator#generateTestQueue(int)}
+     * @param forks          how many forks will take from the queue
+     * @param batchesPerFork roughly how many batches each fork should get through:  more makes the forks finish
+     *                       closer together, but each batch pays for starting its Test task again.
+     */
+    TestBatchQueue(@NotNull final List<TestBucket> buckets, int forks, int batchesPerFork) {
+        if (forks <= 0 || batchesPerFork <= 0) {
+            throw new IllegalArgumentException("Need at least one fork and one batch per fork: " + forks + ", " + batchesPerFork);
+        }
+        this.forks = forks;
+        for (int fork = 0; fork < forks; fork++) {
+            takenByFork.add(new ArrayList<>());
+        }
+
+        final long total = buckets.stream().mapToLong(TestBucket::getDuration).sum();
+        final long target = Math.max(total / ((long) forks * batchesPerFork), 1L);
+        final List<TestBatch> batches = new ArrayList<>();
+        // Group by task, then class, keeping the order of first appearance so that the batches are deterministic.
+        final Map<Object, Map<String, List<TestBucket>>> bucketsByTaskAndClass = new LinkedHashMap<>();
+        buckets.forEach(tb -> bucketsByTaskAndClass.computeIfAbsent(tb.testTask, t -> new LinkedHashMap<>())
+                .computeIfAbsent(tb.className, c -> new ArrayList<>()).add(tb));
+        for (Map<String, List<TestBucket>> bucketsByClass : bucketsByTaskAndClass.values()) {
+            final List<List<TestBucket>> classes = bucketsByClass.values().stream()
+                    .sorted(Comparator.comparingLong(TestBatchQueue::durationOf).reversed())
+                    .collect(Collectors.toList());
+            List<TestBucket> current = new ArrayList<>();
+            for (List<TestBucket> testClass : classes) {
+                if (durationOf(testClass) > target) {
+                    // Too big to share a batch, so split it on its own.
+                    List<TestBucket> split = new ArrayList<>();
+                    for (TestBucket tb : testClass) {
+                        if (!split.isEmpty() && (durationOf(split) + tb.getDuration() > target || split.size() >= MAX_TESTS_PER_BATCH)) {
+                            batches.add(new TestBatch(split));
+                            split = new ArrayList<>();
+                        }
+                        split.add(tb);
+                    }
+                    batches.add(new TestBatch(split));
+                    continue;
+                }
+                if (!current.isEmpty() && (durationOf(current) + durationOf(testClass) > target
+                        || current.size() + testClass.size() > MAX_TESTS_PER_BATCH)) {
+                    batches.add(new TestBatch(current));
+                    current = new ArrayList<>();
+                }
+                current.addAll(testClass);
+            }
+            if (!current.isEmpty()) {
+                batches.add(new TestBatch(current));
+            }
+        }
+
+        // Longest first, so that what's left at the end is small enough to even out the forks, but within each band
+        // of durations, see BucketingAllocator#getDurationBand, those with tests that have failed before go first, so
+        // that a regression shows up early.  The sort is stable.
+        batches.sort(Comparator.comparingInt((TestBatch batch) -> BucketingAllocator.getDurationBand(batch.getDuration())).reversed()
+                .thenComparing(Comparator.comparingDouble((TestBatch batch) -> batch.failureRate).reversed())
+                .thenComparing(Comparator.comparingLong(TestBatch::getDuration).reversed()));
+        for (int id = 0; id < batches.size(); id++) {
+            batches.get(id).id = id;
+        }
+        queue.addAll(batches);
+    }
+
+    private static long durationOf(@NotNull final List<TestBucket> buckets) {
+        return buckets.stream().mapToLong(TestBucket::getDuration).sum();
+    }
+
+    /**
+     * Take the next batch, waiting while the queue is empty but other forks are still running batches, as one of
+     * them may be lost and its batch put back.
+     *
+     * @return the next batch, or null once every batch has been run or the queue was cancelled.
+     */
+    @Nullable
+    synchronized TestBatch take(int fork) throws InterruptedException {
+        while (queue.isEmpty() && !running.isEmpty()) {
+            wait();
+        }
+        final TestBatch batch = queue.pollFirst();
+        if (batch != null) {
+            batch.attempts++;
+            running.add(batch);
+            takenByFork.get(fork).add(batch);
+        }
+        return batch;
+    }
+
+    synchronized void finished(@NotNull final TestBatch batch) {
+        running.remove(batch);
+        notifyAll();
+    }
+
+    /**
+     * The fork running the batch was lost:  put it back at the front for another fork to take, unless the queue was
+     * cancelled, when nobody will.
+     */
+    synchronized void putBack(int fork, @NotNull final TestBatch batch) {
+        running.remove(batch);
+        takenByFork.get(fork).remove(batch);
+        if (isCancelled) {
+            cancelled++;
+        } else {
+            queue.addFirst(batch);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Run batches on the fork until there are none left.  This is all a fork does in work stealing mode.
+     *
+     * @return the first non-zero exit code of the batches, or zero if they all passed.
+     * @throws Exception if the fork is lost, once its batch is back on the queue.
+     */
+    int drain(int fork, @NotNull final TestBatchRunner runner) throws Exception {
+        return drain(fork, runner, 1);
+    }
+
+    /**
+     * As {@link #drain(int, TestBatchRunner)}, but a batch that fails is taken to mean that the fork is lost, as on a
+     * pod we can't tell a broken pod from a broken test.  The batch goes back on the queue for another fork, until
+     * it has failed maxAttempts times, when we believe it.
+     *
+     * @throws BatchFailedException if a batch failed, once it is back on the queue.
+     */
+    int drain(int fork, @NotNull final TestBatchRunner runner, int maxAttempts) throws Exception {
+        int result = 0;
+        for (TestBatch batch = take(fork); batch != null; batch = take(fork)) {
+            final int batchResult;
+            try {
+                batchResult = runner.run(fork, batch);
+            } catch (Exception e) {
+                putBack(fork, batch);
+                throw e;
+            }
+            if (batchResult != 0 && batch.getAttempts() < maxAttempts && !isCancelled()) {
+                putBack(fork, batch);
+                throw new BatchFailedException(batch, batchResult);
+            }
+            finished(batch);
+            result = result != 0 ? result : batchResult;
+        }
+        return result;
+    }
+
+    /**
+     * Run no more batches:  the forks finish those they're running, then find the queue empty.
+     */
+    synchronized void cancel() {
+        isCancelled = true;
+        cancelled += queue.size();
+        queue.clear();
+        notifyAll();
+    }
+
+    synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return the work in the queue spread evenly across the forks, which is about how long they'll take.
+     */
+    synchronized long getDurationPerFork() {
+        return queue.stream().mapToLong(TestBatch::getDuration).sum() / forks;
+    }
+
+    synchronized List<TestBatch> getTakenBy(int fork) {
+        return new ArrayList<>(takenByFork.get(fork));
+    }
+
+    synchronized void printSummary() {
+        System.out.println("####### TEST QUEUE: " + (queue.size() + takenByFork.stream().mapToInt(List::size).sum())
+                + " batches for " + forks + " forks #######");
+        if (cancelled > 0) {
+            System.out.println("####### TEST QUEUE CANCELLED: " + cancelled + " batches were never run #######");
+        }
+        for (int fork = 0; fork < forks; fork++) {
+            final List<TestBatch> taken = takenByFork.get(fork);
+            System.out.println("####### TEST QUEUE SUMMARY ( " + fork + " ) #######");
+            System.out.println("Batches taken: " + taken.size());
+            System.out.println("Predicted duration: " + getDuration(taken.stream().mapToLong(TestBatch::getDuration).sum()));
+        }
+    }
+
+    /**
+     * Runs a batch of tests on a fork.  On Kubernetes that's a build on the fork's pod;  a local stand-in
+     * runs it here instead.
+     */
+    interface TestBatchRunner {
+        /**
+         * @return the exit code of the build, i.e. non-zero if any tests failed.
+         * @throws Exception if the fork can't run any more batches.
+         */
+        int run(int fork, @NotNull TestBatch batch) throws Exception;
+    }
+
+    /**
+     * A batch failed, and went back on the queue to be run again elsewhere.
+     */
+    static final class BatchFailedException extends Exception {
+        BatchFailedException(@NotNull final TestBatch batch, int exitCode) {
+            super("Batch " + batch.getId() + " of " + batch.getTaskPath() + " failed with " + exitCode + " on attempt " + batch.getAttempts());
+        }
+    }
+
+    static final class TestBatch {
+        private int id;
+        // How often it has been taken.
+        private int attempts;
+        final Object testTask;
+        final List<TestBucket> buckets;
+        final long durationNanos;
+        // The chance that any of its tests fails.
+        final double failureRate;
+
+        private TestBatch(@NotNull final List<TestBucket> buckets) {
+            this.testTask = buckets.get(0).testTask;
+            this.buckets = Collections.unmodifiableList(buckets);
+            // Each batch starts its Test task again, and sets up each of its classes.
+            this.durationNanos = durationOf(buckets) + buckets.get(0).taskSetupNanos
+                    + buckets.stream().collect(Collectors.toMap(tb -> tb.className, tb -> tb.classSetupNanos, (a, b) -> a))
+                    .values().stream().mapToLong(Long::longValue).sum();
+            this.failureRate = 1.0 - buckets.stream().mapToDouble(tb -> 1.0 - tb.failureRate).reduce(1.0, (a, b) -> a * b);
+        }
+
+        int getId() {
+            return id;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        long getDuration() {
+            return durationNanos;
+        }
+
+        @NotNull
+        String getTaskPath() {
+            return BucketingAllocator.getTaskPath(testTask);
+        }
+
+        @NotNull
+        String getFileName() {
+            return "batch-" + id + ".csv";
+        }
+
+        @Override
+        public String toString() {
+            return "TestBatch{" +
+                    "id=" + id +
+                    ", testTask=" + testTask +
+                    ", tests=" + buckets.size() +
+                    ", attempts=" + attempts +
+                    ", durationNanos=" + durationNanos +
+                    ", failureRate=" + failureRate +
+                    '}';
+        }
+    }
+}
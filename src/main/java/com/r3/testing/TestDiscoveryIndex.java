@@ -0,0 +1,626 @@
+package com.r3.testing;
+
+import groovy.lang.Tuple2;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * What each class file in a Test task's classes directories declares, keyed by a hash of its contents, so that
+ * listing the tests again only reads the class files that have changed since.  We keep just enough of each class to
+ * find its tests:  its name, whether it's abstract, its superclass and interfaces, its methods and which of them have
+ * test annotations.  The classes of the build's other modules that the tests may extend, in directories or jars, are
+ * kept too, but only to find what the tests inherit.
+ * <p>
+ * A class file whose size and modification time are unchanged isn't read at all, and one that has changed is only
+ * parsed again if its hash is new.  A jar is only opened again if it has changed.
+ */
+final class TestDiscoveryIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(TestDiscoveryIndex.class);
+
+    // Bump this whenever what we keep of a class changes, e.g. more test annotations;  older indexes are discarded.
+    static final int VERSION = 3;
+    static final String JUNIT4_TEST = "org.junit.Test";
+    static final String JUNIT5_TEST = "org.junit.jupiter.api.Test";
+    // JUnit 5 test templates and factories, which run a method more than once, or make tests at run time.
+    static final String JUNIT5_PARAMETERIZED_TEST = "org.junit.jupiter.params.ParameterizedTest";
+    static final String JUNIT5_REPEATED_TEST = "org.junit.jupiter.api.RepeatedTest";
+    static final String JUNIT5_TEST_FACTORY = "org.junit.jupiter.api.TestFactory";
+    static final String JUNIT5_TEST_TEMPLATE = "org.junit.jupiter.api.TestTemplate";
+    private static final Set<String> TEST_ANNOTATIONS = new HashSet<>(Arrays.asList(JUNIT4_TEST, JUNIT5_TEST,
+            JUNIT5_PARAMETERIZED_TEST, JUNIT5_REPEATED_TEST, JUNIT5_TEST_FACTORY, JUNIT5_TEST_TEMPLATE));
+    private static final int ACC_BRIDGE = 0x0040;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final String PATH = "Path";
+    private static final String SIZE = "Size";
+    private static final String MODIFIED = "Modified";
+    private static final String HASH = "Hash";
+    private static final String CLASS = "Class";
+    private static final String ABSTRACT = "Abstract";
+    private static final String SUPERCLASS = "Superclass";
+    private static final String INTERFACES = "Interfaces";
+    private static final String METHODS = "Methods";
+    private static final String TEST_METHODS = "Test Methods";
+    private static final String LIBRARY = "Library";
+    // Can't be part of a JVM class or method name, nor of a method's parameters as we keep them, with dots for slashes.
+    private static final String METHOD_SEPARATOR = "/";
+    // Nor can this be part of a name, but a method's parameters may hold one, so the annotation follows the last.
+    private static final String ANNOTATION_SEPARATOR = ";";
+    // Between a jar and the path of a class file in it.
+    private static final String JAR_SEPARATOR = "!/";
+
+    // By class file path.
+    private final Map<String, ClassFile> classFiles = new HashMap<>();
+    private int classFilesRead = 0;
+
+    /**
+     * @return an index as we last saved it, or an empty one if there is none or it's from another version.
+     */
+    @NotNull
+    static TestDiscoveryIndex load(@NotNull final File file) {
+        final TestDiscoveryIndex index = new TestDiscoveryIndex();
+        if (!file.exists()) {
+            return index;
+        }
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            index.read(reader);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not read the test discovery index {}, listing every test again: {}", file, e.getMessage());
+            index.classFiles.clear();
+        }
+        return index;
+    }
+
+    void read(@NotNull final Reader reader) throws IOException {
+        for (CSVRecord record : CSVFormat.DEFAULT.withHeader().parse(reader)) {
+            final List<Tuple2<String, String>> testMethods = new ArrayList<>();
+            for (String testMethod : split(record.get(TEST_METHODS))) {
+                final int separator = testMethod.lastIndexOf(ANNOTATION_SEPARATOR);
+                testMethods.add(new Tuple2<>(testMethod.substring(0, separator), testMethod.substring(separator + 1)));
+            }
+            final String superclass = record.get(SUPERCLASS);
+            classFiles.put(record.get(PATH), new ClassFile(Long.parseLong(record.get(SIZE)), Long.parseLong(record.get(MODIFIED)), record.get(HASH),
+                    new ClassEntry(record.get(CLASS), Boolean.parseBoolean(record.get(ABSTRACT)), superclass.isEmpty() ? null : superclass,
+                            split(record.get(INTERFACES)), split(record.get(METHODS)), testMethods),
+                    Boolean.parseBoolean(record.get(LIBRARY))));
+        }
+    }
+
+    @NotNull
+    private static List<String> split(@NotNull final String joined) {
+        return joined.isEmpty() ? Collections.emptyList() : Arrays.asList(joined.split(METHOD_SEPARATOR));
+    }
+
+    void save(@NotNull final File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            write(writer);
+        }
+    }
+
+    void write(@NotNull final Writer writer) throws IOException {
+        final CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(PATH, SIZE, MODIFIED, HASH, CLASS, ABSTRACT, SUPERCLASS,
+                INTERFACES, METHODS, TEST_METHODS, LIBRARY));
+        for (String path : new TreeSet<>(classFiles.keySet())) {
+            final ClassFile classFile = classFiles.get(path);
+            final ClassEntry entry = classFile.entry;
+            printer.printRecord(path, classFile.size, classFile.modified, classFile.hash, entry.className, entry.isAbstract,
+                    entry.superclassName != null ? entry.superclassName : "",
+                    String.join(METHOD_SEPARATOR, entry.interfaceNames),
+                    String.join(METHOD_SEPARATOR, entry.methods),
+                    entry.testMethods.stream().map(m -> m.getFirst() + ANNOTATION_SEPARATOR + m.getSecond()).collect(Collectors.joining(METHOD_SEPARATOR)),
+                    classFile.library);
+        }
+        printer.flush();
+    }
+
+    /**
+     * Bring the index up to date with the class files in these directories, forgetting any that have gone.
+     */
+    void update(@NotNull final Collection<File> classDirectories) throws IOException {
+        update(classDirectories, Collections.emptyList());
+    }
+
+    /**
+     * Bring the index up to date with the class files in these directories, and those of the libraries the tests
+     * may extend, forgetting any that have gone.
+     *
+     * @param libraries directories or jars, e.g. of the build's other modules.  Any of the class directories among
+     *                  them are only read as those.
+     */
+    void update(@NotNull final Collection<File> classDirectories, @NotNull final Collection<File> libraries) throws IOException {
+        final Map<String, ClassEntry> byHash = new HashMap<>();
+        classFiles.values().forEach(classFile -> byHash.put(classFile.hash, classFile.entry));
+        final Map<String, List<String>> pathsByJar = new HashMap<>();
+        classFiles.keySet().stream().filter(path -> path.contains(JAR_SEPARATOR))
+                .forEach(path -> pathsByJar.computeIfAbsent(path.substring(0, path.indexOf(JAR_SEPARATOR)), jar -> new ArrayList<>()).add(path));
+        final Map<String, ClassFile> updated = new HashMap<>();
+        classFilesRead = 0;
+
+        final Set<File> directories = new HashSet<>();
+        for (File classDirectory : classDirectories) {
+            directories.add(classDirectory.getAbsoluteFile());
+            updateDirectory(classDirectory, false, byHash, updated);
+        }
+        for (File library : libraries) {
+            if (library.isDirectory() && directories.add(library.getAbsoluteFile())) {
+                updateDirectory(library, true, byHash, updated);
+            } else if (library.isFile() && library.getName().endsWith(".jar")) {
+                updateJar(library, pathsByJar.getOrDefault(library.getAbsolutePath(), Collections.emptyList()), byHash, updated);
+            }
+        }
+        classFiles.clear();
+        classFiles.putAll(updated);
+    }
+
+    private void updateDirectory(@NotNull final File classDirectory, boolean library, @NotNull final Map<String, ClassEntry> byHash,
+                                 @NotNull final Map<String, ClassFile> updated) throws IOException {
+        if (!classDirectory.isDirectory()) {
+            return;
+        }
+        final List<Path> paths;
+        try (Stream<Path> walk = Files.walk(classDirectory.toPath())) {
+            paths = walk.filter(p -> p.toString().endsWith(".class") && Files.isRegularFile(p)).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            final String key = path.toAbsolutePath().toString();
+            final long size = Files.size(path);
+            final long modified = Files.getLastModifiedTime(path).toMillis();
+            final ClassFile known = classFiles.get(key);
+            if (known != null && known.size == size && known.modified == modified && known.library == library) {
+                updated.put(key, known);
+                continue;
+            }
+            addClassFile(key, size, modified, Files.readAllBytes(path), library, byHash, updated);
+        }
+    }
+
+    /**
+     * A jar's class files are keyed by its path and theirs, but share its size and modification time, so that if
+     * the jar hasn't changed, we needn't open it.
+     */
+    private void updateJar(@NotNull final File jar, @NotNull final List<String> knownPaths, @NotNull final Map<String, ClassEntry> byHash,
+                           @NotNull final Map<String, ClassFile> updated) throws IOException {
+        final long size = jar.length();
+        final long modified = jar.lastModified();
+        if (!knownPaths.isEmpty() && knownPaths.stream().map(classFiles::get).allMatch(known -> known.size == size && known.modified == modified)) {
+            knownPaths.forEach(path -> updated.put(path, classFiles.get(path)));
+            return;
+        }
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (ZipEntry zipEntry : Collections.list(zip.entries())) {
+                // The classes of other Java versions in a multi-release jar declare the same tests as the others.
+                if (zipEntry.isDirectory() || !zipEntry.getName().endsWith(".class") || zipEntry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                final byte[] bytes;
+                try (InputStream in = zip.getInputStream(zipEntry)) {
+                    bytes = readAll(in);
+                }
+                addClassFile(jar.getAbsolutePath() + JAR_SEPARATOR + zipEntry.getName(), size, modified, bytes, true, byHash, updated);
+            }
+        }
+    }
+
+    private void addClassFile(@NotNull final String key, long size, long modified, @NotNull final byte[] bytes, boolean library,
+                              @NotNull final Map<String, ClassEntry> byHash, @NotNull final Map<String, ClassFile> updated) throws IOException {
+        final String hash = hash(bytes);
+        ClassEntry entry = byHash.get(hash);
+        if (entry == null) {
+            classFilesRead++;
+            try {
+                entry = readClass(bytes);
+            } catch (IOException e) {
+                // Were we to skip one of ours, its tests would never run.  A library's class only matters if we extend it.
+                if (!library) {
+                    throw new IOException("Could not read the class file " + key + ", so could not list its tests", e);
+                }
+                LOG.warn("Could not read the class file {}, so will not list any tests inherited from it: {}", key, e.getMessage());
+                return;
+            }
+            if (entry == null) {
+                return;
+            }
+            byHash.put(hash, entry);
+        }
+        updated.put(key, new ClassFile(size, modified, hash, entry, library));
+    }
+
+    @NotNull
+    private static byte[] readAll(@NotNull final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return how many class files the last {@link #update(Collection)} had to parse.
+     */
+    int getClassFilesRead() {
+        return classFilesRead;
+    }
+
+    int size() {
+        return classFiles.size();
+    }
+
+    /**
+     * @return every class we know, preferring our own to a library's of the same name.
+     */
+    @NotNull
+    private Map<String, ClassEntry> getClassesByName() {
+        final Map<String, ClassEntry> byName = new HashMap<>();
+        classFiles.values().stream().filter(classFile -> classFile.library).forEach(classFile -> byName.put(classFile.entry.className, classFile.entry));
+        classFiles.values().stream().filter(classFile -> !classFile.library).forEach(classFile -> byName.put(classFile.entry.className, classFile.entry));
+        return byName;
+    }
+
+    /**
+     * @return our classes that declare a test method, or extend or implement, however indirectly, a class or
+     * interface that does, whether it's ours or a library's.
+     */
+    @NotNull
+    List<ClassEntry> getTestClasses() {
+        final Map<String, ClassEntry> byName = getClassesByName();
+        final Set<String> ours = classFiles.values().stream().filter(classFile -> !classFile.library)
+                .map(classFile -> classFile.entry.className).collect(Collectors.toSet());
+        final Map<String, List<ClassEntry>> subtypes = new HashMap<>();
+        byName.values().forEach(entry -> {
+            if (entry.superclassName != null) {
+                subtypes.computeIfAbsent(entry.superclassName, s -> new ArrayList<>()).add(entry);
+            }
+            entry.interfaceNames.forEach(i -> subtypes.computeIfAbsent(i, s -> new ArrayList<>()).add(entry));
+        });
+        final Deque<ClassEntry> toVisit = byName.values().stream().filter(ClassEntry::hasTestMethods).collect(Collectors.toCollection(ArrayDeque::new));
+        final Set<String> visited = toVisit.stream().map(entry -> entry.className).collect(Collectors.toSet());
+        while (!toVisit.isEmpty()) {
+            for (ClassEntry subtype : subtypes.getOrDefault(toVisit.pop().className, Collections.emptyList())) {
+                if (visited.add(subtype.className)) {
+                    toVisit.push(subtype);
+                }
+            }
+        }
+        final Map<String, ClassEntry> testClasses = new TreeMap<>();
+        visited.stream().filter(ours::contains).forEach(className -> testClasses.put(className, byName.get(className)));
+        return new ArrayList<>(testClasses.values());
+    }
+
+    /**
+     * The tests as Gradle can filter them:  the test classes that can run, or their test methods, including those
+     * they inherit.  An abstract class's test methods are listed under each of its concrete subclasses, as that is
+     * where JUnit runs, and reports, them.  Every invocation of a parameterized or repeated test, and every test a
+     * factory makes, is left to run together as its method, as Gradle can filter no finer than that.
+     *
+     * @return the test names, sorted.
+     */
+    @NotNull
+    List<String> getTests(@NotNull final DistributeTestsBy distribution) {
+        final Map<String, ClassEntry> byName = getClassesByName();
+        final Map<String, Set<String>> testMethods = new LinkedHashMap<>();
+        getTestClasses().stream().filter(entry -> !entry.isAbstract).forEach(entry -> {
+            final Set<String> methods = getTestMethods(entry, byName);
+            if (!methods.isEmpty()) {
+                testMethods.put(entry.className, methods);
+            }
+        });
+        switch (distribution) {
+            case METHOD:
+                return testMethods.entrySet().stream().flatMap(entry -> entry.getValue().stream().map(method -> entry.getKey() + "." + method))
+                        .sorted().collect(Collectors.toList());
+            case CLASS:
+                return testMethods.keySet().stream().sorted().collect(Collectors.toList());
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+    }
+
+    /**
+     * The test methods JUnit runs on a class:  those it declares, and those it inherits from its superclasses and
+     * their interfaces, as the most derived declaration of each method decides.  So a test that's overridden without
+     * a test annotation isn't one, and, as a class's methods come before its interfaces', nor is an interface's
+     * default test method that a superclass overrides.  JUnit 4 is the exception, as it runs an override of one of its
+     * tests as that test, annotated or not.
+     *
+     * @return the names of the test methods.
+     */
+    @NotNull
+    private static Set<String> getTestMethods(@NotNull final ClassEntry testClass, @NotNull final Map<String, ClassEntry> byName) {
+        final List<ClassEntry> hierarchy = new ArrayList<>();
+        for (ClassEntry c = testClass; c != null; c = c.superclassName != null ? byName.get(c.superclassName) : null) {
+            hierarchy.add(c);
+        }
+        final Deque<String> interfaces = hierarchy.stream().flatMap(c -> c.interfaceNames.stream()).collect(Collectors.toCollection(ArrayDeque::new));
+        final Set<String> visited = new HashSet<>();
+        while (!interfaces.isEmpty()) {
+            final String name = interfaces.removeFirst();
+            final ClassEntry i = visited.add(name) ? byName.get(name) : null;
+            if (i != null) {
+                hierarchy.add(i);
+                interfaces.addAll(i.interfaceNames);
+            }
+        }
+
+        // Whether the most derived declaration of each method is a test.
+        final Map<String, Boolean> declared = new LinkedHashMap<>();
+        for (ClassEntry c : hierarchy) {
+            for (String method : c.methods) {
+                final Boolean isTest = declared.get(method);
+                if (isTest == null) {
+                    declared.put(method, c.isTest(method));
+                } else if (!isTest && c.isTest(method, JUNIT4_TEST)) {
+                    declared.put(method, true);
+                }
+            }
+        }
+        return declared.entrySet().stream().filter(Map.Entry::getValue).map(entry -> getName(entry.getKey()))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * @return the name of a method, as we keep it with its parameters.
+     */
+    @NotNull
+    static String getName(@NotNull final String method) {
+        final int parameters = method.lastIndexOf('(');
+        return parameters >= 0 ? method.substring(0, parameters) : method;
+    }
+
+    @NotNull
+    private static String hash(@NotNull final byte[] bytes) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read the name, whether it's abstract, superclass, interfaces, methods and test methods of a class from its
+     * class file.
+     *
+     * @return what we need of the class, or null if it isn't a class file, or describes a module or package.
+     * @throws IOException if it's a class file we can't read.
+     */
+    @Nullable
+    static ClassEntry readClass(@NotNull final byte[] bytes) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 4 || in.readInt() != 0xCAFEBABE) {
+            return null;
+        }
+        try {
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+
+            // Only the UTF8 and Class entries of the constant pool interest us.
+            final int constantPoolCount = in.readUnsignedShort();
+            final String[] utf8 = new String[constantPoolCount];
+            final int[] classNameIndex = new int[constantPoolCount];
+            for (int i = 1; i < constantPoolCount; i++) {
+                final int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7:
+                        classNameIndex[i] = in.readUnsignedShort();
+                        break;
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        in.skipBytes(2);
+                        break;
+                    case 15:
+                        in.skipBytes(3);
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 10:
+                    case 11:
+                    case 12:
+                    case 17:
+                    case 18:
+                        in.skipBytes(4);
+                        break;
+                    case 5:
+                    case 6:
+                        // Longs and doubles take two entries.
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+
+            final boolean isAbstract = (in.readUnsignedShort() & (ACC_ABSTRACT | ACC_INTERFACE)) != 0;
+            final String className = utf8[classNameIndex[in.readUnsignedShort()]].replace('/', '.');
+            final int superclass = in.readUnsignedShort();
+            final String superclassName = superclass != 0 ? utf8[classNameIndex[superclass]].replace('/', '.') : null;
+            if (className.endsWith("module-info") || className.endsWith("package-info")) {
+                return null;
+            }
+            final List<String> interfaceNames = new ArrayList<>();
+            final int interfaces = in.readUnsignedShort();
+            for (int i = 0; i < interfaces; i++) {
+                interfaceNames.add(utf8[classNameIndex[in.readUnsignedShort()]].replace('/', '.'));
+            }
+
+            final int fields = in.readUnsignedShort();
+            for (int i = 0; i < fields; i++) {
+                in.skipBytes(6);
+                skipAttributes(in);
+            }
+
+            final List<String> methodNames = new ArrayList<>();
+            final List<Tuple2<String, String>> testMethods = new ArrayList<>();
+            final int methods = in.readUnsignedShort();
+            for (int i = 0; i < methods; i++) {
+                final int access = in.readUnsignedShort();
+                final String name = utf8[in.readUnsignedShort()];
+                final String descriptor = utf8[in.readUnsignedShort()];
+                // Overrides are by name and parameters.  The compiler's bridges to a method override nothing of ours.
+                final String methodName = name + descriptor.substring(0, descriptor.indexOf(')') + 1).replace('/', '.');
+                if ((access & (ACC_BRIDGE | ACC_SYNTHETIC)) == 0 && !name.startsWith("<")) {
+                    methodNames.add(methodName);
+                }
+                final int attributes = in.readUnsignedShort();
+                for (int a = 0; a < attributes; a++) {
+                    final String attributeName = utf8[in.readUnsignedShort()];
+                    final int length = in.readInt();
+                    if (!"RuntimeVisibleAnnotations".equals(attributeName)) {
+                        in.skipBytes(length);
+                        continue;
+                    }
+                    final int annotations = in.readUnsignedShort();
+                    for (int n = 0; n < annotations; n++) {
+                        final String annotation = readAnnotation(in, utf8);
+                        if (TEST_ANNOTATIONS.contains(annotation)) {
+                            testMethods.add(new Tuple2<>(methodName, annotation));
+                        }
+                    }
+                }
+            }
+            return new ClassEntry(className, isAbstract, superclassName, interfaceNames, methodNames, testMethods);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed class file: " + e, e);
+        }
+    }
+
+    private static void skipAttributes(@NotNull final DataInputStream in) throws IOException {
+        final int attributes = in.readUnsignedShort();
+        for (int a = 0; a < attributes; a++) {
+            in.skipBytes(2);
+            in.skipBytes(in.readInt());
+        }
+    }
+
+    /**
+     * @return the annotation's type, e.g. org.junit.Test, having skipped its values.
+     */
+    @NotNull
+    private static String readAnnotation(@NotNull final DataInputStream in, @NotNull final String[] utf8) throws IOException {
+        final String descriptor = utf8[in.readUnsignedShort()];
+        final int pairs = in.readUnsignedShort();
+        for (int p = 0; p < pairs; p++) {
+            in.skipBytes(2);
+            skipElementValue(in, utf8);
+        }
+        // e.g. Lorg/junit/Test;
+        return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+    }
+
+    private static void skipElementValue(@NotNull final DataInputStream in, @NotNull final String[] utf8) throws IOException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 'e':
+                in.skipBytes(4);
+                break;
+            case '@':
+                readAnnotation(in, utf8);
+                break;
+            case '[':
+                final int values = in.readUnsignedShort();
+                for (int v = 0; v < values; v++) {
+                    skipElementValue(in, utf8);
+                }
+                break;
+            default:
+                in.skipBytes(2);
+                break;
+        }
+    }
+
+    private static final class ClassFile {
+        final long size;
+        final long modified;
+        final String hash;
+        final ClassEntry entry;
+        // Of a library, rather than of the Test task's classes.
+        final boolean library;
+
+        ClassFile(long size, long modified, @NotNull final String hash, @NotNull final ClassEntry entry, boolean library) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.entry = entry;
+            this.library = library;
+        }
+    }
+
+    /**
+     * What we need to know of a class to find its tests.
+     */
+    static final class ClassEntry {
+        final String className;
+        // So JUnit won't run it, but may run its test methods in its subclasses.
+        final boolean isAbstract;
+        @Nullable
+        final String superclassName;
+        final List<String> interfaceNames;
+        // Every method it declares that may override another, by name and parameters, e.g. test(int), or for a
+        // parameter of a class, check(Lcom.r3.Node;).
+        final List<String> methods;
+        // Method, as above, and test annotation, for each test annotation on each method.
+        final List<Tuple2<String, String>> testMethods;
+
+        ClassEntry(@NotNull final String className, boolean isAbstract, @Nullable final String superclassName,
+                   @NotNull final List<String> interfaceNames, @NotNull final List<String> methods,
+                   @NotNull final List<Tuple2<String, String>> testMethods) {
+            this.className = className;
+            this.isAbstract = isAbstract;
+            this.superclassName = superclassName;
+            this.interfaceNames = Collections.unmodifiableList(interfaceNames);
+            this.methods = Collections.unmodifiableList(methods);
+            this.testMethods = Collections.unmodifiableList(testMethods);
+        }
+
+        boolean hasTestMethods() {
+            return !testMethods.isEmpty();
+        }
+
+        boolean isTest(@NotNull final String method) {
+            return testMethods.stream().anyMatch(m -> m.getFirst().equals(method));
+        }
+
+        boolean isTest(@NotNull final String method, @NotNull final String annotation) {
+            return testMethods.stream().anyMatch(m -> m.getFirst().equals(method) && m.getSecond().equals(annotation));
+        }
+
+        /**
+         * @return the names of the methods with this test annotation, in the order the class declares them.
+         */
+        @NotNull
+        List<String> getTestMethods(@NotNull final String annotation) {
+            return testMethods.stream().filter(m -> m.getSecond().equals(annotation)).map(m -> getName(m.getFirst())).distinct().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.r3.testing;
+
+import io.github.classgraph.ClassGraph;
+import io.github.classgraph.ScanResult;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The work of a {@link ListTests} task, done on a Gradle worker so that every module's tests are discovered at once,
+ * across the cores, rather than one module after another.  It runs in its own classloader, and only knows what
+ * its parameters tell it, as it can't reach back into the task or its project.
+ */
+public abstract class TestDiscoveryWork implements WorkAction<TestDiscoveryWork.Parameters> {
+    private static final Logger LOG = LoggerFactory.getLogger(TestDiscoveryWork.class);
+
+    public interface Parameters extends WorkParameters {
+        // Of the listing task, to report on.
+        Property<String> getTaskPath();
+
+        ConfigurableFileCollection getClassesDirs();
+
+        RegularFileProperty getIndexFile();
+
+        // Where we write the test methods we found, one per line.
+        RegularFileProperty getTestsFile();
+
+        Property<Boolean> getImpactAnalysis();
+
+        // The build's own classes that the tests may extend, or for test impact analysis, depend on.
+        ConfigurableFileCollection getDependencyClassPath();
+
+        // The rest are only used for test impact analysis.
+
+        DirectoryProperty getRootDir();
+
+        Property<String> getTargetBranch();
+
+        Property<Integer> getThreads();
+    }
+
+    @Override
+    public void execute() {
+        try {
+            discoverTests();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not list the tests of " + getParameters().getTaskPath().get(), e);
+        }
+    }
+
+    private void discoverTests() throws IOException {
+        final long start = System.nanoTime();
+        final Parameters parameters = getParameters();
+        final File indexFile = parameters.getIndexFile().get().getAsFile();
+        final TestDiscoveryIndex index = TestDiscoveryIndex.load(indexFile);
+        index.update(parameters.getClassesDirs().getFiles(), parameters.getDependencyClassPath().getFiles());
+        index.save(indexFile);
+
+        // Always by method, whatever the distribution, so that the list doesn't depend on it.  See ListTests#getAllTestsDiscovered.
+        List<String> tests = index.getTests(DistributeTestsBy.METHOD);
+        if (parameters.getImpactAnalysis().get()) {
+            tests = selectImpactedTests(tests);
+        }
+        Files.write(parameters.getTestsFile().get().getAsFile().toPath(), tests, StandardCharsets.UTF_8);
+        System.out.println("####### TEST DISCOVERY: " + parameters.getTaskPath().get() + " listed " + tests.size() + " tests in " +
+                BucketingAllocator.getDuration(System.nanoTime() - start) + ", reading " + index.getClassFilesRead() + " of " +
+                index.size() + " class files #######");
+    }
+
+    /**
+     * The selection stage between discovering the tests and planning them:  keep those that depend on changed code,
+     * or all of them if we can't tell what the changes affect.
+     */
+    @NotNull
+    private List<String> selectImpactedTests(@NotNull final List<String> discovered) {
+        final Parameters parameters = getParameters();
+        final File rootDir = parameters.getRootDir().get().getAsFile();
+        final List<String> changedFiles = TestImpactAnalysis.getChangedFiles(rootDir, parameters.getTargetBranch().get());
+        final Set<String> changedPackages = changedFiles != null ? TestImpactAnalysis.getChangedPackages(changedFiles) : null;
+        if (changedFiles == null || changedPackages == null) {
+            System.out.println("####### TEST IMPACT ANALYSIS: " + parameters.getTaskPath().get() + " running all " + discovered.size() + " tests, as we can't tell what changed #######");
+            return discovered;
+        }
+        if (!changedPackages.isEmpty() && TestImpactAnalysis.changesInlinedCode(rootDir, parameters.getTargetBranch().get())) {
+            System.out.println("####### TEST IMPACT ANALYSIS: " + parameters.getTaskPath().get() + " running all " + discovered.size() + " tests, as a constant or inline function may have changed #######");
+            return discovered;
+        }
+
+        final TestImpactAnalysis analysis;
+        // Closed as soon as we have the dependencies, rather than left for GC.
+        try (ScanResult scanResult = scanDependencies()) {
+            analysis = TestImpactAnalysis.fromScan(scanResult);
+        }
+        final List<String> selected = TestImpactAnalysis.select(discovered, DistributeTestsBy.METHOD, analysis.getImpactedClasses(changedPackages));
+        System.out.println(String.format("####### TEST IMPACT ANALYSIS: %s selected %d of %d tests (%.1f%%) for %d changed files #######",
+                parameters.getTaskPath().get(), selected.size(), discovered.size(), discovered.isEmpty() ? 100.0 : 100.0 * selected.size() / discovered.size(), changedFiles.size()));
+        return selected;
+    }
+
+    /**
+     * Scan this build's classes that the tests may depend on, for the dependencies between them.
+     */
+    @NotNull
+    private ScanResult scanDependencies() {
+        final Parameters parameters = getParameters();
+        final int threads = parameters.getThreads().get();
+        LOG.info("Scanning {} for the dependencies of the tests of {}", parameters.getDependencyClassPath().getFiles(), parameters.getTaskPath().get());
+        final ClassGraph classGraph = new ClassGraph()
+                .enableClassInfo()
+                .enableInterClassDependencies()
+                .ignoreClassVisibility()
+                .overrideClasspath(parameters.getDependencyClassPath().getFiles());
+        return threads > 0 ? classGraph.scan(threads) : classGraph.scan();
+    }
+}
@@ -4,6 +4,7 @@ import com.bmuschko.gradle.docker.tasks.image.DockerPushImage;
 import groovy.lang.Closure;
 import org.apache.commons.lang3.StringUtils;
 import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.tasks.testing.Test;
 import org.gradle.api.tasks.testing.TestDescriptor;
 import org.gradle.api.tasks.testing.TestFilter;
@@ -17,6 +18,7 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 public final class TestDistributor {
@@ -43,9 +45,10 @@ public final class TestDistributor {
 
     private void distribute(DistributedTestingSubProject subProject, List<Task> requestedTasks, Test test) {
         logInfo("Evaluating " + test.getPath());
+        //a parallel test group may list the tests on the client, to plan them there, so we need the listing task even if the test isn't requested
+        Task testListerTask = !test.hasProperty("ignoreForDistribution") ? createTestListingTasks(test, subProject) : null;
         if (requestedTasks.contains(test) && !test.hasProperty("ignoreForDistribution")) {
             logInfo("Modifying " + test.getPath());
-            Task testListerTask = createTestListingTasks(test, subProject);
             globalAllocator.addSource((TestLister) testListerTask, test);
             Test modifiedTestTask = modifyTestTaskForParallelExecution(subProject, test);
         } else {
@@ -58,18 +61,21 @@ public final class TestDistributor {
         }
     }
 
+    /**
+     * Only list the tests of every test task, as soon as it's compiled:  what the build that makes the image does, so
+     * that the image carries the lists and their index.  These are the same listing tasks as the pods' build makes,
+     * so they're up to date there.
+     */
+    public static void prebuildTestLists(DistributedTestingProject project) {
+        project.traverseSubProjects(subProject -> subProject.traverseTestTasks(test -> {
+            if (!test.hasProperty("ignoreForDistribution")) {
+                createListTestsTask(test, subProject);
+            }
+        }));
+    }
+
     private Task createTestListingTasks(Test task, DistributedTestingSubProject subProject) {
-        //determine all the tests which are present in this test task.
-        //this list will then be shared between the various worker forks
-        ListTests createdListTask = subProject.createListTestsTaskFor(task, listTask -> {
-            listTask.setGroup(DistributedTesting.GRADLE_GROUP);
-            //the convention is that a testing task is backed by a sourceSet with the same name
-            listTask.dependsOn(subProject.getClassesTaskFor(task));
-            listTask.doFirst(task1 -> {
-                //we want to set the test scanning classpath to only the output of the sourceSet - this prevents dependencies polluting the list
-                ((ListTests) task1).scanClassPath = !task.getTestClassesDirs().isEmpty() ? task.getTestClassesDirs() : null;
-            });
-        });
+        ListTests createdListTask = createListTestsTask(task, subProject);
 
         //convenience task to utilize the output of the test listing task to display to local console, useful for debugging missing tests
         Task createdPrintTask = subProject.createPrintTaskFor(task, printTask -> configurePrintTask(subProject, createdListTask, printTask));
@@ -80,6 +86,29 @@ public final class TestDistributor {
         return createdListTask;
     }
 
+    private static ListTests createListTestsTask(Test task, DistributedTestingSubProject subProject) {
+        //determine all the tests which are present in this test task.
+        //this list will then be shared between the various worker forks
+        ListTests createdListTask = subProject.createListTestsTaskFor(task, listTask -> {
+            listTask.setGroup(DistributedTesting.GRADLE_GROUP);
+            //the convention is that a testing task is backed by a sourceSet with the same name
+            listTask.dependsOn(subProject.getClassesTaskFor(task));
+            //we want to set the test scanning classpath to only the output of the sourceSet - this prevents dependencies polluting the list
+            //set now rather than in doFirst so that Gradle can tell when the listing is up to date, but only read from the
+            //test task when needed, so that later changes to its classes dirs or classpath are seen
+            listTask.scanClassPath = task.getProject().files((Callable<FileCollection>) task::getTestClassesDirs);
+            //the tests may inherit tests from this build's own classes, and test impact analysis follows the tests' dependencies
+            //through them, but not third party jars
+            listTask.dependencyClassPath = task.getProject().files((Callable<FileCollection>) () ->
+                    task.getClasspath().filter(file -> file.toPath().startsWith(task.getProject().getRootDir().toPath())));
+        });
+        //when building the image, list the tests straight after compiling them, so the image carries the lists and their index and the pods reuse them
+        if (subProject.getPropertyAsBoolean(ListTests.PREBUILD_PROPERTY, false)) {
+            subProject.getClassesTaskFor(task).finalizedBy(createdListTask);
+        }
+        return createdListTask;
+    }
+
     private void configurePrintTask(DistributedTestingSubProject subProject, ListTests createdListTask, Task printTask) {
         printTask.setGroup(DistributedTesting.GRADLE_GROUP);
         printTask.dependsOn(createdListTask);
@@ -97,12 +126,24 @@ public final class TestDistributor {
         subProject.logInfo("modifying task: " + task.getPath() + " to depend on task " + globalAllocator.getPath());
         File reportsDir = subProject.createReportsDirFor(task);
         reportsDir.mkdirs();
-        File executedTestsFile = new File(KubesTest.TEST_RUN_DIR + "/executedTests.txt");
+        File executedTestsFile = new File(KubesTest.getTestRunDir(), "executedTests.txt");
         task.dependsOn(globalAllocator);
         task.setBinResultsDir(new File(reportsDir, "binary"));
         task.getReports().getJunitXml().setDestination(new File(reportsDir, "xml"));
         task.setMaxHeapSize("10g");
 
+        // Record how long this fork and task spend outside the tests, so the next plan can allow for it.
+        PhaseTimings phaseTimings = PhaseTimings.forTask(task.getPath());
+        task.doFirst(task1 -> phaseTimings.taskStarted(System.currentTimeMillis()));
+        task.doLast(task1 -> {
+            phaseTimings.taskFinished(System.currentTimeMillis());
+            try (FileWriter writer = new FileWriter(new File(reportsDir, PhaseTimings.FILE_NAME))) {
+                phaseTimings.write(writer);
+            } catch (IOException e) {
+                subProject.logInfo("Could not write phase timings for " + task1.getPath() + ": " + e.getMessage());
+            }
+        });
+
         task.doFirst(task1 -> {
             try {
                 executedTestsFile.createNewFile();
@@ -115,6 +156,7 @@ public final class TestDistributor {
 
         task.afterTest(new Closure(this, this) {
             public void doCall(TestDescriptor desc, TestResult result) {
+                phaseTimings.testFinished(result.getStartTime(), result.getEndTime());
                 if (result.getResultType() == TestResult.ResultType.SUCCESS) {
                     try {
                         FileWriter fr = new FileWriter(executedTestsFile, true);
@@ -1,6 +1,7 @@
 package com.r3.testing;
 
 import groovy.lang.Tuple2;
+import groovy.lang.Tuple3;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
@@ -14,6 +15,7 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -27,8 +29,9 @@ import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
@@ -41,8 +44,12 @@ public class TestDurationArtifacts {
     private static final String BASE_URL = "https://software.r3.com/artifactory/corda-test-results/net/corda";
     private static final Logger LOG = LoggerFactory.getLogger(TestDurationArtifacts.class);
     private static final String ARTIFACT = "tests-durations";
+    // Setup costs have a csv of their own, which older versions skip, as it has no test name column.
+    private static final String SETUPS = ARTIFACT + "-setups";
+    // Only publish the snapshot, once no build still reads the csv.
+    public static final String SNAPSHOT_ONLY_PROPERTY = "testDurationsSnapshotOnly";
     // The one and only set of tests information.  We load these at the start of a build, and update them and save them at the end.
-    static Tests tests = new Tests();
+    static Tests tests = Tests.fromSystemProperties();
 
     // Artifactory API
     private final Artifactory artifactory = new Artifactory();
@@ -73,37 +80,76 @@ public class TestDurationArtifacts {
                 //  Read test xml files for tests and duration and add them to the `Tests` object
                 //  This adjusts the runCount and over all average duration for existing tests.
                 for (Path testResult : testXmlFiles) {
-                    try {
-                        final List<Tuple2<String, Long>> unitTests = fromJunitXml(new FileInputStream(testResult.toFile()));
+                    final JunitXmlResults results;
+                    try (InputStream inputStream = new FileInputStream(testResult.toFile())) {
+                        results = readJunitXml(inputStream);
+                    } catch (IOException ignored) {
+                        continue;
+                    }
+                    final List<Tuple2<String, Long>> unitTests = results.durations;
 
-                        // Add the non-zero duration tests to build up an average.
-                        unitTests.stream()
-                                .filter(t2 -> t2.getSecond() > 0L)
-                                .forEach(unitTest -> tests.addDuration(unitTest.getFirst(), unitTest.getSecond()));
+                    // Add the non-zero duration tests to build up an average.
+                    unitTests.stream()
+                            .filter(t2 -> t2.getSecond() > 0L)
+                            .forEach(unitTest -> tests.addDuration(unitTest.getFirst(), unitTest.getSecond()));
 
-                        final long meanDurationForTests = tests.getMeanDurationForTests();
+                    final long meanDurationForTests = tests.getMeanDurationForTests();
 
-                        // Add the zero duration tests using the mean value so they are fairly distributed over the pods in the next run.
-                        // If we used 'zero' they would all be added to the smallest bucket.
-                        unitTests.stream()
-                                .filter(t2 -> t2.getSecond() <= 0L)
-                                .forEach(unitTest -> tests.addDuration(unitTest.getFirst(), meanDurationForTests));
+                    // Add the zero duration tests using the mean value so they are fairly distributed over the pods in the next run.
+                    // If we used 'zero' they would all be added to the smallest bucket.
+                    unitTests.stream()
+                            .filter(t2 -> t2.getSecond() <= 0L)
+                            .forEach(unitTest -> tests.addDuration(unitTest.getFirst(), meanDurationForTests));
 
-                    } catch (FileNotFoundException ignored) {
+                    // The time each class spends outside its test methods, which it pays again on every fork it is split across.
+                    results.classSetups.forEach(classSetup -> tests.addClassSetupDuration(classSetup.getFirst(), classSetup.getSecond()));
+
+                    // Whether each test passed, failed or was skipped, so we know which tests tend to fail.
+                    results.outcomes.forEach(outcome -> tests.addOutcome(outcome.getFirst(), outcome.getSecond()));
+                }
+
+                //  Read how long each fork and Test task spent outside the tests.
+                addPhaseTimings(tests, project.getBuildDir().getAbsoluteFile().toPath());
+
+                //  Write the test file to disk, unless nobody reads it.
+                final File csvFile = new File(project.getRootDir(), ARTIFACT + ".csv");
+                final File setupsCsvFile = new File(project.getRootDir(), SETUPS + ".csv");
+                if (isSnapshotOnly()) {
+                    // Nor zip up those of an earlier build.
+                    csvFile.delete();
+                    setupsCsvFile.delete();
+                } else {
+                    try {
+                        final FileWriter writer = new FileWriter(csvFile);
+                        tests.write(writer);
+                        LOG.warn("Written tests csv file with {} tests", tests.size());
+                    } catch (IOException ignored) {
+                    }
+                    try (FileWriter writer = new FileWriter(setupsCsvFile)) {
+                        tests.writeSetups(writer);
+                    } catch (IOException ignored) {
                     }
                 }
 
-                //  Write the test file to disk.
-                try {
-                    final FileWriter writer = new FileWriter(new File(project.getRootDir(), ARTIFACT + ".csv"));
-                    tests.write(writer);
-                    LOG.warn("Written tests csv file with {} tests", tests.size());
-                } catch (IOException ignored) {
+                //  And a binary snapshot of it, which is what we load.  The csv is for humans, older versions, and for
+                //  when the snapshot can't be read.
+                try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(
+                        new File(project.getRootDir(), ARTIFACT + TestDurationSnapshot.EXTENSION)))) {
+                    TestDurationSnapshot.write(tests, outputStream);
+                } catch (IOException e) {
+                    LOG.warn("Could not write tests snapshot:  {}", e.toString());
                 }
             });
         });
     }
 
+    /**
+     * @return true if we only publish the binary snapshot, and not the csv files older versions read.
+     */
+    static boolean isSnapshotOnly() {
+        return Boolean.parseBoolean(Properties.getProperty(SNAPSHOT_ONLY_PROPERTY));
+    }
+
     @NotNull
     static String capitalize(@NotNull final String str) {
         return str.substring(0, 1).toUpperCase() + str.substring(1); // groovy has this as an extension method
@@ -146,14 +192,15 @@ public class TestDurationArtifacts {
     private static Task createCsvZipAndUploadTask(@NotNull final Project project, @NotNull final String name) {
         return project.getTasks().create("zipCsvFilesAndUploadFor" + capitalize(name), Zip.class, z -> {
             z.setGroup(DistributedTesting.GRADLE_GROUP);
-            z.setDescription("Zips test duration csv and uploads to artifactory");
+            z.setDescription("Zips test duration csv and snapshot and uploads to artifactory");
 
             z.getArchiveFileName().set(Artifactory.getFileName(ARTIFACT, EXTENSION, getBranchTag()));
             z.getDestinationDirectory().set(project.getRootDir());
             z.setIncludeEmptyDirs(false);
 
-            // There's only one csv, but glob it anyway.
-            z.from(project.getRootDir(), task -> task.include("**/" + ARTIFACT + ".csv"));
+            // There's only one of each csv and the snapshot, but glob them anyway.
+            z.from(project.getRootDir(), task -> task.include("**/" + ARTIFACT + ".csv", "**/" + SETUPS + ".csv",
+                    "**/" + ARTIFACT + TestDurationSnapshot.EXTENSION));
 
             // ...base class method zips the CSV...
 
@@ -202,9 +249,54 @@ public class TestDurationArtifacts {
     }
 
     static List<Path> getTestXmlFiles(@NotNull final Path rootDir) {
+        return getFiles(rootDir, "glob:**/test-results-xml/**/*.xml");
+    }
+
+    static List<Path> getPhaseTimingFiles(@NotNull final Path rootDir) {
+        return getFiles(rootDir, "glob:**/test-results-xml/**/" + PhaseTimings.FILE_NAME);
+    }
+
+    /**
+     * Add the fork and Test task setup costs from the phase timing files copied back from the pods.
+     * A fork's setup is measured up to its earliest Test task, so we take the smallest per pod.
+     *
+     * @param tests   the tests to update
+     * @param rootDir directory containing 'test-results-xml', where each pod's results are in their own directory
+     */
+    static void addPhaseTimings(@NotNull final Tests tests, @NotNull final Path rootDir) {
+        final Map<Path, Long> forkSetupByPod = new HashMap<>();
+        for (Path file : getPhaseTimingFiles(rootDir)) {
+            final Path pod = getPodDirectory(file);
+            try (Reader reader = new FileReader(file.toFile())) {
+                for (Tuple3<String, Long, Long> timing : PhaseTimings.read(reader)) {
+                    if (timing.getSecond() != PhaseTimings.UNKNOWN) {
+                        forkSetupByPod.merge(pod, timing.getSecond(), Math::min);
+                    }
+                    if (timing.getThird() != PhaseTimings.UNKNOWN) {
+                        tests.addTaskSetupDuration(timing.getFirst(), timing.getThird());
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not read phase timings from {}:  {}", file, e.toString());
+            }
+        }
+        forkSetupByPod.values().forEach(tests::addForkSetupDuration);
+    }
+
+    @NotNull
+    private static Path getPodDirectory(@NotNull final Path file) {
+        for (Path dir = file.getParent(); dir != null && dir.getParent() != null; dir = dir.getParent()) {
+            if (dir.getParent().getFileName() != null && dir.getParent().getFileName().toString().equals("test-results-xml")) {
+                return dir;
+            }
+        }
+        return file.getParent();
+    }
+
+    private static List<Path> getFiles(@NotNull final Path rootDir, @NotNull final String glob) {
         List<Path> paths = new ArrayList<>();
         List<PathMatcher> matchers = new ArrayList<>();
-        matchers.add(FileSystems.getDefault().getPathMatcher("glob:**/test-results-xml/**/*.xml"));
+        matchers.add(FileSystems.getDefault().getPathMatcher(glob));
         try {
             Files.walkFileTree(rootDir, new FileVisitor<Path>() {
                 @Override
@@ -235,20 +327,25 @@ public class TestDurationArtifacts {
                 }
             });
         } catch (IOException e) {
-            LOG.warn("Could not walk tree and get all test xml files:  {}", e.toString());
+            LOG.warn("Could not walk tree and get all {} files:  {}", glob, e.toString());
         }
         return paths;
     }
 
     /**
      * Unzip test results in memory and return test names and durations.
-     * Assumes the input stream contains only csv files of the correct format.
+     * Assumes the input stream contains only csv files of the correct format, and/or test duration snapshots.
+     * We load the snapshots if there are any, as they're much quicker to read, or else the csv files, which is
+     * all that older versions upload.
      *
      * @param tests             reference to the Tests object to be populated.
      * @param zippedInputStream stream containing zipped result file(s)
      */
     static void addTestsFromZippedCsv(@NotNull final Tests tests,
                                       @NotNull final InputStream zippedInputStream) {
+        final List<byte[]> csvFiles = new ArrayList<>();
+        final List<byte[]> setupsCsvFiles = new ArrayList<>();
+        boolean loadedSnapshot = false;
         // We need this because ArchiveStream requires the `mark` functionality which is supported in buffered streams.
         final BufferedInputStream bufferedInputStream = new BufferedInputStream(zippedInputStream);
         try (ArchiveInputStream archiveInputStream = new ArchiveStreamFactory().createArchiveInputStream(bufferedInputStream)) {
@@ -256,54 +353,113 @@ public class TestDurationArtifacts {
             while ((e = archiveInputStream.getNextEntry()) != null) {
                 if (e.isDirectory()) continue;
 
+                if (e.getName().endsWith(TestDurationSnapshot.EXTENSION)) {
+                    loadedSnapshot |= addTestsFromSnapshot(tests, archiveInputStream, e.getName());
+                    continue;
+                }
+
                 // We seem to need to take a copy of the original input stream (as positioned by the ArchiveEntry), because
                 // the XML parsing closes the stream after it has finished.  This has the side effect of only parsing the first
                 // entry in the archive.
                 ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
                 IOUtils.copy(archiveInputStream, outputStream);
-                ByteArrayInputStream byteInputStream = new ByteArrayInputStream(outputStream.toByteArray());
-
-                // Read the tests from the (csv) stream
-                final InputStreamReader reader = new InputStreamReader(byteInputStream);
 
-                // Add the tests to the Tests object
-                tests.addTests(Tests.read(reader));
+                if (e.getName().endsWith(SETUPS + ".csv")) {
+                    setupsCsvFiles.add(outputStream.toByteArray());
+                } else {
+                    csvFiles.add(outputStream.toByteArray());
+                }
             }
         } catch (ArchiveException | IOException e) {
             LOG.warn("Problem unzipping XML test results");
         }
 
+        if (!loadedSnapshot) {
+            // Add the tests to the Tests object
+            csvFiles.forEach(csv -> tests.addTests(new InputStreamReader(new ByteArrayInputStream(csv))));
+            setupsCsvFiles.forEach(csv -> tests.addSetups(new InputStreamReader(new ByteArrayInputStream(csv))));
+        }
+
         LOG.debug("Discovered {} tests", tests.size());
     }
 
     /**
-     * For a given stream, return the testcase names and durations.
+     * Extract a snapshot from the archive to a file, and add its tests where they lie, memory-mapped.  The snapshot
+     * checks itself as it's opened, so a corrupt one leaves the tests as they were, for the csv.
+     *
+     * @return whether we could read the snapshot.
+     */
+    private static boolean addTestsFromSnapshot(@NotNull final Tests tests, @NotNull final InputStream snapshotStream, @NotNull final String name) {
+        Path file = null;
+        try {
+            file = Files.createTempFile(ARTIFACT, TestDurationSnapshot.EXTENSION);
+            Files.copy(snapshotStream, file, StandardCopyOption.REPLACE_EXISTING);
+            tests.addTests(TestDurationSnapshot.map(file));
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not read tests snapshot {}, reading the csv instead:  {}", name, e.toString());
+            return false;
+        } finally {
+            if (file != null) {
+                deleteMapped(file);
+            }
+        }
+    }
+
+    /**
+     * Windows won't delete a file while it's mapped, and the mapping lasts until it's garbage collected.
+     */
+    private static void deleteMapped(@NotNull final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * What we take from a junit xml file.
+     */
+    static final class JunitXmlResults {
+        // Test names and their durations in nanos.
+        final List<Tuple2<String, Long>> durations = new ArrayList<>();
+        // Test suite (class) names and the time each spent outside its test cases, in nanos.
+        final List<Tuple2<String, Long>> classSetups = new ArrayList<>();
+        // Test names and how they ended.
+        final List<Tuple2<String, TestOutcome>> outcomes = new ArrayList<>();
+    }
+
+    /**
+     * Parse a junit xml file once, for the testcase durations and outcomes, and the suites' class setup times:  the
+     * suite time less the sum of its test case times, which is mostly class level fixture setup and teardown.  Suites
+     * without a time have no setup time.  A testcase with a failure or error failed, one marked as skipped was skipped,
+     * and any other passed.  If the file can't be parsed we return no results.
      * <p>
      * NOTE:  the input stream will be closed by this method.
      *
      * @param inputStream an InputStream, closed once parsed
-     * @return a list of test names and their durations in nanos.
+     * @return the results, empty if we have a problem.
      */
     @NotNull
-    static List<Tuple2<String, Long>> fromJunitXml(@NotNull final InputStream inputStream) {
+    static JunitXmlResults readJunitXml(@NotNull final InputStream inputStream) {
         final DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        final List<Tuple2<String, Long>> results = new ArrayList<>();
+        final JunitXmlResults results = new JunitXmlResults();
 
-        try {
+        try (InputStream ignored = inputStream) {
             final DocumentBuilder builder = dbFactory.newDocumentBuilder();
             final Document document = builder.parse(inputStream);
             document.getDocumentElement().normalize();
-            final XPathFactory xPathfactory = XPathFactory.newInstance();
-            final XPath xpath = xPathfactory.newXPath();
-            final XPathExpression expression = xpath.compile("//testcase");
-            final NodeList nodeList = (NodeList) expression.evaluate(document, XPathConstants.NODESET);
+            final XPath xpath = XPathFactory.newInstance().newXPath();
+            final NodeList testCases = (NodeList) xpath.compile("//testcase").evaluate(document, XPathConstants.NODESET);
+            final NodeList suites = (NodeList) xpath.compile("//testsuite").evaluate(document, XPathConstants.NODESET);
+            final XPathExpression testCaseTimes = xpath.compile("testcase/@time");
 
             final BiFunction<NamedNodeMap, String, String> get =
                     (a, k) -> a.getNamedItem(k) != null ? a.getNamedItem(k).getNodeValue() : "";
 
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                final Node item = nodeList.item(i);
-                final NamedNodeMap attributes = item.getAttributes();
+            for (int i = 0; i < testCases.getLength(); i++) {
+                final Element testCase = (Element) testCases.item(i);
+                final NamedNodeMap attributes = testCase.getAttributes();
                 final String testName = get.apply(attributes, "name");
                 final String testDuration = get.apply(attributes, "time");
                 final String testClassName = get.apply(attributes, "classname");
@@ -311,18 +467,89 @@ public class TestDurationArtifacts {
                 // If the test doesn't have a duration (it should), we return zero.
                 if (!(testName.isEmpty() || testClassName.isEmpty())) {
                     final long nanos = !testDuration.isEmpty() ? (long) (Double.parseDouble(testDuration) * 1_000_000_000.0) : 0L;
-                    results.add(new Tuple2<>(testClassName + "." + testName, nanos));
+                    results.durations.add(new Tuple2<>(testClassName + "." + testName, nanos));
+                    results.outcomes.add(new Tuple2<>(testClassName + "." + testName, getOutcome(testCase)));
                 } else {
                     LOG.warn("Bad test in junit xml:  name={}  className={}", testName, testClassName);
                 }
             }
-        } catch (ParserConfigurationException | IOException | XPathExpressionException | SAXException e) {
-            return Collections.emptyList();
+
+            for (int i = 0; i < suites.getLength(); i++) {
+                final Node suite = suites.item(i);
+                final String suiteName = get.apply(suite.getAttributes(), "name");
+                final String suiteTime = get.apply(suite.getAttributes(), "time");
+                if (suiteName.isEmpty() || suiteTime.isEmpty()) {
+                    continue;
+                }
+
+                double testCaseSeconds = 0.0;
+                final NodeList times = (NodeList) testCaseTimes.evaluate(suite, XPathConstants.NODESET);
+                for (int j = 0; j < times.getLength(); j++) {
+                    final String time = times.item(j).getNodeValue();
+                    if (!time.isEmpty()) {
+                        testCaseSeconds += Double.parseDouble(time);
+                    }
+                }
+
+                final long nanos = (long) ((Double.parseDouble(suiteTime) - testCaseSeconds) * 1_000_000_000.0);
+                results.classSetups.add(new Tuple2<>(suiteName, Math.max(nanos, 0L)));
+            }
+        } catch (ParserConfigurationException | IOException | XPathExpressionException | SAXException | NumberFormatException e) {
+            return new JunitXmlResults();
         }
 
         return results;
     }
 
+    /**
+     * For a given stream, return the testcase names and durations.
+     * <p>
+     * NOTE:  the input stream will be closed by this method.
+     *
+     * @param inputStream an InputStream, closed once parsed
+     * @return a list of test names and their durations in nanos.
+     */
+    @NotNull
+    static List<Tuple2<String, Long>> fromJunitXml(@NotNull final InputStream inputStream) {
+        return readJunitXml(inputStream).durations;
+    }
+
+    /**
+     * For a given stream, return the test suite (class) names and the time each spent outside its test cases.
+     * <p>
+     * NOTE:  the input stream will be closed by this method.
+     *
+     * @param inputStream an InputStream, closed once parsed
+     * @return a list of class names and their setup durations in nanos.
+     */
+    @NotNull
+    static List<Tuple2<String, Long>> classSetupFromJunitXml(@NotNull final InputStream inputStream) {
+        return readJunitXml(inputStream).classSetups;
+    }
+
+    @NotNull
+    private static TestOutcome getOutcome(@NotNull final Element testCase) {
+        if (testCase.getElementsByTagName("failure").getLength() > 0 || testCase.getElementsByTagName("error").getLength() > 0) {
+            return TestOutcome.FAILED;
+        } else if (testCase.getElementsByTagName("skipped").getLength() > 0) {
+            return TestOutcome.SKIPPED;
+        }
+        return TestOutcome.PASSED;
+    }
+
+    /**
+     * For a given stream, return the testcase names and how they ended.
+     * <p>
+     * NOTE:  the input stream will be closed by this method.
+     *
+     * @param inputStream an InputStream, closed once parsed
+     * @return a list of test names and their outcomes.
+     */
+    @NotNull
+    static List<Tuple2<String, TestOutcome>> outcomesFromJunitXml(@NotNull final InputStream inputStream) {
+        return readJunitXml(inputStream).outcomes;
+    }
+
     /**
      * A supplier of tests.
      * <p>
@@ -0,0 +1,321 @@
+package com.r3.testing;
+
+import com.r3.testing.Tests.Stats;
+import groovy.lang.Tuple2;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The test durations, as in the csv written by {@link Tests#write(java.io.Writer)}, in a binary file that can be
+ * read where it lies, e.g. memory-mapped, rather than parsed.  All numbers are big-endian.
+ * <pre>
+ *     header     int magic, int version, int number of rows, int restart interval, int names offset, int names length
+ *     columns    long[rows] mean, long[rows] runs, long[rows] sum of squared deviations (double bits),
+ *                long[rows] recent, long[rows] rejected outliers, long[rows] passes, long[rows] failures,
+ *                long[rows] skips, long[rows] recent failure rate (double bits)
+ *     restarts   int[rows / restart interval, rounded up] offset of every restart interval'th name in the names
+ *     names      sorted, each as varint bytes shared with the previous name, varint length, then the rest in UTF-8
+ * </pre>
+ * Every restart interval'th name is written in full, so we can binary search the restarts and then decode at most
+ * a restart interval of names to find one.  Setup costs are rows too, with the same names as in the csv.
+ */
+final class TestDurationSnapshot {
+    static final String EXTENSION = ".snapshot";
+    // "R3TD"
+    private static final int MAGIC = 0x52335444;
+    // Bump this whenever the layout changes;  we don't read versions we don't know.
+    static final int VERSION = 1;
+    private static final int RESTART_INTERVAL = 16;
+    private static final int HEADER_BYTES = 6 * Integer.BYTES;
+    private static final int COLUMNS = 9;
+
+    private final ByteBuffer buffer;
+    private final int rows;
+    private final int restartInterval;
+    private final int namesOffset;
+    private final int namesLength;
+    private final int restartsOffset;
+
+    private TestDurationSnapshot(@NotNull final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a test duration snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported test duration snapshot version " + buffer.getInt(4) + ", expected " + VERSION);
+        }
+        this.rows = buffer.getInt(8);
+        this.restartInterval = buffer.getInt(12);
+        this.namesOffset = buffer.getInt(16);
+        this.namesLength = buffer.getInt(20);
+        final long restartsOffset = HEADER_BYTES + (long) COLUMNS * Long.BYTES * rows;
+        if (rows < 0 || restartInterval <= 0 || restartsOffset > buffer.limit()
+                || namesOffset != restartsOffset + (long) getRestartCount() * Integer.BYTES
+                || namesLength < 0 || (long) namesOffset + namesLength > buffer.limit()) {
+            throw new IOException("Corrupt test duration snapshot");
+        }
+        this.restartsOffset = (int) restartsOffset;
+        validateNames();
+    }
+
+    /**
+     * Step over every name, so that a corrupt snapshot fails here, before we read any of it, rather than part way
+     * through its rows.  Every name must lie within the names, build on no more than the previous one, and those the
+     * restarts point at must be in full.
+     */
+    private void validateNames() throws IOException {
+        try {
+            final NameDecoder decoder = new NameDecoder(0);
+            // From the first name, whatever the first restart says.
+            decoder.position = namesOffset;
+            for (int row = 0; row < rows; row++) {
+                final boolean isRestart = row % restartInterval == 0;
+                if (isRestart && buffer.getInt(restartsOffset + row / restartInterval * Integer.BYTES) != decoder.position - namesOffset) {
+                    throw new IOException("Corrupt test duration snapshot restart " + row / restartInterval);
+                }
+                decoder.skip(isRestart);
+            }
+            if (decoder.position != namesOffset + namesLength) {
+                throw new IOException("Corrupt test duration snapshot names");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt test duration snapshot names", e);
+        }
+    }
+
+    /**
+     * @param buffer a snapshot, e.g. read into memory, from position zero
+     */
+    @NotNull
+    static TestDurationSnapshot wrap(@NotNull final ByteBuffer buffer) throws IOException {
+        return new TestDurationSnapshot(buffer.duplicate());
+    }
+
+    /**
+     * Map a snapshot file into memory.  The mapping outlives the file being closed.
+     */
+    @NotNull
+    static TestDurationSnapshot map(@NotNull final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new TestDurationSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write a snapshot of the tests and setup costs.
+     */
+    static void write(@NotNull final Tests tests, @NotNull final OutputStream outputStream) throws IOException {
+        final List<Tuple2<String, Stats>> sorted = new ArrayList<>();
+        tests.forEachStats((name, stats) -> sorted.add(new Tuple2<>(name, stats)));
+        sorted.sort(Comparator.comparing(Tuple2::getFirst));
+        final int rows = sorted.size();
+
+        final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        final int[] restarts = new int[(rows + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        byte[] previous = new byte[0];
+        for (int row = 0; row < rows; row++) {
+            final byte[] name = sorted.get(row).getFirst().getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            if (row % RESTART_INTERVAL == 0) {
+                restarts[row / RESTART_INTERVAL] = names.size();
+            } else {
+                while (shared < previous.length && shared < name.length && previous[shared] == name[shared]) {
+                    shared++;
+                }
+            }
+            writeVarInt(names, shared);
+            writeVarInt(names, name.length - shared);
+            names.write(name, shared, name.length - shared);
+            previous = name;
+        }
+
+        final DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rows);
+        out.writeInt(RESTART_INTERVAL);
+        out.writeInt(HEADER_BYTES + COLUMNS * Long.BYTES * rows + restarts.length * Integer.BYTES);
+        out.writeInt(names.size());
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().mean);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().runs);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(Double.doubleToLongBits(row.getSecond().sumOfSquaredDeviations));
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().recent);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().rejectedOutliers);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().passes);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().failures);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(row.getSecond().skips);
+        }
+        for (Tuple2<String, Stats> row : sorted) {
+            out.writeLong(Double.doubleToLongBits(row.getSecond().recentFailureRate));
+        }
+        for (int restart : restarts) {
+            out.writeInt(restart);
+        }
+        names.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * @return the number of rows, i.e. tests and setup costs.
+     */
+    int size() {
+        return rows;
+    }
+
+    @NotNull
+    Stats getStats(int row) {
+        return new Stats(getColumn(0, row), getColumn(1, row), Double.longBitsToDouble(getColumn(2, row)), getColumn(3, row), (int) getColumn(4, row))
+                .withOutcomes((int) getColumn(5, row), (int) getColumn(6, row), (int) getColumn(7, row))
+                .withRecentFailureRate(Double.longBitsToDouble(getColumn(8, row)));
+    }
+
+    private long getColumn(int column, int row) {
+        return buffer.getLong(HEADER_BYTES + (column * rows + row) * Long.BYTES);
+    }
+
+    @NotNull
+    String getName(int row) {
+        final NameDecoder decoder = new NameDecoder(row / restartInterval);
+        String name = decoder.next();
+        for (int i = row % restartInterval; i > 0; i--) {
+            name = decoder.next();
+        }
+        return name;
+    }
+
+    /**
+     * Find a test, or setup cost, without decoding more than a restart interval of names past a binary search.
+     *
+     * @return its row, or -1 if we don't have it.
+     */
+    int indexOf(@NotNull final String name) {
+        // The last restart whose name is no greater than the one we want.
+        int low = 0;
+        int high = getRestartCount() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (new NameDecoder(mid).next().compareTo(name) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            return -1;
+        }
+        final NameDecoder decoder = new NameDecoder(high);
+        for (int row = high * restartInterval; row < Math.min((high + 1) * restartInterval, rows); row++) {
+            final int comparison = decoder.next().compareTo(name);
+            if (comparison == 0) {
+                return row;
+            } else if (comparison > 0) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Visit every row in name order, decoding each name once.
+     */
+    void forEach(@NotNull final BiConsumer<String, Stats> action) {
+        final NameDecoder decoder = new NameDecoder(0);
+        for (int row = 0; row < rows; row++) {
+            action.accept(decoder.next(), getStats(row));
+        }
+    }
+
+    private int getRestartCount() {
+        return (rows + restartInterval - 1) / restartInterval;
+    }
+
+    private static void writeVarInt(@NotNull final ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Decodes the names one after another from a restart, keeping the bytes of the previous name to build on.
+     */
+    private final class NameDecoder {
+        private int position;
+        private byte[] name = new byte[64];
+        private int length;
+
+        NameDecoder(int restart) {
+            position = namesOffset + (rows > 0 ? buffer.getInt(restartsOffset + restart * Integer.BYTES) : 0);
+        }
+
+        @NotNull
+        String next() {
+            final int shared = readVarInt();
+            final int length = readVarInt();
+            if (shared + length > name.length) {
+                final byte[] grown = new byte[Math.max(shared + length, name.length * 2)];
+                System.arraycopy(name, 0, grown, 0, shared);
+                name = grown;
+            }
+            for (int i = 0; i < length; i++) {
+                name[shared + i] = buffer.get(position++);
+            }
+            this.length = shared + length;
+            return new String(name, 0, this.length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Step over the next name without decoding it, checking that it's one we could decode.
+         */
+        void skip(boolean isRestart) throws IOException {
+            final int shared = readVarInt();
+            final int length = readVarInt();
+            if (shared < 0 || shared > this.length || (isRestart && shared != 0) || length < 0
+                    || position > namesOffset + namesLength - length) {
+                throw new IOException("Corrupt test duration snapshot names");
+            }
+            position += length;
+            this.length = shared + length;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = buffer.get(position++);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
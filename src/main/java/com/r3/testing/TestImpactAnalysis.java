@@ -0,0 +1,251 @@
+package com.r3.testing;
+
+import io.github.classgraph.ClassInfo;
+import io.github.classgraph.ClassInfoList;
+import io.github.classgraph.ScanResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Test impact analysis:  run only the tests that depend, directly or through other classes, on code that has changed
+ * since this branch left its target branch.  The dependencies between classes come from their bytecode, and the
+ * changes from git.  Whenever we can't be sure what a change affects, e.g. a resource or a build script changed, or
+ * git can't tell us, we run every test.
+ * <p>
+ * A changed source file is taken to affect every class in its package, as a Kotlin file needn't be named after its
+ * classes and a Java file may hold more than one top level class.  Constants and Kotlin inline functions are compiled
+ * into the classes that use them, leaving no dependency in their bytecode, so changing them also runs every test.
+ * <p>
+ * Only the client has the git history, so the pods are always sent the selected tests in a test plan, rather than
+ * analysing the changes themselves.
+ */
+class TestImpactAnalysis {
+    private static final Logger LOG = LoggerFactory.getLogger(TestImpactAnalysis.class);
+
+    static final String PROPERTY = "testImpactAnalysis";
+    static final String TARGET_BRANCH_PROPERTY = "git.target.branch";
+    // The package of a source file, from its path in a source set.
+    private static final Pattern SOURCE_FILE = Pattern.compile("(?:^|.*/)src/[^/]+/(?:java|kotlin|groovy|scala)/(?:(.*)/)?[^/]+\\.(?:java|kt|groovy|scala)");
+    // Changes that can't affect the tests:  documentation.
+    private static final Pattern IGNORED_FILE = Pattern.compile(".*\\.(?:md|rst|adoc)");
+    // A changed line that may declare a constant, which the compiler copies into the classes that use it.
+    private static final Pattern CONSTANT_DECLARATION = Pattern.compile(".*\\b(?:static\\s+final|final\\s+static|const\\s+val)\\b.*");
+    private static final Pattern KOTLIN_INLINE = Pattern.compile(".*\\binline\\b.*");
+    private static final long GIT_TIMEOUT_SECONDS = 60L;
+
+    // Class name -> the classes that refer to it.
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+
+    /**
+     * @param dependencies class name -> the names of the classes it refers to.
+     */
+    TestImpactAnalysis(@NotNull final Map<String, ? extends Collection<String>> dependencies) {
+        dependencies.forEach((className, classDependencies) -> {
+            dependents.computeIfAbsent(className, c -> new HashSet<>());
+            classDependencies.forEach(dependency -> dependents.computeIfAbsent(dependency, c -> new HashSet<>()).add(className));
+        });
+    }
+
+    /**
+     * @param scanResult a scan with inter-class dependencies enabled.
+     */
+    @NotNull
+    static TestImpactAnalysis fromScan(@NotNull final ScanResult scanResult) {
+        final Map<String, List<String>> dependencies = new HashMap<>();
+        for (Map.Entry<ClassInfo, ClassInfoList> entry : scanResult.getClassDependencyMap().entrySet()) {
+            dependencies.put(entry.getKey().getName(), entry.getValue().getNames());
+        }
+        return new TestImpactAnalysis(dependencies);
+    }
+
+    /**
+     * @param changedFiles paths of the files that have changed, as git reports them
+     * @return the packages of the changed source files, or null if something else changed that might affect any test.
+     */
+    @Nullable
+    static Set<String> getChangedPackages(@NotNull final Collection<String> changedFiles) {
+        final Set<String> packages = new HashSet<>();
+        for (String changedFile : changedFiles) {
+            final String path = changedFile.replace('\\', '/');
+            final Matcher matcher = SOURCE_FILE.matcher(path);
+            if (matcher.matches()) {
+                packages.add(matcher.group(1) != null ? matcher.group(1).replace('/', '.') : "");
+            } else if (!IGNORED_FILE.matcher(path).matches()) {
+                LOG.info("Running every test, as {} isn't source code", changedFile);
+                return null;
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * @return the classes in the changed packages, and every class that depends on them, however indirectly.
+     */
+    @NotNull
+    Set<String> getImpactedClasses(@NotNull final Set<String> changedPackages) {
+        final Deque<String> toVisit = dependents.keySet().stream()
+                .filter(className -> changedPackages.contains(getPackageName(className)))
+                .collect(Collectors.toCollection(ArrayDeque::new));
+        final Set<String> impacted = new HashSet<>(toVisit);
+        while (!toVisit.isEmpty()) {
+            for (String dependent : dependents.getOrDefault(toVisit.pop(), Collections.emptySet())) {
+                if (impacted.add(dependent)) {
+                    toVisit.push(dependent);
+                }
+            }
+        }
+        return impacted;
+    }
+
+    /**
+     * @param tests        test names, as discovered
+     * @param distribution whether they're methods or classes
+     * @return those tests whose classes are impacted, in the same order.
+     */
+    @NotNull
+    static List<String> select(@NotNull final List<String> tests, @NotNull final DistributeTestsBy distribution, @NotNull final Set<String> impactedClasses) {
+        return tests.stream().filter(test -> {
+            final String className = distribution == DistributeTestsBy.METHOD && test.lastIndexOf('.') > 0 ?
+                    test.substring(0, test.lastIndexOf('.')) : test;
+            return impactedClasses.contains(className);
+        }).collect(Collectors.toList());
+    }
+
+    @NotNull
+    private static String getPackageName(@NotNull final String className) {
+        return className.lastIndexOf('.') > 0 ? className.substring(0, className.lastIndexOf('.')) : "";
+    }
+
+    /**
+     * The files changed since this branch left the target branch, including any not yet committed.
+     *
+     * @param directory    somewhere in the git working tree
+     * @param targetBranch the branch we'll merge into, e.g. from {@link #TARGET_BRANCH_PROPERTY}
+     * @return the paths of the changed files, or null if git couldn't tell us.
+     */
+    @Nullable
+    static List<String> getChangedFiles(@NotNull final File directory, @NotNull final String targetBranch) {
+        final String mergeBase = getMergeBase(directory, targetBranch);
+        return mergeBase != null ? git(directory, "diff", "--name-only", mergeBase) : null;
+    }
+
+    /**
+     * Whether the changes since this branch left the target branch may have been compiled into other classes, so
+     * that those classes' bytecode doesn't depend on the changed ones:  a changed line declaring a constant, or any
+     * change to a Kotlin file with inline functions, whose callers each hold a copy of their body.  This errs on the
+     * side of running every test, e.g. for a changed static final field that isn't a constant.
+     *
+     * @param directory    somewhere in the git working tree
+     * @param targetBranch the branch we'll merge into
+     * @return true if so, or if git couldn't tell us.
+     */
+    static boolean changesInlinedCode(@NotNull final File directory, @NotNull final String targetBranch) {
+        final String mergeBase = getMergeBase(directory, targetBranch);
+        final List<String> diff = mergeBase != null ? git(directory, "diff", "--no-color", "--src-prefix=a/", "--dst-prefix=b/", "-U0", mergeBase) : null;
+        if (diff == null) {
+            return true;
+        }
+
+        final Set<String> kotlinFiles = new LinkedHashSet<>();
+        String file = "";
+        for (String line : diff) {
+            if (line.startsWith("+++ ") || line.startsWith("--- ")) {
+                final String path = line.substring(4);
+                if (!path.equals("/dev/null")) {
+                    file = path.substring(path.indexOf('/') + 1);
+                }
+            } else if (line.startsWith("+") || line.startsWith("-")) {
+                if (CONSTANT_DECLARATION.matcher(line).matches() || file.endsWith(".kt") && KOTLIN_INLINE.matcher(line).matches()) {
+                    LOG.info("Running every test, as {} may have changed code compiled into other classes: {}", file, line);
+                    return true;
+                }
+                if (file.endsWith(".kt")) {
+                    kotlinFiles.add(file);
+                }
+            }
+        }
+        if (kotlinFiles.isEmpty()) {
+            return false;
+        }
+
+        // A change to the body of an inline function needn't be on the line that declares it, so look at the whole
+        // file.  The diff's paths are from the top of the working tree, wherever we are in it.
+        final List<String> topLevel = git(directory, "rev-parse", "--show-toplevel");
+        if (topLevel == null || topLevel.size() != 1) {
+            return true;
+        }
+        for (String kotlinFile : kotlinFiles) {
+            final Path path = Paths.get(topLevel.get(0), kotlinFile);
+            try {
+                if (Files.exists(path) && Files.readAllLines(path, StandardCharsets.UTF_8).stream().anyMatch(line -> KOTLIN_INLINE.matcher(line).matches())) {
+                    LOG.info("Running every test, as {} has inline functions", kotlinFile);
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the commit where this branch left the target branch, or null if git couldn't tell us.
+     */
+    @Nullable
+    private static String getMergeBase(@NotNull final File directory, @NotNull final String targetBranch) {
+        if (targetBranch.isEmpty()) {
+            LOG.info("Running every test, as we don't know the target branch (-D{})", TARGET_BRANCH_PROPERTY);
+            return null;
+        }
+        for (String branch : Arrays.asList(targetBranch, "origin/" + targetBranch)) {
+            final List<String> mergeBase = git(directory, "merge-base", branch, "HEAD");
+            if (mergeBase != null && mergeBase.size() == 1) {
+                return mergeBase.get(0);
+            }
+        }
+        LOG.warn("Running every test, as git can't find where we left {}", targetBranch);
+        return null;
+    }
+
+    @Nullable
+    private static List<String> git(@NotNull final File directory, @NotNull final String... arguments) {
+        final List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(arguments));
+        try {
+            final Process process = new ProcessBuilder(command).directory(directory).start();
+            process.getOutputStream().close();
+            final List<String> lines;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                lines = reader.lines().map(String::trim).filter(line -> !line.isEmpty()).collect(Collectors.toList());
+            }
+            if (!process.waitFor(GIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return null;
+            }
+            return process.exitValue() == 0 ? lines : null;
+        } catch (IOException e) {
+            LOG.warn("Could not run git: {}", e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.r3.testing;
+
+/**
+ * How a run of a test ended, as recorded in {@link Tests} alongside its duration.
+ */
+public enum TestOutcome {
+    PASSED,
+    FAILED,
+    SKIPPED
+}
@@ -0,0 +1,245 @@
+package com.r3.testing;
+
+import com.r3.testing.BucketingAllocator.TestBucket;
+import com.r3.testing.BucketingAllocator.TestsForForkContainer;
+import groovy.lang.Tuple2;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test plans on disk, keyed by a hash of what we know before making one:  the tests the listing tasks discovered
+ * (which Gradle only lists again when their class files change), the tag of the durations we would download, the
+ * forks and their capacities, and how we would allocate.  So a plan we have is reused without downloading the
+ * durations, or matching the tests to them, at all.
+ * <p>
+ * The durations under a tag are replaced as builds publish theirs, which the key can't see, so a plan is only
+ * reused for {@link #MAX_AGE_MILLIS}, and we keep no more than {@link #MAX_PLANS} of them.  A plan file holds, for
+ * each fork, its buckets as they were matched, so a reused plan predicts the same durations as when it was made.
+ */
+class TestPlanCache {
+    private static final Logger LOG = LoggerFactory.getLogger(TestPlanCache.class);
+    // Bump this whenever the allocation algorithm changes, so we don't reuse plans it would no longer make.
+    private static final int VERSION = 2;
+    private static final String EXTENSION = ".plan";
+    static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    static final int MAX_PLANS = 32;
+
+    private final File directory;
+
+    TestPlanCache(@NotNull final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param discoveredTests each test (or class) found, with its Test task, in a deterministic order.
+     * @param durationsTag    which durations the plan would be made from.
+     * @return a hex SHA-256 of the inputs to the plan.
+     */
+    @NotNull
+    static String key(@NotNull final List<Tuple2<String, Object>> discoveredTests,
+                      @NotNull final String durationsTag,
+                      @NotNull final List<TestsForForkContainer> forkContainers,
+                      @NotNull final AllocationStrategy strategy,
+                      @NotNull final DistributeTestsBy distribution,
+                      double durationDeviations) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DataOutputStream out = new DataOutputStream(new DigestingOutputStream(digest))) {
+            out.writeInt(VERSION);
+            out.writeUTF(strategy.name());
+            out.writeUTF(distribution.name());
+            out.writeDouble(durationDeviations);
+            out.writeUTF(durationsTag);
+            out.writeInt(forkContainers.size());
+            for (TestsForForkContainer container : forkContainers) {
+                out.writeDouble(container.getCapacity());
+            }
+            out.writeInt(discoveredTests.size());
+            for (Tuple2<String, Object> test : discoveredTests) {
+                out.writeUTF(BucketingAllocator.getTaskPath(test.getSecond()));
+                out.writeUTF(test.getFirst());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @NotNull
+    File getFile(@NotNull final String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    /**
+     * Fill the (empty) fork containers from a cached plan, if we have one for exactly these tests.
+     *
+     * @return the setup every fork pays, if the containers now hold the cached plan, or null if they are untouched.
+     */
+    @Nullable
+    Long load(@NotNull final String key,
+              @NotNull final List<Tuple2<String, Object>> discoveredTests,
+              @NotNull final List<TestsForForkContainer> forkContainers) {
+        final File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (System.currentTimeMillis() - file.lastModified() > MAX_AGE_MILLIS) {
+            LOG.info("Not reusing test plan {}, its durations may be out of date", file);
+            return null;
+        }
+
+        final Map<String, Object> tasks = new HashMap<>();
+        final Set<String> unplanned = new HashSet<>();
+        for (Tuple2<String, Object> test : discoveredTests) {
+            final String taskPath = BucketingAllocator.getTaskPath(test.getSecond());
+            tasks.put(taskPath, test.getSecond());
+            unplanned.add(taskPath + '\n' + test.getFirst());
+        }
+
+        final List<List<TestBucket>> plan = new ArrayList<>();
+        final long forkSetupNanos;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION || in.readInt() != forkContainers.size()) {
+                return null;
+            }
+            forkSetupNanos = in.readLong();
+            for (int fork = 0; fork < forkContainers.size(); fork++) {
+                final int size = in.readInt();
+                if (size < 0 || size > unplanned.size()) {
+                    return null;
+                }
+                final List<TestBucket> buckets = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    final String taskPath = in.readUTF();
+                    final String testName = in.readUTF();
+                    if (!unplanned.remove(taskPath + '\n' + testName)) {
+                        return null;
+                    }
+                    final String className = in.readUTF();
+                    final long classSetupNanos = in.readLong();
+                    final long taskSetupNanos = in.readLong();
+                    final double failureRate = in.readDouble();
+                    final int testCount = in.readInt();
+                    if (testCount < 0) {
+                        return null;
+                    }
+                    final List<Tuple2<String, Long>> foundTests = new ArrayList<>(Math.min(testCount, 1024));
+                    for (int test = 0; test < testCount; test++) {
+                        foundTests.add(new Tuple2<>(in.readUTF(), in.readLong()));
+                    }
+                    buckets.add(new TestBucket(tasks.get(taskPath), testName, foundTests, className, classSetupNanos, taskSetupNanos, failureRate));
+                }
+                plan.add(buckets);
+            }
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable test plan {}:  {}", file, e.toString());
+            return null;
+        }
+        if (!unplanned.isEmpty()) {
+            return null;
+        }
+
+        for (int fork = 0; fork < plan.size(); fork++) {
+            plan.get(fork).forEach(forkContainers.get(fork)::addBucket);
+        }
+        return forkSetupNanos;
+    }
+
+    /**
+     * Save the plan in the fork containers, and forget old plans.  Failing to save is not an error;  we just make the
+     * plan again next time.
+     */
+    void save(@NotNull final String key,
+              @NotNull final List<TestsForForkContainer> forkContainers,
+              long forkSetupNanos) {
+        final File file = getFile(key);
+        try {
+            Files.createDirectories(directory.toPath());
+            // Write then rename, so nobody reads half a plan.
+            final File temporary = File.createTempFile(key, ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                out.writeInt(VERSION);
+                out.writeInt(forkContainers.size());
+                out.writeLong(forkSetupNanos);
+                for (TestsForForkContainer container : forkContainers) {
+                    final List<TestBucket> forkBuckets = container.getBucketsForFork();
+                    out.writeInt(forkBuckets.size());
+                    for (TestBucket bucket : forkBuckets) {
+                        out.writeUTF(BucketingAllocator.getTaskPath(bucket.testTask));
+                        out.writeUTF(bucket.testName);
+                        out.writeUTF(bucket.className);
+                        out.writeLong(bucket.classSetupNanos);
+                        out.writeLong(bucket.taskSetupNanos);
+                        out.writeDouble(bucket.failureRate);
+                        out.writeInt(bucket.foundTests.size());
+                        for (Tuple2<String, Long> test : bucket.foundTests) {
+                            out.writeUTF(test.getFirst());
+                            out.writeLong(test.getSecond());
+                        }
+                    }
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not save test plan {}:  {}", file, e.toString());
+        }
+        evict();
+    }
+
+    /**
+     * Delete the plans we would no longer reuse, and all but the newest {@link #MAX_PLANS}.
+     */
+    void evict() {
+        final File[] plans = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (plans == null) {
+            return;
+        }
+        Arrays.sort(plans, Comparator.comparingLong(File::lastModified).reversed());
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < plans.length; i++) {
+            if ((i >= MAX_PLANS || now - plans[i].lastModified() > MAX_AGE_MILLIS) && !plans[i].delete()) {
+                LOG.warn("Could not delete old test plan {}", plans[i]);
+            }
+        }
+    }
+
+    /**
+     * Feeds everything written to it into a digest.
+     */
+    private static final class DigestingOutputStream extends OutputStream {
+        private final MessageDigest digest;
+
+        DigestingOutputStream(@NotNull final MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.r3.testing;
+
+import com.r3.testing.BucketingAllocator.TestBucket;
+import com.r3.testing.BucketingAllocator.TestsForForkContainer;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A test plan made once, on the client, and shipped to the pods so that they don't each have to discover
+ * their tests and make the same plan again.  Each fork gets its own slice:  a csv file of the Test task and
+ * the test (or class, when distributing by class) of each of its buckets.
+ */
+class TestPlanFile {
+    static final String PROPERTY = "testPlanFile";
+    static final String TASK_PATH = "Task Path";
+    static final String TEST_NAME = "Test Name";
+
+    /**
+     * @return the slice of the plan for this build, if the client shipped us one.
+     */
+    @Nullable
+    static File fromSystemProperties() {
+        final String file = Properties.getProperty(PROPERTY).trim();
+        return file.isEmpty() ? null : new File(file);
+    }
+
+    @NotNull
+    static String getFileName(int fork) {
+        return "fork-" + fork + ".csv";
+    }
+
+    /**
+     * @param forkContainers the forks of a plan we have made
+     * @return each fork's slice, by {@link #getFileName(int) file name}.
+     */
+    @NotNull
+    static Map<String, String> slices(@NotNull final List<TestsForForkContainer> forkContainers) {
+        final Map<String, String> slices = new LinkedHashMap<>();
+        for (int fork = 0; fork < forkContainers.size(); fork++) {
+            final StringWriter writer = new StringWriter();
+            write(forkContainers.get(fork).getBucketsForFork(), writer);
+            slices.put(getFileName(fork), writer.toString());
+        }
+        return slices;
+    }
+
+    /**
+     * Write a csv file of task path and test name for each bucket, e.g. those of a fork, or a batch.
+     *
+     * @param buckets the buckets
+     * @param writer  a writer
+     * @return true if no problems.
+     */
+    static boolean write(@NotNull final List<TestBucket> buckets, @NotNull final Writer writer) {
+        try {
+            final CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(TASK_PATH, TEST_NAME));
+            for (TestBucket bucket : buckets) {
+                printer.printRecord(BucketingAllocator.getTaskPath(bucket.testTask), bucket.testName);
+            }
+            printer.flush();
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a fork's slice of the plan.
+     *
+     * @param reader a reader
+     * @return test names by task path, in plan order.
+     * @throws IOException if we can't read the slice;  running without it would silently skip tests.
+     */
+    @NotNull
+    static Map<String, List<String>> read(@NotNull final Reader reader) throws IOException {
+        final Map<String, List<String>> testsByTask = new LinkedHashMap<>();
+        for (CSVRecord record : CSVFormat.DEFAULT.withHeader().parse(reader)) {
+            testsByTask.computeIfAbsent(record.get(TASK_PATH), t -> new ArrayList<>()).add(record.get(TEST_NAME));
+        }
+        return testsByTask;
+    }
+}
@@ -0,0 +1,195 @@
+package com.r3.testing;
+
+import com.r3.testing.Tests.Stats;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * The stats of each test, by test name, for {@link Tests}.  A duration history can run to hundreds of thousands
+ * of tests, and in a map each of them costs a map node and a {@link Stats} object on top of its numbers, so we
+ * keep the numbers in parallel arrays instead, and find a name's index in them through an open addressing hash
+ * table.  Tests are only ever added, or all cleared together, so the arrays never have holes.
+ * <p>
+ * {@link Stats} are made as they're asked for, and are not kept.
+ */
+final class TestStatsTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] names;
+    private long[] means;
+    private long[] runs;
+    private double[] sumsOfSquaredDeviations;
+    private long[] recents;
+    // Only ever 0 or 1, as we only leave one outlier in a row out of the recent duration.
+    private byte[] rejectedOutliers;
+    private int[] passes;
+    private int[] failures;
+    private int[] skips;
+    private double[] recentFailureRates;
+    private int size;
+    // Linear probing:  each slot holds a name's index plus one, or zero if empty.  Kept at most half full.
+    private int[] slots;
+
+    TestStatsTable() {
+        clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // How many tests the arrays have room for, and the hash table's size, for tests of the footprint.
+    int getCapacity() {
+        return names.length;
+    }
+
+    int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * @return the index of the test in the arrays, or -1 if we don't have it.
+     */
+    int indexOf(@NotNull final String testName) {
+        for (int slot = firstSlot(testName, slots.length); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            if (names[slots[slot] - 1].equals(testName)) {
+                return slots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    Stats get(@NotNull final String testName) {
+        final int index = indexOf(testName);
+        return index >= 0 ? get(index) : null;
+    }
+
+    @NotNull
+    Stats getOrDefault(@NotNull final String testName, @NotNull final Stats defaultStats) {
+        final Stats stats = get(testName);
+        return stats != null ? stats : defaultStats;
+    }
+
+    @NotNull
+    Stats get(int index) {
+        return new Stats(means[index], runs[index], sumsOfSquaredDeviations[index], recents[index], rejectedOutliers[index],
+                passes[index], failures[index], skips[index], recentFailureRates[index]);
+    }
+
+    @NotNull
+    String getName(int index) {
+        return names[index];
+    }
+
+    long getMean(int index) {
+        return means[index];
+    }
+
+    /**
+     * Add the test, or replace its stats if we already have it.
+     */
+    void put(@NotNull final String testName, @NotNull final Stats stats) {
+        int slot = firstSlot(testName, slots.length);
+        for (; slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            if (names[slots[slot] - 1].equals(testName)) {
+                set(slots[slot] - 1, stats);
+                return;
+            }
+        }
+
+        if (size == names.length) {
+            grow();
+        }
+        names[size] = testName;
+        set(size, stats);
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    void putAll(@NotNull final TestStatsTable other) {
+        for (int index = 0; index < other.size; index++) {
+            put(other.names[index], other.get(index));
+        }
+    }
+
+    /**
+     * @return the test names, in the order they were added.
+     */
+    @NotNull
+    String[] getNames() {
+        return Arrays.copyOf(names, size);
+    }
+
+    void clear() {
+        names = new String[INITIAL_CAPACITY];
+        means = new long[INITIAL_CAPACITY];
+        runs = new long[INITIAL_CAPACITY];
+        sumsOfSquaredDeviations = new double[INITIAL_CAPACITY];
+        recents = new long[INITIAL_CAPACITY];
+        rejectedOutliers = new byte[INITIAL_CAPACITY];
+        passes = new int[INITIAL_CAPACITY];
+        failures = new int[INITIAL_CAPACITY];
+        skips = new int[INITIAL_CAPACITY];
+        recentFailureRates = new double[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY * 2];
+        size = 0;
+    }
+
+    /**
+     * Replace the stats of the test at this index.
+     */
+    void set(int index, @NotNull final Stats stats) {
+        means[index] = stats.mean;
+        runs[index] = stats.runs;
+        sumsOfSquaredDeviations[index] = stats.sumOfSquaredDeviations;
+        recents[index] = stats.recent;
+        rejectedOutliers[index] = (byte) Math.min(stats.rejectedOutliers, Byte.MAX_VALUE);
+        passes[index] = stats.passes;
+        failures[index] = stats.failures;
+        skips[index] = stats.skips;
+        recentFailureRates[index] = stats.recentFailureRate;
+    }
+
+    // Grows by half rather than doubling, as the arrays are most of the footprint and a history is read in one go.
+    private void grow() {
+        final int capacity = names.length + (names.length >> 1);
+        names = Arrays.copyOf(names, capacity);
+        means = Arrays.copyOf(means, capacity);
+        runs = Arrays.copyOf(runs, capacity);
+        sumsOfSquaredDeviations = Arrays.copyOf(sumsOfSquaredDeviations, capacity);
+        recents = Arrays.copyOf(recents, capacity);
+        rejectedOutliers = Arrays.copyOf(rejectedOutliers, capacity);
+        passes = Arrays.copyOf(passes, capacity);
+        failures = Arrays.copyOf(failures, capacity);
+        skips = Arrays.copyOf(skips, capacity);
+        recentFailureRates = Arrays.copyOf(recentFailureRates, capacity);
+    }
+
+    private void rehash(int slotCount) {
+        final int[] rehashed = new int[slotCount];
+        for (int index = 0; index < size; index++) {
+            int slot = firstSlot(names[index], slotCount);
+            while (rehashed[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            rehashed[slot] = index + 1;
+        }
+        slots = rehashed;
+    }
+
+    // The slot count is a power of two.  Spread the high bits of the hash into the low ones as HashMap does,
+    // since test names share long prefixes.
+    private static int firstSlot(@NotNull final String testName, int slotCount) {
+        final int hash = testName.hashCode();
+        return (hash ^ (hash >>> 16)) & (slotCount - 1);
+    }
+}
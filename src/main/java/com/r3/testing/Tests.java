@@ -6,6 +6,7 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,21 +14,106 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public class Tests {
     final static String TEST_NAME = "Test Name";
+    final static String SETUP_NAME = "Setup Name";
     final static String MEAN_DURATION_NANOS = "Mean Duration Nanos";
     final static String NUMBER_OF_RUNS = "Number of runs";
+    final static String STANDARD_DEVIATION_NANOS = "Standard Deviation Nanos";
+    final static String RECENT_DURATION_NANOS = "Recent Duration Nanos";
+    final static String REJECTED_OUTLIERS = "Rejected Outliers";
+    final static String PASSES = "Passes";
+    final static String FAILURES = "Failures";
+    final static String SKIPS = "Skips";
+    final static String RECENT_FAILURE_RATE = "Recent Failure Rate";
     private static final Logger LOG = LoggerFactory.getLogger(Tests.class);
-    // test name -> (mean duration, number of runs)
-    private final Map<String, Tuple2<Long, Long>> tests = new HashMap<>();
+    public static final String DURATION_MODEL_PROPERTY = "durationModel";
+    public static final String DURATION_HALF_LIFE_PROPERTY = "durationHalfLife";
+    public static final String DURATION_OUTLIER_FACTOR_PROPERTY = "durationOutlierFactor";
+    // Setup costs are named "<class name>.<classSetup>", "<task path>.<taskSetup>" and "<forkSetup>", and written to
+    // a csv of their own, as older versions read every row of the tests csv as a test.
+    // Angle brackets can't appear in a Java method name, so these can never clash with a test.
+    static final String CLASS_SETUP_SUFFIX = ".<classSetup>";
+    static final String TASK_SETUP_SUFFIX = ".<taskSetup>";
+    static final String FORK_SETUP = "<forkSetup>";
+    static final double DEFAULT_HALF_LIFE_IN_RUNS = 10.0;
+    static final double DEFAULT_OUTLIER_FACTOR = 3.0;
+    // test name -> (mean duration, number of runs, sum of squared deviations, recent duration, rejected outliers,
+    // passes, failures, skips, recent failure rate), in primitive arrays as there may be hundreds of thousands of tests.
+    private final TestStatsTable tests = new TestStatsTable();
+    // csv row name -> stats of a setup cost:  a class's time outside its test methods (e.g. in @BeforeClass),
+    // a Test task's time outside its tests (e.g. starting the test JVM), or a fork's time before its first Test task.
+    private final Map<String, Stats> setups = new HashMap<>();
+    // The test names in sorted order, for prefix lookups.  Shares the key strings with 'tests'.
+    // Rebuilt on the next lookup whenever the set of names changes, so null means stale.
+    private String[] sortedTestNames = null;
     // If we don't have any tests from which to get a mean, use this.
     static long DEFAULT_MEAN_NANOS = 1000L;
 
-    private static Tuple2<Long, Long> DEFAULT_MEAN_TUPLE = new Tuple2<>(DEFAULT_MEAN_NANOS, 0L);
+    private static final Stats NO_RUNS = new Stats(0L, 0L, 0.0, 0L, 0);
+    private static final Stats DEFAULT_MEAN_STATS = new Stats(DEFAULT_MEAN_NANOS, 0L, 0.0, DEFAULT_MEAN_NANOS, 0);
     // mean, count
-    private Tuple2<Long, Long> meanForTests = DEFAULT_MEAN_TUPLE;
+    private Stats meanForTests = DEFAULT_MEAN_STATS;
+
+    private final DurationModel model;
+    // Weight of the newest run in the recent duration:  1 - 2^(-1 / half-life).
+    private final double recentWeight;
+    // A run this many times longer (or shorter) than the recent duration is an outlier.  Zero or less to disable.
+    private final double outlierFactor;
+
+    public Tests() {
+        this(DurationModel.MEAN, DEFAULT_HALF_LIFE_IN_RUNS, DEFAULT_OUTLIER_FACTOR);
+    }
+
+    /**
+     * Both the mean and the recent duration are always recorded;  the model selects which one we report.
+     *
+     * @param model          which duration to report for known tests
+     * @param halfLifeInRuns after this many runs a duration counts for half as much in the recent duration
+     * @param outlierFactor  a single run this many times longer or shorter than the recent duration is left out of it.
+     *                       Two in a row are taken to be a real change.  Zero or less to keep every run.
+     */
+    public Tests(@NotNull final DurationModel model, double halfLifeInRuns, double outlierFactor) {
+        if (halfLifeInRuns <= 0.0) {
+            throw new IllegalArgumentException("Half life must be positive: " + halfLifeInRuns);
+        }
+        this.model = model;
+        this.recentWeight = 1.0 - Math.pow(2.0, -1.0 / halfLifeInRuns);
+        this.outlierFactor = outlierFactor;
+    }
+
+    /**
+     * Create an empty set of tests whose duration model is taken from the system properties, if set.
+     *
+     * @return a new Tests instance
+     */
+    @NotNull
+    public static Tests fromSystemProperties() {
+        final String model = Properties.getProperty(DURATION_MODEL_PROPERTY);
+        final String halfLife = Properties.getProperty(DURATION_HALF_LIFE_PROPERTY);
+        final String outlierFactor = Properties.getProperty(DURATION_OUTLIER_FACTOR_PROPERTY);
+        return new Tests(model.isEmpty() ? DurationModel.MEAN : DurationModel.valueOf(model),
+                halfLife.isEmpty() ? DEFAULT_HALF_LIFE_IN_RUNS : Double.parseDouble(halfLife),
+                outlierFactor.isEmpty() ? DEFAULT_OUTLIER_FACTOR : Double.parseDouble(outlierFactor));
+    }
+
+    /**
+     * The same tests, durations and setups, reported with a different duration model.  The half life and outlier
+     * factor only apply to the runs we add from now on.
+     *
+     * @return a new Tests instance
+     */
+    @NotNull
+    public Tests withDurationModel(@NotNull final DurationModel model, double halfLifeInRuns, double outlierFactor) {
+        final Tests copy = new Tests(model, halfLifeInRuns, outlierFactor);
+        copy.tests.putAll(tests);
+        copy.setups.putAll(setups);
+        copy.meanForTests = meanForTests;
+        return copy;
+    }
 
     /**
      * Read tests, mean duration and runs from a csv file.
@@ -36,32 +122,94 @@ public class Tests {
      * @return list of tests, or an empty list if none or we have a problem.
      */
     public static List<Tuple3<String, Long, Long>> read(Reader reader) {
+        return readStats(reader).stream().map(t -> new Tuple3<>(t.getFirst(), t.getSecond().mean, t.getSecond().runs))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Read tests, mean duration, runs, standard deviation and recent duration from a csv file.
+     * Files written before we recorded the later columns are read as having no variance, a recent
+     * duration equal to the mean, and no outcomes.
+     * <p>
+     * To load a file into a Tests instance use {@link #addTests(Reader)}, which doesn't hold every record at once.
+     *
+     * @param reader a reader
+     * @return list of tests, sorted by name, or an empty list if none or we have a problem.
+     */
+    static List<Tuple2<String, Stats>> readStats(Reader reader) {
         try {
             List<CSVRecord> records = CSVFormat.DEFAULT.withHeader().parse(reader).getRecords();
-            return records.stream().map(record -> {
-                try {
-                    final String testName = record.get(TEST_NAME);
-                    final long testDuration = Long.parseLong(record.get(MEAN_DURATION_NANOS));
-                    final long testRuns = Long.parseLong(record.get(NUMBER_OF_RUNS)); // can't see how we would have zero tbh.
-                    return new Tuple3<>(testName, testDuration, Math.max(testRuns, 1));
-                } catch (IllegalArgumentException | IllegalStateException e) {
-                    return null;
-                }
-            }).filter(Objects::nonNull).sorted(Comparator.comparing(Tuple3::getFirst)).collect(Collectors.toList());
+            return records.stream().map(Tests::parse)
+                    .filter(Objects::nonNull).sorted(Comparator.comparing(Tuple2::getFirst)).collect(Collectors.toList());
         } catch (IOException ignored) {
 
         }
         return Collections.emptyList();
     }
 
-    private static Tuple2<Long, Long> recalculateMean(@NotNull final Tuple2<Long, Long> previous, long nanos) {
-        final long total = previous.getFirst() * previous.getSecond() + nanos;
-        final long count = previous.getSecond() + 1;
-        return new Tuple2<>(total / count, count);
+    /**
+     * @return the test name and stats of a csv record, or null if it's malformed.
+     */
+    @Nullable
+    private static Tuple2<String, Stats> parse(@NotNull final CSVRecord record) {
+        return parse(record, TEST_NAME);
+    }
+
+    @Nullable
+    private static Tuple2<String, Stats> parse(@NotNull final CSVRecord record, @NotNull final String nameColumn) {
+        try {
+            final String testName = record.get(nameColumn);
+            final long testDuration = Long.parseLong(record.get(MEAN_DURATION_NANOS));
+            final long testRuns = Long.parseLong(record.get(NUMBER_OF_RUNS)); // can't see how we would have zero tbh.
+            final long testStandardDeviation = record.isSet(STANDARD_DEVIATION_NANOS) ?
+                    Long.parseLong(record.get(STANDARD_DEVIATION_NANOS)) : 0L;
+            final long testRecentDuration = record.isSet(RECENT_DURATION_NANOS) ?
+                    Long.parseLong(record.get(RECENT_DURATION_NANOS)) : testDuration;
+            final int testRejectedOutliers = record.isSet(REJECTED_OUTLIERS) ?
+                    Integer.parseInt(record.get(REJECTED_OUTLIERS)) : 0;
+            final int testPasses = record.isSet(PASSES) ? Integer.parseInt(record.get(PASSES)) : 0;
+            final int testFailures = record.isSet(FAILURES) ? Integer.parseInt(record.get(FAILURES)) : 0;
+            final int testSkips = record.isSet(SKIPS) ? Integer.parseInt(record.get(SKIPS)) : 0;
+            final Stats stats = Stats.of(testDuration, Math.max(testRuns, 1), Math.max(testStandardDeviation, 0L),
+                    testRecentDuration, Math.max(testRejectedOutliers, 0))
+                    .withOutcomes(Math.max(testPasses, 0), Math.max(testFailures, 0), Math.max(testSkips, 0));
+            return new Tuple2<>(testName, record.isSet(RECENT_FAILURE_RATE) ?
+                    stats.withRecentFailureRate(Double.parseDouble(record.get(RECENT_FAILURE_RATE))) : stats);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return null;
+        }
     }
 
     /**
-     * Write a csv file of test name, duration, runs
+     * Welford's online update of the mean and the sum of squared deviations from it, plus the exponentially
+     * weighted recent duration.  The mean is updated incrementally rather than via (mean * runs + nanos),
+     * which overflows for long-lived slow tests.
+     */
+    private Stats recalculateMean(@NotNull final Stats previous, long nanos) {
+        final long count = previous.runs + 1;
+        final long mean = previous.mean + (nanos - previous.mean) / count;
+        final double sumOfSquaredDeviations = previous.sumOfSquaredDeviations + (double) (nanos - previous.mean) * (nanos - mean);
+
+        final Stats updated;
+        if (previous.runs == 0) {
+            updated = new Stats(mean, count, sumOfSquaredDeviations, nanos, 0);
+        } else if (isOutlier(previous.recent, nanos) && previous.rejectedOutliers == 0) {
+            // Leave a one-off out of the recent duration, but remember we've seen it.
+            updated = new Stats(mean, count, sumOfSquaredDeviations, previous.recent, 1);
+        } else {
+            final long recent = previous.recent + Math.round(recentWeight * (nanos - previous.recent));
+            updated = new Stats(mean, count, sumOfSquaredDeviations, recent, 0);
+        }
+        return updated.withOutcomes(previous.passes, previous.failures, previous.skips).withRecentFailureRate(previous.recentFailureRate);
+    }
+
+    private boolean isOutlier(long recent, long nanos) {
+        return outlierFactor > 0.0 && (nanos > recent * outlierFactor || nanos * outlierFactor < recent);
+    }
+
+    /**
+     * Write a csv file of test name, duration, runs, standard deviation, recent duration, rejected outliers,
+     * passes, failures, skips and recent failure rate
      *
      * @param writer a writer
      * @return true if no problems.
@@ -71,9 +219,12 @@ public class Tests {
         final CSVPrinter printer;
         try {
             printer = new CSVPrinter(writer,
-                    CSVFormat.DEFAULT.withHeader(TEST_NAME, MEAN_DURATION_NANOS, NUMBER_OF_RUNS));
-            for (String key : tests.keySet()) {
-                printer.printRecord(key, tests.get(key).getFirst(), tests.get(key).getSecond());
+                    CSVFormat.DEFAULT.withHeader(TEST_NAME, MEAN_DURATION_NANOS, NUMBER_OF_RUNS, STANDARD_DEVIATION_NANOS,
+                            RECENT_DURATION_NANOS, REJECTED_OUTLIERS, PASSES, FAILURES, SKIPS, RECENT_FAILURE_RATE));
+            for (int index = 0; index < tests.size(); index++) {
+                final Stats stats = tests.get(index);
+                printer.printRecord(tests.getName(index), stats.mean, stats.runs, Math.round(stats.getStandardDeviation()),
+                        stats.recent, stats.rejectedOutliers, stats.passes, stats.failures, stats.skips, stats.recentFailureRate);
             }
 
             printer.flush();
@@ -83,6 +234,54 @@ public class Tests {
         return ok;
     }
 
+    /**
+     * Write a csv file of setup cost name, duration, runs, standard deviation, recent duration and rejected outliers.
+     * These are kept out of {@link #write(Writer)}, so that older versions don't take them for tests.
+     *
+     * @param writer a writer
+     * @return true if no problems.
+     */
+    public boolean writeSetups(@NotNull final Writer writer) {
+        boolean ok = true;
+        try {
+            final CSVPrinter printer = new CSVPrinter(writer,
+                    CSVFormat.DEFAULT.withHeader(SETUP_NAME, MEAN_DURATION_NANOS, NUMBER_OF_RUNS, STANDARD_DEVIATION_NANOS,
+                            RECENT_DURATION_NANOS, REJECTED_OUTLIERS));
+            for (Map.Entry<String, Stats> entry : new TreeMap<>(setups).entrySet()) {
+                final Stats stats = entry.getValue();
+                printer.printRecord(entry.getKey(), stats.mean, stats.runs, Math.round(stats.getStandardDeviation()),
+                        stats.recent, stats.rejectedOutliers);
+            }
+            printer.flush();
+        } catch (IOException e) {
+            ok = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Add setup costs from a csv file, as written by {@link #writeSetups(Writer)}.  Rows that aren't setup costs
+     * are ignored.
+     *
+     * @param reader a reader
+     * @return true if no problems.  If we have a problem part way through we keep the setups read before it.
+     */
+    public boolean addSetups(@NotNull final Reader reader) {
+        boolean ok = true;
+        try {
+            for (CSVRecord record : CSVFormat.DEFAULT.withHeader().parse(reader)) {
+                final Tuple2<String, Stats> t = parse(record, SETUP_NAME);
+                if (t != null && isSetup(t.getFirst())) {
+                    setups.put(t.getFirst(), t.getSecond());
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The parser's iterator wraps the reader's IOExceptions.
+            ok = false;
+        }
+        return ok;
+    }
+
     /**
      * Add tests, and also (re)calculate the mean test duration.
      * e.g. addTests(read(reader));
@@ -90,24 +289,144 @@ public class Tests {
      * @param testsCollection tests, typically from a csv file.
      */
     public void addTests(@NotNull final List<Tuple3<String, Long, Long>> testsCollection) {
-        testsCollection.forEach(t -> this.tests.put(t.getFirst(), new Tuple2<>(t.getSecond(), t.getThird())));
+        addStats(testsCollection.stream().map(t -> new Tuple2<>(t.getFirst(), new Stats(t.getSecond(), Math.max(t.getThird(), 1L), 0.0, t.getSecond(), 0)))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Add tests with all their stats, and also (re)calculate the mean test duration.
+     *
+     * @param testsCollection tests, e.g. from {@link #readStats(Reader)}.
+     */
+    void addStats(@NotNull final List<Tuple2<String, Stats>> testsCollection) {
+        testsCollection.forEach(t -> {
+            if (isSetup(t.getFirst())) {
+                this.setups.put(t.getFirst(), t.getSecond());
+            } else {
+                this.tests.put(t.getFirst(), t.getSecond());
+            }
+        });
+        sortedTestNames = null;
 
         // Calculate the mean test time.
+        setMeanForTests(getTotalOfMeans());
+    }
+
+    /**
+     * Add tests from a csv file, as written by {@link #write(Writer)}, one record at a time:  unlike
+     * addStats(readStats(reader)) we never hold every record at once, nor sort them.  Any setup cost rows are added as
+     * setup costs.  The mean test duration is
+     * recalculated as we go.
+     *
+     * @param reader a reader
+     * @return true if no problems.  If we have a problem part way through we keep the tests read before it.
+     */
+    public boolean addTests(@NotNull final Reader reader) {
+        boolean ok = true;
+        long total = getTotalOfMeans();
+        try {
+            for (CSVRecord record : CSVFormat.DEFAULT.withHeader().parse(reader)) {
+                final Tuple2<String, Stats> t = parse(record);
+                if (t != null) {
+                    total += put(t.getFirst(), t.getSecond());
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The parser's iterator wraps the reader's IOExceptions.
+            ok = false;
+        }
+        sortedTestNames = null;
+        setMeanForTests(total);
+        return ok;
+    }
+
+    /**
+     * Add tests from a binary snapshot, as written by {@link TestDurationSnapshot#write(Tests, java.io.OutputStream)},
+     * and recalculate the mean test duration.
+     */
+    void addTests(@NotNull final TestDurationSnapshot snapshot) {
+        final long[] total = {getTotalOfMeans()};
+        snapshot.forEach((name, stats) -> total[0] += put(name, stats));
+        sortedTestNames = null;
+        setMeanForTests(total[0]);
+    }
+
+    /**
+     * Visit every test and setup cost, by the name we write it under.
+     */
+    void forEachStats(@NotNull final BiConsumer<String, Stats> action) {
+        for (int index = 0; index < tests.size(); index++) {
+            action.accept(tests.getName(index), tests.get(index));
+        }
+        setups.forEach(action);
+    }
+
+    /**
+     * Add or replace a test or setup cost, without touching the mean test duration.
+     *
+     * @return how much the total of the tests' means went up by.
+     */
+    private long put(@NotNull final String name, @NotNull final Stats stats) {
+        if (isSetup(name)) {
+            setups.put(name, stats);
+            return 0L;
+        }
+        final int index = tests.indexOf(name);
+        if (index >= 0) {
+            final long previous = tests.getMean(index);
+            tests.set(index, stats);
+            return stats.mean - previous;
+        }
+        tests.put(name, stats);
+        return stats.mean;
+    }
+
+    private long getTotalOfMeans() {
+        long total = 0;
+        for (int index = 0; index < this.tests.size(); index++) total += this.tests.getMean(index);
+        return total;
+    }
+
+    private void setMeanForTests(long totalOfMeans) {
         if (tests.size() > 0) {
-            long total = 0;
-            for (String testName : this.tests.keySet()) total += tests.get(testName).getFirst();
-            meanForTests = new Tuple2<>(total / this.tests.size(), 1L);
+            meanForTests = new Stats(totalOfMeans / this.tests.size(), 1L, 0.0, totalOfMeans / this.tests.size(), 0);
         }
     }
 
     /**
-     * Get the known mean duration of a test.
+     * Get the expected duration of a test:  its mean, or its recent duration, depending on the model.
+     * Unknown tests get the mean duration for all tests.
      *
      * @param testName the test name
      * @return duration in nanos.
      */
     public long getDuration(@NotNull final String testName) {
-        return tests.getOrDefault(testName, meanForTests).getFirst();
+        final Stats stats = tests.get(testName);
+        return stats != null ? stats.expected(model) : getMeanDurationForTests();
+    }
+
+    /**
+     * Get the sample standard deviation of the durations of a test.
+     *
+     * @param testName the test name
+     * @return standard deviation in nanos, zero if the test is unknown or has only been run once.
+     */
+    public long getStandardDeviation(@NotNull final String testName) {
+        return Math.round(tests.getOrDefault(testName, NO_RUNS).getStandardDeviation());
+    }
+
+    /**
+     * Get a pessimistic duration for a test:  its expected duration plus some number of standard deviations.
+     * If durations are roughly normal, 1.28 standard deviations gives the 90th percentile.
+     * Unknown tests get the mean duration for all tests.
+     *
+     * @param testName   the test name
+     * @param deviations how many standard deviations to add to the mean
+     * @return duration in nanos.
+     */
+    public long getDuration(@NotNull final String testName, double deviations) {
+        final Stats stats = tests.get(testName);
+        return stats != null ? stats.estimate(model, deviations) : getMeanDurationForTests();
     }
 
     /**
@@ -117,15 +436,89 @@ public class Tests {
      * @param durationNanos duration
      */
     public void addDuration(@NotNull final String testName, long durationNanos) {
-        final Tuple2<Long, Long> current = tests.getOrDefault(testName, new Tuple2<>(0L, 0L));
+        final int index = tests.indexOf(testName);
+        if (index < 0) {
+            sortedTestNames = null;
+        }
 
-        tests.put(testName, recalculateMean(current, durationNanos));
+        final Stats updated = recalculateMean(index >= 0 ? tests.get(index) : NO_RUNS, durationNanos);
+        tests.put(testName, updated);
 
-        LOG.debug("Recorded test '{}', mean={} ns, runs={}", testName, tests.get(testName).getFirst(), tests.get(testName).getSecond());
+        LOG.debug("Recorded test '{}', mean={} ns, runs={}", testName, updated.mean, updated.runs);
 
         meanForTests = recalculateMean(meanForTests, durationNanos);
     }
 
+    /**
+     * Record how long a test class spent outside its test methods in one run, i.e. the time it takes to set up
+     * and tear down its fixtures.  We pay this again on every fork the class is split across.
+     *
+     * @param className     the test class name
+     * @param durationNanos suite time less the sum of its test times
+     */
+    public void addClassSetupDuration(@NotNull final String className, long durationNanos) {
+        addSetupDuration(className + CLASS_SETUP_SUFFIX, durationNanos);
+    }
+
+    /**
+     * Get the expected fixture setup cost of a test class, according to the model.
+     *
+     * @param className the test class name
+     * @return duration in nanos, or zero if we have never seen the class.
+     */
+    public long getClassSetupDuration(@NotNull final String className) {
+        return getSetupDuration(className + CLASS_SETUP_SUFFIX);
+    }
+
+    /**
+     * Record how long a Test task spent outside its tests in one run on one fork, mostly starting and stopping
+     * the test JVM.  We pay this on every fork that runs any of the task's tests.
+     *
+     * @param taskPath      the Gradle path of the Test task
+     * @param durationNanos task time less the time between its first test starting and its last test finishing
+     */
+    public void addTaskSetupDuration(@NotNull final String taskPath, long durationNanos) {
+        addSetupDuration(taskPath + TASK_SETUP_SUFFIX, durationNanos);
+    }
+
+    /**
+     * @param taskPath the Gradle path of the Test task
+     * @return the expected setup cost of the Test task on a fork, or zero if we have never measured it.
+     */
+    public long getTaskSetupDuration(@NotNull final String taskPath) {
+        return getSetupDuration(taskPath + TASK_SETUP_SUFFIX);
+    }
+
+    /**
+     * Record how long a fork took before its first Test task started:  waiting for DNS, compiling the tests,
+     * and starting Gradle.  Every fork pays this.
+     *
+     * @param durationNanos time from the fork's build command starting to its first Test task starting
+     */
+    public void addForkSetupDuration(long durationNanos) {
+        addSetupDuration(FORK_SETUP, durationNanos);
+    }
+
+    /**
+     * @return the expected setup cost of a fork, or zero if we have never measured it.
+     */
+    public long getForkSetupDuration() {
+        return getSetupDuration(FORK_SETUP);
+    }
+
+    private void addSetupDuration(@NotNull final String name, long durationNanos) {
+        setups.put(name, recalculateMean(setups.getOrDefault(name, NO_RUNS), Math.max(durationNanos, 0L)));
+    }
+
+    private long getSetupDuration(@NotNull final String name) {
+        final Stats stats = setups.get(name);
+        return stats != null ? stats.expected(model) : 0L;
+    }
+
+    private static boolean isSetup(@NotNull final String name) {
+        return name.endsWith(CLASS_SETUP_SUFFIX) || name.endsWith(TASK_SETUP_SUFFIX) || name.equals(FORK_SETUP);
+    }
+
     /**
      * Do we have any test information?
      *
@@ -152,12 +545,17 @@ public class Tests {
      */
     @NotNull
     List<Tuple2<String, Long>> startsWith(@NotNull final String testPrefix) {
-        List<Tuple2<String, Long>> results = this.tests.keySet().stream()
-                .filter(t -> t.startsWith(testPrefix))
-                .map(t -> new Tuple2<>(t, getDuration(t)))
-                .collect(Collectors.toList());
+        return startsWith(testPrefix, 0.0);
+    }
+
+    /**
+     * As {@link #startsWith(String)}, but with durations of the mean plus some number of standard deviations.
+     */
+    @NotNull
+    List<Tuple2<String, Long>> startsWith(@NotNull final String testPrefix, double deviations) {
+        List<Tuple2<String, Long>> results = withPrefix(testPrefix, deviations);
         // We don't know if the testPrefix is a classname or classname.methodname (exact match).
-        if (results == null || results.isEmpty()) {
+        if (results.isEmpty()) {
             LOG.warn("In {} previously executed tests, could not find any starting with {}", tests.size(), testPrefix);
             results = Arrays.asList(new Tuple2<>(testPrefix, getMeanDurationForTests()));
         }
@@ -165,19 +563,75 @@ public class Tests {
     }
 
     @NotNull
-    List<Tuple2<String, Long>> equals(@NotNull final String testPrefix) {
-        List<Tuple2<String, Long>> results = this.tests.keySet().stream()
-                .filter(t -> t.equals(testPrefix))
-                .map(t -> new Tuple2<>(t, getDuration(t)))
-                .collect(Collectors.toList());
-        // We don't know if the testPrefix is a classname or classname.methodname (exact match).
-        if (results == null || results.isEmpty()) {
-            LOG.warn("In {} previously executed tests, could not find any starting with {}", tests.size(), testPrefix);
-            results = Arrays.asList(new Tuple2<>(testPrefix, getMeanDurationForTests()));
+    private List<Tuple2<String, Long>> withPrefix(@NotNull final String testPrefix, double deviations) {
+        final String[] names = getSortedTestNames();
+        // All names with this prefix are contiguous in the sorted array, starting at the insertion point of the prefix.
+        final int found = Arrays.binarySearch(names, testPrefix);
+        final List<Tuple2<String, Long>> results = new ArrayList<>();
+        for (int i = found >= 0 ? found : -(found + 1); i < names.length && names[i].startsWith(testPrefix); i++) {
+            results.add(new Tuple2<>(names[i], getDuration(names[i], deviations)));
         }
         return results;
     }
 
+    @NotNull
+    private String[] getSortedTestNames() {
+        if (sortedTestNames == null) {
+            final String[] names = tests.getNames();
+            Arrays.sort(names);
+            sortedTestNames = names;
+        }
+        return sortedTestNames;
+    }
+
+    /**
+     * Return the test (and its duration) that exactly matches `testName`.
+     * If not present we just return the mean test duration so that the test is fairly distributed.
+     * @param testName the entire classname + testname.
+     * @return a list containing the single matching test
+     */
+    @NotNull
+    List<Tuple2<String, Long>> equals(@NotNull final String testName) {
+        return equals(testName, 0.0);
+    }
+
+    /**
+     * As {@link #equals(String)}, but with a duration of the mean plus some number of standard deviations.
+     */
+    @NotNull
+    List<Tuple2<String, Long>> equals(@NotNull final String testName, double deviations) {
+        final Stats found = tests.get(testName);
+        if (found == null) {
+            LOG.warn("In {} previously executed tests, could not find {}", tests.size(), testName);
+            return Collections.singletonList(new Tuple2<>(testName, getMeanDurationForTests()));
+        }
+        return Collections.singletonList(new Tuple2<>(testName, found.estimate(model, deviations)));
+    }
+
+    /**
+     * Return the runs of a test method, as `classname.methodname`.  A JUnit 4 test is recorded under exactly that name,
+     * but the JUnit Platform reports each run of a method with its parameter types, and an index for each invocation
+     * of a parameterized or repeated test, or each test a factory made, e.g. `classname.methodname(String)[1]`.  As
+     * Gradle can only run the method as a whole, we return all of those.
+     * If not present we just return the mean test duration so that the test is fairly distributed.
+     *
+     * @param testName the entire classname + testname.
+     * @return a list of the method's runs.
+     */
+    @NotNull
+    List<Tuple2<String, Long>> method(@NotNull final String testName, double deviations) {
+        final Stats found = tests.get(testName);
+        if (found != null) {
+            return Collections.singletonList(new Tuple2<>(testName, found.estimate(model, deviations)));
+        }
+        final List<Tuple2<String, Long>> runs = withPrefix(testName + "(", deviations);
+        if (runs.isEmpty()) {
+            LOG.warn("In {} previously executed tests, could not find {}", tests.size(), testName);
+            return Collections.singletonList(new Tuple2<>(testName, getMeanDurationForTests()));
+        }
+        return runs;
+    }
+
     /**
      * How many times has this function been run?  Every call to addDuration increments the current value.
      *
@@ -185,7 +639,44 @@ public class Tests {
      * @return the number of times the test name has been run.
      */
     public long getRunCount(@NotNull final String testName) {
-        return tests.getOrDefault(testName, new Tuple2<>(0L, 0L)).getSecond();
+        return tests.getOrDefault(testName, NO_RUNS).runs;
+    }
+
+    /**
+     * Record how a run of a test ended.  We only keep outcomes for tests we have a duration for, so record the
+     * duration first.
+     *
+     * @param testName the test name
+     * @param outcome  whether it passed, failed or was skipped
+     */
+    public void addOutcome(@NotNull final String testName, @NotNull final TestOutcome outcome) {
+        final int index = tests.indexOf(testName);
+        if (index >= 0) {
+            tests.set(index, tests.get(index).withOutcome(outcome, recentWeight));
+        } else {
+            LOG.debug("Not recording {} for test '{}' without a duration", outcome, testName);
+        }
+    }
+
+    /**
+     * @param testName the test name
+     * @param outcome  the outcome to count
+     * @return how many recorded runs of the test ended that way.
+     */
+    public int getOutcomeCount(@NotNull final String testName, @NotNull final TestOutcome outcome) {
+        return tests.getOrDefault(testName, NO_RUNS).getOutcomeCount(outcome);
+    }
+
+    /**
+     * How likely the test is to fail, from its history:  the runs that passed or failed, weighted by how recent
+     * they are with the same half life as the recent duration, so a test that has since been fixed stops looking
+     * failure prone.
+     *
+     * @param testName the test name
+     * @return between 0 and 1, and 0 if we have never seen it pass or fail.
+     */
+    public double getFailureRate(@NotNull final String testName) {
+        return tests.getOrDefault(testName, NO_RUNS).getFailureRate();
     }
 
     /**
@@ -194,7 +685,7 @@ public class Tests {
      * @return mean duration in nanos.
      */
     public long getMeanDurationForTests() {
-        return meanForTests.getFirst();
+        return meanForTests.mean;
     }
 
     /**
@@ -202,6 +693,111 @@ public class Tests {
      */
     void clear() {
         tests.clear();
-        meanForTests = DEFAULT_MEAN_TUPLE;
+        setups.clear();
+        sortedTestNames = null;
+        meanForTests = DEFAULT_MEAN_STATS;
+    }
+
+    /**
+     * Everything we know about the durations of one test.
+     */
+    static final class Stats {
+        final long mean;
+        final long runs;
+        final double sumOfSquaredDeviations;
+        final long recent;
+        final int rejectedOutliers;
+        // How the runs ended, for those whose outcome we recorded.
+        final int passes;
+        final int failures;
+        final int skips;
+        // The exponentially weighted share of the runs that passed or failed that failed, like the recent duration.
+        final double recentFailureRate;
+
+        Stats(long mean, long runs, double sumOfSquaredDeviations, long recent, int rejectedOutliers) {
+            this(mean, runs, sumOfSquaredDeviations, recent, rejectedOutliers, 0, 0, 0);
+        }
+
+        // With no weights to go on, the recent failure rate is the failure rate over all the runs.
+        Stats(long mean, long runs, double sumOfSquaredDeviations, long recent, int rejectedOutliers,
+              int passes, int failures, int skips) {
+            this(mean, runs, sumOfSquaredDeviations, recent, rejectedOutliers, passes, failures, skips,
+                    passes + failures > 0 ? (double) failures / (passes + failures) : 0.0);
+        }
+
+        Stats(long mean, long runs, double sumOfSquaredDeviations, long recent, int rejectedOutliers,
+              int passes, int failures, int skips, double recentFailureRate) {
+            this.mean = mean;
+            this.runs = runs;
+            this.sumOfSquaredDeviations = sumOfSquaredDeviations;
+            this.recent = recent;
+            this.rejectedOutliers = rejectedOutliers;
+            this.passes = passes;
+            this.failures = failures;
+            this.skips = skips;
+            this.recentFailureRate = Math.min(Math.max(recentFailureRate, 0.0), 1.0);
+        }
+
+        static Stats of(long mean, long runs, long standardDeviation, long recent, int rejectedOutliers) {
+            return new Stats(mean, runs, (double) standardDeviation * standardDeviation * Math.max(runs - 1, 0L), recent, rejectedOutliers);
+        }
+
+        @NotNull
+        Stats withOutcomes(int passes, int failures, int skips) {
+            return new Stats(mean, runs, sumOfSquaredDeviations, recent, rejectedOutliers, passes, failures, skips);
+        }
+
+        @NotNull
+        Stats withRecentFailureRate(double recentFailureRate) {
+            return new Stats(mean, runs, sumOfSquaredDeviations, recent, rejectedOutliers, passes, failures, skips, recentFailureRate);
+        }
+
+        /**
+         * @param recentWeight the weight of this run in the recent failure rate.  The first run that passed or
+         *                     failed sets it outright.
+         */
+        @NotNull
+        Stats withOutcome(@NotNull final TestOutcome outcome, double recentWeight) {
+            final double rate;
+            if (outcome == TestOutcome.SKIPPED) {
+                rate = recentFailureRate;
+            } else {
+                final double thisRun = outcome == TestOutcome.FAILED ? 1.0 : 0.0;
+                rate = passes + failures == 0 ? thisRun : recentFailureRate + recentWeight * (thisRun - recentFailureRate);
+            }
+            return new Stats(mean, runs, sumOfSquaredDeviations, recent, rejectedOutliers,
+                    passes + (outcome == TestOutcome.PASSED ? 1 : 0),
+                    failures + (outcome == TestOutcome.FAILED ? 1 : 0),
+                    skips + (outcome == TestOutcome.SKIPPED ? 1 : 0), rate);
+        }
+
+        int getOutcomeCount(@NotNull final TestOutcome outcome) {
+            switch (outcome) {
+                case PASSED:
+                    return passes;
+                case FAILED:
+                    return failures;
+                case SKIPPED:
+                    return skips;
+                default:
+                    throw new IllegalArgumentException("Unknown outcome: " + outcome);
+            }
+        }
+
+        double getFailureRate() {
+            return recentFailureRate;
+        }
+
+        long expected(@NotNull final DurationModel model) {
+            return model == DurationModel.EWMA ? recent : mean;
+        }
+
+        double getStandardDeviation() {
+            return runs > 1 ? Math.sqrt(sumOfSquaredDeviations / (runs - 1)) : 0.0;
+        }
+
+        long estimate(@NotNull final DurationModel model, double deviations) {
+            return expected(model) + Math.max(Math.round(deviations * getStandardDeviation()), 0L);
+        }
     }
-}
\ No newline at end of file
+}
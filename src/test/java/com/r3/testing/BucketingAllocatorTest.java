@@ -1,13 +1,25 @@
 package com.r3.testing;
 
+import groovy.lang.Tuple2;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class BucketingAllocatorTest {
@@ -164,6 +176,447 @@ public class BucketingAllocatorTest {
         Assertions.assertEquals(TimeUnit.SECONDS.toNanos(3), forkContainers.get(3).getCurrentDuration().longValue());
     }
 
+    @Test
+    public void heapAllocationMatchesLinearScanGreedyAllocation() {
+        Tests tests = new Tests();
+        tests.addDuration("SmallTestingClass", 1_000_000_000L);
+        tests.addDuration("LargeTestingClass", 3_000_000_000L);
+        tests.addDuration("MediumTestingClass", 2_000_000_000L);
+        assertSamePlanAsLinearScan(tests, 4, Arrays.asList(
+                "EvenMoreTestingClass",
+                "YetAnotherTestingClass",
+                "AndYetAnotherTestingClass",
+                "OhYesAnotherTestingClass",
+                "MediumTestingClass",
+                "SmallTestingClass",
+                "LargeTestingClass"));
+
+        Tests otherTests = new Tests();
+        otherTests.addDuration("SomeTestingClass", 1_000_000_000L);
+        otherTests.addDuration("AnotherTestingClass", 3_000_000_000L);
+        assertSamePlanAsLinearScan(otherTests, 2, Arrays.asList("YetAnotherTestingClass", "SomeTestingClass", "AnotherTestingClass"));
+        assertSamePlanAsLinearScan(new Tests(), 1, Arrays.asList("SomeTestingClass", "AnotherTestingClass"));
+
+        // Lots of ties, more forks than tests in some cases, and a wide spread of durations.
+        Random random = new Random(42);
+        for (int forks : new int[]{1, 3, 17, 200}) {
+            Tests randomTests = new Tests();
+            List<String> testNames = IntStream.range(0, 2_000).mapToObj(i -> "com.r3.RandomTestingClass" + i).collect(Collectors.toList());
+            testNames.stream().filter(name -> random.nextInt(10) != 0)
+                    .forEach(name -> randomTests.addDuration(name, 1_000_000L * (1 + random.nextInt(random.nextBoolean() ? 5 : 5_000))));
+            assertSamePlanAsLinearScan(randomTests, forks, testNames);
+        }
+    }
+
+    @Test
+    public void localSearchImprovesOnGreedyAllocation() {
+        Tests tests = new Tests();
+        tests.addDuration("ThreeSecondTestingClass", 3_000_000_000L);
+        tests.addDuration("AnotherThreeSecondTestingClass", 3_000_000_000L);
+        tests.addDuration("TwoSecondTestingClass", 2_000_000_000L);
+        tests.addDuration("AnotherTwoSecondTestingClass", 2_000_000_000L);
+        tests.addDuration("YetAnotherTwoSecondTestingClass", 2_000_000_000L);
+        List<String> testNames = Arrays.asList("ThreeSecondTestingClass", "AnotherThreeSecondTestingClass",
+                "TwoSecondTestingClass", "AnotherTwoSecondTestingClass", "YetAnotherTwoSecondTestingClass");
+        Object task = new Object();
+
+        // Greedy puts 3 + 2 + 2 on one fork and 3 + 2 on the other.
+        BucketingAllocator greedy = new BucketingAllocator(2, () -> tests, AllocationStrategy.GREEDY);
+        greedy.addSource(() -> testNames, task);
+        greedy.generateTestPlan();
+        Assertions.assertEquals(TimeUnit.SECONDS.toNanos(7), maxDuration(greedy));
+
+        // ...which we can level to 3 + 3 and 2 + 2 + 2.
+        BucketingAllocator localSearch = new BucketingAllocator(2, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+        localSearch.addSource(() -> testNames, task);
+        localSearch.generateTestPlan();
+        Assertions.assertEquals(TimeUnit.SECONDS.toNanos(6), maxDuration(localSearch));
+        Assertions.assertEquals(0.0, localSearch.getImbalance(), 0.0);
+
+        List<String> allTests = Stream.of(localSearch.getTestsForForkAndTestTask(0, task), localSearch.getTestsForForkAndTestTask(1, task))
+                .flatMap(Collection::stream).collect(Collectors.toList());
+        Assertions.assertEquals(testNames.size(), allTests.size());
+        Assertions.assertTrue(allTests.containsAll(testNames));
+    }
+
+    @Test
+    public void localSearchNeverMakesThePlanWorse() {
+        Random random = new Random(7);
+        for (int forks : new int[]{1, 2, 5, 31}) {
+            Tests tests = new Tests();
+            List<String> testNames = IntStream.range(0, 500).mapToObj(i -> "com.r3.RandomTestingClass" + i).collect(Collectors.toList());
+            testNames.forEach(name -> tests.addDuration(name, 1_000_000L * (1 + random.nextInt(10_000))));
+
+            BucketingAllocator greedy = new BucketingAllocator(forks, () -> tests, AllocationStrategy.GREEDY);
+            greedy.addSource(() -> testNames, new Object());
+            greedy.generateTestPlan();
+
+            BucketingAllocator localSearch = new BucketingAllocator(forks, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+            localSearch.addSource(() -> testNames, new Object());
+            localSearch.generateTestPlan();
+
+            Assertions.assertTrue(maxDuration(localSearch) <= maxDuration(greedy));
+            Assertions.assertEquals(testNames.size(), localSearch.getForkContainers().stream().mapToInt(c -> c.getBucketsForFork().size()).sum());
+            Assertions.assertEquals(greedy.getForkContainers().stream().mapToLong(c -> c.getCurrentDuration()).sum(),
+                    localSearch.getForkContainers().stream().mapToLong(c -> c.getCurrentDuration()).sum());
+        }
+    }
+
+    @Test
+    public void fasterForksGetProportionallyMoreWork() {
+        Tests tests = new Tests();
+        List<String> testNames = IntStream.range(0, 8).mapToObj(i -> "com.r3.OneSecondTestingClass" + i).collect(Collectors.toList());
+        testNames.forEach(name -> tests.addDuration(name, TimeUnit.SECONDS.toNanos(1)));
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(3, () -> tests);
+        bucketingAllocator.setForkCapacities(2.0, 1.0, 1.0);
+        bucketingAllocator.addSource(() -> testNames, new Object());
+        bucketingAllocator.generateTestPlan();
+
+        List<BucketingAllocator.TestsForForkContainer> forkContainers = bucketingAllocator.getForkContainers();
+        Assertions.assertEquals(4, forkContainers.get(0).getBucketsForFork().size());
+        Assertions.assertEquals(2, forkContainers.get(1).getBucketsForFork().size());
+        Assertions.assertEquals(2, forkContainers.get(2).getBucketsForFork().size());
+        forkContainers.forEach(container -> Assertions.assertEquals(TimeUnit.SECONDS.toNanos(2), container.getCurrentDuration().longValue()));
+        Assertions.assertEquals(0.0, bucketingAllocator.getImbalance(), 0.0);
+    }
+
+    @Test
+    public void localSearchNeverMakesAPlanWithMixedCapacitiesWorse() {
+        Random random = new Random(11);
+        for (int forks : new int[]{2, 5, 31}) {
+            Tests tests = new Tests();
+            List<String> testNames = IntStream.range(0, 500).mapToObj(i -> "com.r3.RandomTestingClass" + i).collect(Collectors.toList());
+            testNames.forEach(name -> tests.addDuration(name, 1_000_000L * (1 + random.nextInt(10_000))));
+
+            BucketingAllocator greedy = new BucketingAllocator(forks, () -> tests, AllocationStrategy.GREEDY);
+            greedy.setForkCapacities(2.0, 1.0, 1.0);
+            greedy.addSource(() -> testNames, new Object());
+            greedy.generateTestPlan();
+
+            BucketingAllocator localSearch = new BucketingAllocator(forks, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+            localSearch.setForkCapacities(2.0, 1.0, 1.0);
+            localSearch.addSource(() -> testNames, new Object());
+            localSearch.generateTestPlan();
+
+            Assertions.assertTrue(maxDuration(localSearch) <= maxDuration(greedy));
+            Assertions.assertEquals(testNames.size(), localSearch.getForkContainers().stream().mapToInt(c -> c.getBucketsForFork().size()).sum());
+        }
+    }
+
+    @Test
+    public void planIsReusedWhenNothingHasChanged() throws IOException {
+        final Path cacheDirectory = Files.createTempDirectory("test-plans");
+        try {
+            Random random = new Random(3);
+            Tests tests = new Tests();
+            List<String> testNames = IntStream.range(0, 200).mapToObj(i -> "com.r3.RandomTestingClass" + i).collect(Collectors.toList());
+            testNames.forEach(name -> tests.addDuration(name, 1_000_000L * (1 + random.nextInt(10_000))));
+            tests.addForkSetupDuration(3_000_000_000L);
+            Object task = new Object() {
+                @Override
+                public String toString() {
+                    return ":test";
+                }
+            };
+
+            BucketingAllocator original = new BucketingAllocator(5, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+            original.setPlanCacheDirectory(cacheDirectory.toFile());
+            original.setDurationsTag("corda-master");
+            original.addSource(() -> testNames, task);
+            original.generateTestPlan();
+            Assertions.assertFalse(original.wasLoadedFromCache());
+
+            // Reused without asking for the durations at all.
+            BucketingAllocator reused = new BucketingAllocator(5, () -> {
+                throw new AssertionError("The durations should not be needed");
+            }, AllocationStrategy.LOCAL_SEARCH);
+            reused.setPlanCacheDirectory(cacheDirectory.toFile());
+            reused.setDurationsTag("corda-master");
+            reused.addSource(() -> testNames, task);
+            reused.generateTestPlan();
+            Assertions.assertTrue(reused.wasLoadedFromCache());
+            Assertions.assertEquals(original.getPredictedDuration(), reused.getPredictedDuration());
+            for (int fork = 0; fork < 5; fork++) {
+                Assertions.assertEquals(original.getTestsForForkAndTestTask(fork, task), reused.getTestsForForkAndTestTask(fork, task));
+                Assertions.assertEquals(original.getForkContainers().get(fork).getCurrentDuration(), reused.getForkContainers().get(fork).getCurrentDuration());
+            }
+
+            // Other durations are a new plan.
+            BucketingAllocator changed = new BucketingAllocator(5, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+            changed.setPlanCacheDirectory(cacheDirectory.toFile());
+            changed.setDurationsTag("corda-release");
+            changed.addSource(() -> testNames, task);
+            changed.generateTestPlan();
+            Assertions.assertFalse(changed.wasLoadedFromCache());
+
+            // As are other tests.
+            BucketingAllocator fewerTests = new BucketingAllocator(5, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+            fewerTests.setPlanCacheDirectory(cacheDirectory.toFile());
+            fewerTests.setDurationsTag("corda-master");
+            fewerTests.addSource(() -> testNames.subList(1, testNames.size()), task);
+            fewerTests.generateTestPlan();
+            Assertions.assertFalse(fewerTests.wasLoadedFromCache());
+
+            // And a different number of forks.
+            BucketingAllocator moreForks = new BucketingAllocator(6, () -> tests, AllocationStrategy.LOCAL_SEARCH);
+            moreForks.setPlanCacheDirectory(cacheDirectory.toFile());
+            moreForks.setDurationsTag("corda-master");
+            moreForks.addSource(() -> testNames, task);
+            moreForks.generateTestPlan();
+            Assertions.assertFalse(moreForks.wasLoadedFromCache());
+            try (Stream<Path> plans = Files.list(cacheDirectory)) {
+                Assertions.assertEquals(4, plans.count());
+            }
+        } finally {
+            Files.walk(cacheDirectory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void corruptPlanIsIgnored() throws IOException {
+        final Path cacheDirectory = Files.createTempDirectory("test-plans");
+        try {
+            Tests tests = new Tests();
+            List<String> testNames = Arrays.asList("SomeTestingClass", "AnotherTestingClass");
+            testNames.forEach(name -> tests.addDuration(name, 1_000_000_000L));
+            Object task = new Object();
+
+            BucketingAllocator original = new BucketingAllocator(2, () -> tests);
+            original.setPlanCacheDirectory(cacheDirectory.toFile());
+            original.setDurationsTag("corda-master");
+            original.addSource(() -> testNames, task);
+            original.generateTestPlan();
+            try (Stream<Path> plans = Files.list(cacheDirectory)) {
+                for (Path plan : plans.collect(Collectors.toList())) {
+                    Files.write(plan, new byte[]{0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 7});
+                }
+            }
+
+            BucketingAllocator reused = new BucketingAllocator(2, () -> tests);
+            reused.setPlanCacheDirectory(cacheDirectory.toFile());
+            reused.setDurationsTag("corda-master");
+            reused.addSource(() -> testNames, task);
+            reused.generateTestPlan();
+            Assertions.assertFalse(reused.wasLoadedFromCache());
+            Assertions.assertEquals(2, reused.getForkContainers().stream().mapToInt(c -> c.getBucketsForFork().size()).sum());
+        } finally {
+            Files.walk(cacheDirectory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void oldPlansAreNotReusedAndOnlyTheNewestAreKept() throws IOException {
+        final Path cacheDirectory = Files.createTempDirectory("test-plans");
+        try {
+            Tests tests = new Tests();
+            List<String> testNames = Arrays.asList("SomeTestingClass", "AnotherTestingClass");
+            testNames.forEach(name -> tests.addDuration(name, 1_000_000_000L));
+            Object task = new Object();
+
+            BucketingAllocator original = new BucketingAllocator(2, () -> tests);
+            original.setPlanCacheDirectory(cacheDirectory.toFile());
+            original.setDurationsTag("corda-master");
+            original.addSource(() -> testNames, task);
+            original.generateTestPlan();
+            try (Stream<Path> plans = Files.list(cacheDirectory)) {
+                for (Path plan : plans.collect(Collectors.toList())) {
+                    Assertions.assertTrue(plan.toFile().setLastModified(System.currentTimeMillis() - TestPlanCache.MAX_AGE_MILLIS - 60_000L));
+                }
+            }
+
+            // Its durations may have been replaced since.
+            BucketingAllocator aged = new BucketingAllocator(2, () -> tests);
+            aged.setPlanCacheDirectory(cacheDirectory.toFile());
+            aged.setDurationsTag("corda-master");
+            aged.addSource(() -> testNames, task);
+            aged.generateTestPlan();
+            Assertions.assertFalse(aged.wasLoadedFromCache());
+
+            for (int i = 0; i < TestPlanCache.MAX_PLANS + 3; i++) {
+                BucketingAllocator allocator = new BucketingAllocator(2, () -> tests);
+                allocator.setPlanCacheDirectory(cacheDirectory.toFile());
+                allocator.setDurationsTag("corda-branch-" + i);
+                allocator.addSource(() -> testNames, task);
+                allocator.generateTestPlan();
+            }
+            try (Stream<Path> plans = Files.list(cacheDirectory)) {
+                Assertions.assertEquals(TestPlanCache.MAX_PLANS, plans.count());
+            }
+        } finally {
+            Files.walk(cacheDirectory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static long maxDuration(BucketingAllocator allocator) {
+        return allocator.getForkContainers().stream().mapToLong(c -> c.getCurrentDuration()).max().orElse(0L);
+    }
+
+    @Test
+    public void erraticTestsCanBeSizedAboveTheirMean() {
+        Tests tests = new Tests();
+        // Both average 2s, but one of them varies wildly.
+        for (int i = 0; i < 10; i++) {
+            tests.addDuration("SteadyTestingClass", 2_000_000_000L);
+            tests.addDuration("ErraticTestingClass", i % 2 == 0 ? 1_000_000_000L : 3_000_000_000L);
+        }
+        Object task = new Object();
+
+        BucketingAllocator byMean = new BucketingAllocator(1, () -> tests);
+        byMean.addSource(() -> Arrays.asList("SteadyTestingClass", "ErraticTestingClass"), task);
+        byMean.generateTestPlan();
+        Assertions.assertEquals(tests.getDuration("SteadyTestingClass") + tests.getDuration("ErraticTestingClass"), maxDuration(byMean));
+
+        BucketingAllocator pessimistic = new BucketingAllocator(1, () -> tests);
+        pessimistic.setDurationDeviations(2.0);
+        pessimistic.addSource(() -> Arrays.asList("SteadyTestingClass", "ErraticTestingClass"), task);
+        pessimistic.generateTestPlan();
+        Assertions.assertEquals(tests.getDuration("SteadyTestingClass") + tests.getDuration("ErraticTestingClass", 2.0), maxDuration(pessimistic));
+        Assertions.assertTrue(maxDuration(pessimistic) > maxDuration(byMean) + TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void classesWithExpensiveSetupAreOnlySplitWhenThatHelps() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        Tests tests = new Tests();
+        List<String> testNames = Arrays.asList("com.r3.A.m0", "com.r3.A.m1", "com.r3.B.m0", "com.r3.B.m1");
+        testNames.forEach(testName -> tests.addDuration(testName, second));
+        tests.addClassSetupDuration("com.r3.A", 10 * second);
+        tests.addClassSetupDuration("com.r3.B", 10 * second);
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(2, () -> tests);
+        bucketingAllocator.addSource(() -> testNames, new Object());
+        bucketingAllocator.generateTestPlan();
+
+        // Splitting both classes would cost every fork both setups:  22s rather than 12s.
+        for (BucketingAllocator.TestsForForkContainer container : bucketingAllocator.getForkContainers()) {
+            Assertions.assertEquals(1, container.getBucketsForFork().stream().map(bucket -> bucket.className).distinct().count());
+            Assertions.assertEquals(12 * second, container.getCurrentDuration().longValue());
+        }
+    }
+
+    @Test
+    public void classWithExpensiveSetupIsSplitWhenThatHelps() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        Tests tests = new Tests();
+        List<String> testNames = Arrays.asList("com.r3.A.m0", "com.r3.A.m1", "com.r3.A.m2", "com.r3.A.m3");
+        testNames.forEach(testName -> tests.addDuration(testName, second));
+        tests.addClassSetupDuration("com.r3.A", 10 * second);
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(2, () -> tests);
+        bucketingAllocator.addSource(() -> testNames, new Object());
+        bucketingAllocator.generateTestPlan();
+
+        // Both forks pay the setup, but that's still quicker than 14s on one fork.
+        for (BucketingAllocator.TestsForForkContainer container : bucketingAllocator.getForkContainers()) {
+            Assertions.assertEquals(2, container.getBucketsForFork().size());
+            Assertions.assertEquals(12 * second, container.getCurrentDuration().longValue());
+        }
+    }
+
+    @Test
+    public void testTasksWithExpensiveSetupAreKeptOnOneForkAndForkSetupIsPredicted() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        Tests tests = new Tests();
+        List<String> xTests = Arrays.asList("com.r3.X.m0", "com.r3.X.m1");
+        List<String> yTests = Arrays.asList("com.r3.Y.m0", "com.r3.Y.m1");
+        Stream.concat(xTests.stream(), yTests.stream()).forEach(testName -> tests.addDuration(testName, second));
+        tests.addTaskSetupDuration(":x:test", 10 * second);
+        tests.addTaskSetupDuration(":y:test", 10 * second);
+        tests.addForkSetupDuration(30 * second);
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(2, () -> tests);
+        bucketingAllocator.addSource(() -> xTests, ":x:test");
+        bucketingAllocator.addSource(() -> yTests, ":y:test");
+        bucketingAllocator.generateTestPlan();
+
+        for (BucketingAllocator.TestsForForkContainer container : bucketingAllocator.getForkContainers()) {
+            Assertions.assertEquals(1, container.getBucketsForFork().stream().map(bucket -> bucket.testTask).distinct().count());
+            Assertions.assertEquals(12 * second, container.getCurrentDuration().longValue());
+        }
+        Assertions.assertEquals(42 * second, bucketingAllocator.getPredictedDuration());
+    }
+
+    @Test
+    public void localSearchCountsClassSetup() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        BucketingAllocator.TestsForForkContainer slow = new BucketingAllocator.TestsForForkContainer(0);
+        BucketingAllocator.TestsForForkContainer fast = new BucketingAllocator.TestsForForkContainer(1);
+        Object task = new Object();
+        BucketingAllocator.TestBucket a0 = new BucketingAllocator.TestBucket(task, "com.r3.A.m0",
+                Collections.singletonList(new Tuple2<>("com.r3.A.m0", 3 * second)), "com.r3.A", 10 * second, 0L);
+        BucketingAllocator.TestBucket a1 = new BucketingAllocator.TestBucket(task, "com.r3.A.m1",
+                Collections.singletonList(new Tuple2<>("com.r3.A.m1", 3 * second)), "com.r3.A", 10 * second, 0L);
+        slow.addBucket(a0);
+        slow.addBucket(a1);
+        Assertions.assertEquals(16 * second, slow.getCurrentDuration().longValue());
+
+        // Moving a1 would leave 13s on each fork, which is better than 16s.
+        new LocalSearchRefiner(Arrays.asList(slow, fast), LocalSearchRefiner.DEFAULT_MAX_STEPS).refine();
+        Assertions.assertEquals(13 * second, slow.getCurrentDuration().longValue());
+        Assertions.assertEquals(13 * second, fast.getCurrentDuration().longValue());
+
+        // Taking the last of a class off a fork takes its setup with it.
+        fast.removeBucket(fast.getBucketsForFork().get(0));
+        Assertions.assertEquals(0L, fast.getCurrentDuration().longValue());
+    }
+
+    @Test
+    public void shippedSlicesHoldEachForksShareOfThePlan() throws IOException {
+        Tests tests = new Tests();
+        List<String> unitTests = IntStream.range(0, 20).mapToObj(i -> "com.example.Unit" + i).collect(Collectors.toList());
+        List<String> integrationTests = IntStream.range(0, 10).mapToObj(i -> "com.example.Integration" + i).collect(Collectors.toList());
+        unitTests.forEach(test -> tests.addDuration(test, 1_000_000L * (test.length() % 5 + 1)));
+        integrationTests.forEach(test -> tests.addDuration(test, 3_000_000L * (test.length() % 3 + 1)));
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(3, () -> tests);
+        bucketingAllocator.addSource(() -> unitTests, ":core:test");
+        bucketingAllocator.addSource(() -> integrationTests, ":core:integrationTest");
+        bucketingAllocator.generateTestPlan();
+
+        Map<String, String> slices = TestPlanFile.slices(bucketingAllocator.getForkContainers());
+        Assertions.assertEquals(Arrays.asList("fork-0.csv", "fork-1.csv", "fork-2.csv"), new ArrayList<>(slices.keySet()));
+        for (int fork = 0; fork < 3; fork++) {
+            Map<String, List<String>> slice = TestPlanFile.read(new StringReader(slices.get(TestPlanFile.getFileName(fork))));
+            for (String task : Arrays.asList(":core:test", ":core:integrationTest")) {
+                Assertions.assertEquals(
+                        bucketingAllocator.getTestsForForkAndTestTask(fork, task).stream().sorted().collect(Collectors.toList()),
+                        slice.getOrDefault(task, Collections.emptyList()).stream().sorted().collect(Collectors.toList()));
+            }
+        }
+    }
+
+    private static void assertSamePlanAsLinearScan(Tests tests, int forks, List<String> testNames) {
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(forks, () -> tests);
+        bucketingAllocator.addSource(() -> testNames, new Object());
+        bucketingAllocator.generateTestPlan();
+
+        // Recreate the order in which the allocator saw the buckets:  by name, then stably by decreasing duration.
+        List<BucketingAllocator.TestBucket> buckets = bucketingAllocator.getForkContainers().stream()
+                .flatMap(container -> container.getBucketsForFork().stream())
+                .sorted(Comparator.comparing((BucketingAllocator.TestBucket b) -> b.testName))
+                .sorted(Comparator.comparing(BucketingAllocator.TestBucket::getDuration).reversed())
+                .collect(Collectors.toList());
+        Assertions.assertEquals(testNames.size(), buckets.size());
+
+        // The original greedy allocator:  a linear scan for the smallest container for every bucket.
+        List<BucketingAllocator.TestsForForkContainer> expected = IntStream.range(0, forks)
+                .mapToObj(BucketingAllocator.TestsForForkContainer::new).collect(Collectors.toList());
+        buckets.forEach(bucket -> Collections.min(expected, Comparator.comparing(BucketingAllocator.TestsForForkContainer::getCurrentDuration)).addBucket(bucket));
+
+        for (int fork = 0; fork < forks; fork++) {
+            BucketingAllocator.TestsForForkContainer actual = bucketingAllocator.getForkContainers().get(fork);
+            Assertions.assertEquals(expected.get(fork).getCurrentDuration(), actual.getCurrentDuration());
+            Assertions.assertEquals(namesOf(expected.get(fork)), namesOf(actual));
+        }
+    }
+
+    private static List<String> namesOf(BucketingAllocator.TestsForForkContainer container) {
+        List<String> names = new ArrayList<>();
+        container.getBucketsForFork().forEach(bucket -> names.add(bucket.testName));
+        return names;
+    }
+
     @Test
     public void durationToString() {
         Assertions.assertEquals("1 mins", BucketingAllocator.getDuration(60_000_000_000L));
@@ -171,4 +624,80 @@ public class BucketingAllocatorTest {
         Assertions.assertEquals("400 ms", BucketingAllocator.getDuration(400_000_000L));
         Assertions.assertEquals("400000 ns", BucketingAllocator.getDuration(400_000L));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void failureProneTestsAreSpreadAcrossForks() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        Tests tests = new Tests();
+        List<String> testNames = IntStream.range(0, 8).mapToObj(i -> "com.r3.C" + i + ".m").collect(Collectors.toList());
+        // Short and flaky, but in a band of their own, so they go first within it, each on the least loaded fork.
+        testNames.forEach(testName -> tests.addDuration(testName, testName.startsWith("com.r3.C0") || testName.startsWith("com.r3.C1") ? second : 10 * second));
+        tests.addOutcome("com.r3.C0.m", TestOutcome.FAILED);
+        tests.addOutcome("com.r3.C1.m", TestOutcome.PASSED);
+        tests.addOutcome("com.r3.C1.m", TestOutcome.FAILED);
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(2, () -> tests);
+        bucketingAllocator.addSource(() -> testNames, new Object());
+        bucketingAllocator.generateTestPlan();
+
+        final List<BucketingAllocator.TestsForForkContainer> containers = bucketingAllocator.getForkContainers();
+        final List<String> failureProne = containers.stream()
+                .flatMap(container -> container.getBucketsForFork().stream().filter(bucket -> bucket.failureRate > 0.0).map(bucket -> bucket.testName))
+                .sorted().collect(Collectors.toList());
+        Assertions.assertEquals(Arrays.asList("com.r3.C0.m", "com.r3.C1.m"), failureProne);
+        for (BucketingAllocator.TestsForForkContainer container : containers) {
+            Assertions.assertEquals(1, container.getBucketsForFork().stream().filter(bucket -> bucket.failureRate > 0.0).count());
+        }
+    }
+
+    @Test
+    public void failureProneTestsDoNotUnbalanceThePlan() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        Tests tests = new Tests();
+        List<String> testNames = Arrays.asList("com.r3.A.m", "com.r3.B.m", "com.r3.C.m", "com.r3.D.m", "com.r3.E.m", "com.r3.F.m");
+        long[] durations = {10, 7, 6, 4, 4, 2};
+        for (int i = 0; i < testNames.size(); i++) {
+            tests.addDuration(testNames.get(i), durations[i] * second);
+        }
+        // Were the flaky test placed first, the forks would take 18 and 15 seconds.
+        tests.addOutcome("com.r3.F.m", TestOutcome.FAILED);
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(2, () -> tests);
+        bucketingAllocator.addSource(() -> testNames, new Object());
+        bucketingAllocator.generateTestPlan();
+
+        Assertions.assertEquals(17 * second, bucketingAllocator.getForkContainers().stream()
+                .mapToLong(BucketingAllocator.TestsForForkContainer::getCurrentDuration).max().getAsLong());
+        Assertions.assertEquals(BucketingAllocator.getDurationBand(1024L), BucketingAllocator.getDurationBand(2047L));
+        Assertions.assertEquals(BucketingAllocator.getDurationBand(1024L) + 1, BucketingAllocator.getDurationBand(2048L));
+    }
+
+    @Test
+    public void eachForkRunsItsFailureProneTestsFirst() {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        Tests tests = new Tests();
+        List<String> testNames = Arrays.asList("com.r3.A.m", "com.r3.B.m", "com.r3.C.m", "com.r3.D.m");
+        tests.addDuration("com.r3.A.m", 10 * second);
+        tests.addDuration("com.r3.B.m", second);
+        tests.addDuration("com.r3.C.m", 5 * second);
+        tests.addDuration("com.r3.D.m", 2 * second);
+        tests.addOutcome("com.r3.D.m", TestOutcome.FAILED);
+        tests.addOutcome("com.r3.B.m", TestOutcome.FAILED);
+        tests.addDuration("com.r3.B.m", second);
+        tests.addOutcome("com.r3.B.m", TestOutcome.PASSED);
+
+        BucketingAllocator bucketingAllocator = new BucketingAllocator(1, () -> tests);
+        Object task = new Object();
+        bucketingAllocator.addSource(() -> testNames, task);
+        bucketingAllocator.generateTestPlan();
+
+        // Always failed, then failed and has passed once since, which only lowers its decayed rate a little, then the
+        // rest longest first.
+        Assertions.assertEquals(1.0, tests.getFailureRate("com.r3.D.m"));
+        Assertions.assertTrue(tests.getFailureRate("com.r3.B.m") > 0.5 && tests.getFailureRate("com.r3.B.m") < 1.0);
+        List<String> expected = Arrays.asList("com.r3.D.m", "com.r3.B.m", "com.r3.A.m", "com.r3.C.m");
+        Assertions.assertEquals(expected, bucketingAllocator.getForkContainers().get(0).getBucketsForFork().stream()
+                .map(bucket -> bucket.testName).collect(Collectors.toList()));
+        Assertions.assertEquals(expected, bucketingAllocator.getTestsForForkAndTestTask(0, task));
+    }
+}
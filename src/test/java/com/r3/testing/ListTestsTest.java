@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -36,4 +37,11 @@ public class ListTestsTest {
 
     }
 
+    @Test
+    public void classesAreTheDistinctClassesOfTheMethods() {
+        // '$' sorts before '.', so a nested class's methods can come between its outer class's.
+        List<String> methods = Arrays.asList("com.r3.A$B.test", "com.r3.A.first", "com.r3.A.second", "com.r3.C.test", "NoPackage.test");
+
+        Assertions.assertEquals(Arrays.asList("NoPackage", "com.r3.A", "com.r3.A$B", "com.r3.C"), ListTests.getClasses(methods));
+    }
 }
@@ -0,0 +1,105 @@
+package com.r3.testing;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class ShardCountSelectorTest {
+
+    // 100 tests of 6 seconds, i.e. 10 minutes of work, and a minute to set up each fork.
+    private static IntFunction<BucketingAllocator> allocatorFor(int numberOfTests) {
+        Tests tests = new Tests();
+        List<String> testNames = IntStream.range(0, numberOfTests).mapToObj(i -> "com.r3.Class" + i).collect(Collectors.toList());
+        testNames.forEach(name -> tests.addDuration(name, TimeUnit.SECONDS.toNanos(6)));
+        tests.addForkSetupDuration(TimeUnit.MINUTES.toNanos(1));
+        return forks -> {
+            BucketingAllocator allocator = new BucketingAllocator(forks, () -> tests);
+            allocator.addSource(() -> testNames, "task");
+            return allocator;
+        };
+    }
+
+    @Test
+    public void picksTheFewestForksThatMeetTheTarget() {
+        // 10 minutes of work in 3 minutes, with a minute of setup each, needs 5 forks.
+        int forks = new ShardCountSelector(TimeUnit.MINUTES.toNanos(3), 0.0, 20).select(allocatorFor(100), fork -> 4);
+        Assertions.assertEquals(5, forks);
+    }
+
+    @Test
+    public void smallSuitesGetFewForks() {
+        int forks = new ShardCountSelector(TimeUnit.MINUTES.toNanos(3), 0.0, 20).select(allocatorFor(10), fork -> 4);
+        Assertions.assertEquals(1, forks);
+    }
+
+    @Test
+    public void neverUsesMoreThanTheMaximum() {
+        int forks = new ShardCountSelector(TimeUnit.MINUTES.toNanos(1), 0.0, 8).select(allocatorFor(100), fork -> 4);
+        Assertions.assertEquals(8, forks);
+    }
+
+    @Test
+    public void costCeilingWins() {
+        // Each fork costs 4 cores for its minute of setup plus its share of the 10 minutes of work, so 5 forks
+        // cost 4 * 15 minutes = 1 core hour, and 4 forks cost 4 * 14 minutes.
+        int forks = new ShardCountSelector(TimeUnit.MINUTES.toNanos(3), 0.95, 20).select(allocatorFor(100), fork -> 4);
+        Assertions.assertEquals(4, forks);
+    }
+
+    @Test
+    public void withoutATargetPicksTheFastestWithinTheCeiling() {
+        int forks = new ShardCountSelector(0L, 0.95, 20).select(allocatorFor(100), fork -> 4);
+        Assertions.assertEquals(4, forks);
+    }
+
+    @Test
+    public void cheapestIfNothingIsWithinTheCeiling() {
+        int forks = new ShardCountSelector(TimeUnit.MINUTES.toNanos(3), 0.01, 20).select(allocatorFor(100), fork -> 4);
+        Assertions.assertEquals(1, forks);
+    }
+
+    @Test
+    public void testsAreListedAndMatchedOnlyOnce() {
+        Tests tests = new Tests();
+        List<String> testNames = IntStream.range(0, 100).mapToObj(i -> "com.r3.Class" + i).collect(Collectors.toList());
+        testNames.forEach(name -> tests.addDuration(name, TimeUnit.SECONDS.toNanos(6)));
+        AtomicInteger listed = new AtomicInteger();
+        IntFunction<BucketingAllocator> allocatorFor = forks -> {
+            BucketingAllocator allocator = new BucketingAllocator(forks, () -> tests);
+            // The tests are matched to their durations as they are listed.
+            allocator.addSource(() -> {
+                listed.incrementAndGet();
+                return testNames;
+            }, "task");
+            return allocator;
+        };
+
+        new ShardCountSelector(TimeUnit.MINUTES.toNanos(1), 0.0, 20).select(allocatorFor, fork -> 4);
+        Assertions.assertEquals(1, listed.get());
+    }
+
+    @Test
+    public void predictsWithTheStrategyThatWillMakeThePlan() {
+        // Greedy puts 3 and 3 on two forks, then 2 + 2 on one of them and 2 on the other, taking 7 minutes, where
+        // 3 + 3 and 2 + 2 + 2 take 6.
+        Tests tests = new Tests();
+        List<String> testNames = Arrays.asList("com.r3.A", "com.r3.B", "com.r3.C", "com.r3.D", "com.r3.E");
+        List<Integer> minutes = Arrays.asList(3, 3, 2, 2, 2);
+        IntStream.range(0, testNames.size()).forEach(i -> tests.addDuration(testNames.get(i), TimeUnit.MINUTES.toNanos(minutes.get(i))));
+        for (AllocationStrategy strategy : AllocationStrategy.values()) {
+            int forks = new ShardCountSelector(TimeUnit.MINUTES.toNanos(6), 0.0, 3).select(forkCount -> {
+                BucketingAllocator allocator = new BucketingAllocator(forkCount, () -> tests, strategy);
+                allocator.addSource(() -> testNames, "task");
+                return allocator;
+            }, fork -> 4);
+            Assertions.assertEquals(strategy == AllocationStrategy.LOCAL_SEARCH ? 2 : 3, forks, strategy.name());
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.r3.testing;
+
+import com.r3.testing.BucketingAllocator.TestBucket;
+import com.r3.testing.TestBatchQueue.TestBatch;
+import groovy.lang.Tuple2;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class TestBatchQueueTest {
+
+    private static List<TestBucket> bucketsFor(String task, int classes, int methodsPerClass, long classSetupNanos) {
+        List<TestBucket> buckets = new ArrayList<>();
+        for (int c = 0; c < classes; c++) {
+            for (int m = 0; m < methodsPerClass; m++) {
+                String className = "com.r3.Class" + c;
+                long duration = 1_000_000L * (1 + (c * 7 + m * 3) % 11);
+                buckets.add(new TestBucket(task, className + ".test" + m,
+                        Collections.singletonList(new Tuple2<>(className + ".test" + m, duration)), className, classSetupNanos, 0L));
+            }
+        }
+        buckets.sort(Comparator.comparing(TestBucket::getDuration).reversed());
+        return buckets;
+    }
+
+    private static List<TestBatch> takeAll(TestBatchQueue queue) throws InterruptedException {
+        List<TestBatch> batches = new ArrayList<>();
+        for (TestBatch batch = queue.take(0); batch != null; batch = queue.take(0)) {
+            batches.add(batch);
+            queue.finished(batch);
+        }
+        return batches;
+    }
+
+    @Test
+    public void everyTestIsInExactlyOneBatchLongestFirst() throws InterruptedException {
+        List<TestBucket> buckets = new ArrayList<>(bucketsFor(":core:test", 30, 5, 0L));
+        buckets.addAll(bucketsFor(":core:integrationTest", 10, 3, 0L));
+
+        List<TestBatch> batches = takeAll(new TestBatchQueue(buckets, 4, 4));
+
+        List<TestBucket> batched = batches.stream().flatMap(batch -> batch.buckets.stream()).collect(Collectors.toList());
+        Assertions.assertEquals(buckets.size(), batched.size());
+        Assertions.assertTrue(batched.containsAll(buckets));
+        for (int i = 1; i < batches.size(); i++) {
+            Assertions.assertTrue(batches.get(i - 1).getDuration() >= batches.get(i).getDuration());
+        }
+        batches.forEach(batch -> Assertions.assertTrue(batch.buckets.stream().allMatch(tb -> tb.testTask.equals(batch.testTask))));
+        Assertions.assertTrue(batches.size() >= 16, "Expected about 4 batches per fork, got " + batches.size());
+    }
+
+    @Test
+    public void batchesWithFailureProneTestsAreTakenFirstWithinTheirBand() throws InterruptedException {
+        List<TestBucket> buckets = new ArrayList<>(bucketsFor(":core:test", 30, 1, 0L));
+        // The shortest test of all, which would otherwise be in the last batch.
+        buckets.add(new TestBucket(":core:test", "com.r3.Flaky.test",
+                Collections.singletonList(new Tuple2<>("com.r3.Flaky.test", 1L)), "com.r3.Flaky", 0L, 0L, 0.25));
+
+        List<TestBatch> batches = takeAll(new TestBatchQueue(buckets, 2, 4));
+
+        final TestBatch flaky = batches.stream().filter(batch -> batch.failureRate > 0.0).findFirst().get();
+        Assertions.assertEquals(0.25, flaky.failureRate, 1e-9);
+        final int band = BucketingAllocator.getDurationBand(flaky.getDuration());
+        for (int i = 1; i < batches.size(); i++) {
+            Assertions.assertTrue(BucketingAllocator.getDurationBand(batches.get(i - 1).getDuration()) >= BucketingAllocator.getDurationBand(batches.get(i).getDuration()));
+        }
+        Assertions.assertEquals(flaky, batches.stream().filter(batch -> BucketingAllocator.getDurationBand(batch.getDuration()) == band).findFirst().get());
+    }
+
+    @Test
+    public void failingFastStopsHandingOutBatches() throws Exception {
+        TestBatchQueue queue = new TestBatchQueue(bucketsFor(":core:test", 20, 2, 0L), 1, 8);
+        final int batches = queue.size();
+        FailFast failFast = new FailFast(2);
+        failFast.onCancel(queue::cancel);
+
+        List<TestBatch> ran = new ArrayList<>();
+        int result = queue.drain(0, (fork, batch) -> {
+            ran.add(batch);
+            return failFast.record(ran.size() % 2 == 0 ? 1 : 0);
+        });
+
+        Assertions.assertEquals(1, result);
+        Assertions.assertEquals(4, ran.size());
+        Assertions.assertTrue(failFast.isCancelled());
+        Assertions.assertEquals(0, queue.size());
+        Assertions.assertTrue(batches > ran.size());
+        // Anything that wants to know once we've cancelled hears about it straight away.
+        List<String> told = new ArrayList<>();
+        failFast.onCancel(() -> told.add("cancelled"));
+        Assertions.assertEquals(Collections.singletonList("cancelled"), told);
+    }
+
+    @Test
+    public void notFailingFastRunsEveryBatch() throws Exception {
+        TestBatchQueue queue = new TestBatchQueue(bucketsFor(":core:test", 20, 2, 0L), 1, 8);
+        final int batches = queue.size();
+        FailFast failFast = new FailFast(0);
+        failFast.onCancel(queue::cancel);
+
+        int result = queue.drain(0, (fork, batch) -> failFast.record(1));
+
+        Assertions.assertEquals(1, result);
+        Assertions.assertFalse(failFast.isCancelled());
+        Assertions.assertEquals(batches, failFast.getFailures());
+    }
+
+    @Test
+    public void classesAreKeptTogetherUnlessTooBig() throws InterruptedException {
+        List<TestBucket> buckets = new ArrayList<>(bucketsFor(":core:test", 40, 3, 5_000_000L));
+        // One class with as much work as all the others together must be split.
+        buckets.addAll(IntStream.range(0, 60).mapToObj(m -> new TestBucket(":core:test", "com.r3.Huge.test" + m,
+                Collections.singletonList(new Tuple2<>("com.r3.Huge.test" + m, 10_000_000L)), "com.r3.Huge", 5_000_000L, 0L))
+                .collect(Collectors.toList()));
+
+        List<TestBatch> batches = takeAll(new TestBatchQueue(buckets, 2, 4));
+
+        Map<String, Set<Integer>> batchesByClass = new HashMap<>();
+        batches.forEach(batch -> batch.buckets.forEach(tb -> batchesByClass.computeIfAbsent(tb.className, c -> new HashSet<>()).add(batch.getId())));
+        batchesByClass.forEach((className, ids) -> {
+            if (className.equals("com.r3.Huge")) {
+                Assertions.assertTrue(ids.size() > 1, "The huge class should be split");
+            } else {
+                Assertions.assertEquals(1, ids.size(), className + " should be in one batch");
+            }
+        });
+    }
+
+    @Test
+    public void batchesOfALostForkAreRunByTheOthers() throws Exception {
+        TestBatchQueue queue = new TestBatchQueue(bucketsFor(":core:test", 20, 2, 0L), 2, 4);
+        int batchCount = queue.size();
+        List<Integer> ranOnFork0 = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch fork1HasABatch = new CountDownLatch(1);
+        // Fork 1 is lost only once fork 0 has run every other batch, so that fork 0 has to wait for its batch.
+        CountDownLatch fork0RanTheOthers = new CountDownLatch(batchCount - 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> fork0 = executor.submit(() -> queue.drain(0, (fork, batch) -> {
+                fork1HasABatch.await();
+                ranOnFork0.add(batch.getId());
+                fork0RanTheOthers.countDown();
+                return 0;
+            }));
+            Future<Integer> fork1 = executor.submit(() -> queue.drain(1, (fork, batch) -> {
+                fork1HasABatch.countDown();
+                fork0RanTheOthers.await();
+                throw new IOException("pod lost");
+            }));
+
+            Assertions.assertEquals(0, fork0.get(10, TimeUnit.SECONDS).intValue());
+            ExecutionException lost = Assertions.assertThrows(ExecutionException.class, () -> fork1.get(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(lost.getCause() instanceof IOException);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertEquals(0, queue.size());
+        Assertions.assertEquals(batchCount, ranOnFork0.size());
+        Assertions.assertEquals(batchCount, new HashSet<>(ranOnFork0).size());
+        Assertions.assertTrue(queue.getTakenBy(1).isEmpty());
+    }
+
+    @Test
+    public void fasterForksTakeMoreBatches() throws Exception {
+        TestBatchQueue queue = new TestBatchQueue(bucketsFor(":core:test", 40, 2, 0L), 2, 8);
+
+        CountDownLatch slowHasABatch = new CountDownLatch(1);
+        CountDownLatch queueIsEmpty = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // The slow fork is still running its first batch when the fast fork has taken all the others.
+            Future<Integer> slow = executor.submit(() -> queue.drain(0, (fork, batch) -> {
+                slowHasABatch.countDown();
+                queueIsEmpty.await();
+                return 0;
+            }));
+            Future<Integer> fast = executor.submit(() -> queue.drain(1, (fork, batch) -> {
+                slowHasABatch.await();
+                if (queue.size() == 0) {
+                    queueIsEmpty.countDown();
+                }
+                return 1;
+            }));
+            Assertions.assertEquals(0, slow.get(30, TimeUnit.SECONDS).intValue());
+            // The first failure of a fork's batches is its result.
+            Assertions.assertEquals(1, fast.get(30, TimeUnit.SECONDS).intValue());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertEquals(1, queue.getTakenBy(0).size());
+        Assertions.assertTrue(queue.getTakenBy(1).size() > queue.getTakenBy(0).size(),
+                "fast fork took " + queue.getTakenBy(1).size() + ", slow fork took " + queue.getTakenBy(0).size());
+    }
+
+    @Test
+    public void failedBatchesAreRunAgainUntilWeBelieveThem() throws Exception {
+        TestBatchQueue queue = new TestBatchQueue(bucketsFor(":core:test", 20, 2, 0L), 1, 4);
+        final int batches = queue.size();
+        List<Integer> ran = new ArrayList<>();
+        // Batch 0 fails once, batch 1 always fails.
+        TestBatchQueue.TestBatchRunner runner = (fork, batch) -> {
+            ran.add(batch.getId());
+            return batch.getId() == 1 || (batch.getId() == 0 && batch.getAttempts() == 1) ? 1 : 0;
+        };
+
+        // Each failure loses the fork, as if it were a pod, and the batch goes back on the queue for its replacement.
+        List<String> failures = new ArrayList<>();
+        for (int fork = 0; fork < TestBatchQueue.MAX_ATTEMPTS; fork++) {
+            failures.add(Assertions.assertThrows(TestBatchQueue.BatchFailedException.class,
+                    () -> queue.drain(0, runner, TestBatchQueue.MAX_ATTEMPTS)).getMessage());
+        }
+        Assertions.assertEquals(Arrays.asList(
+                "Batch 0 of :core:test failed with 1 on attempt 1",
+                "Batch 1 of :core:test failed with 1 on attempt 1",
+                "Batch 1 of :core:test failed with 1 on attempt 2"), failures);
+        Assertions.assertEquals(batches - 1, queue.size());
+        // Then we believe it.
+        Assertions.assertEquals(1, queue.drain(0, runner, TestBatchQueue.MAX_ATTEMPTS));
+
+        Assertions.assertEquals(0, queue.size());
+        Assertions.assertEquals(2, ran.stream().filter(id -> id == 0).count());
+        Assertions.assertEquals(TestBatchQueue.MAX_ATTEMPTS, ran.stream().filter(id -> id == 1).count());
+        Assertions.assertEquals(batches + TestBatchQueue.MAX_ATTEMPTS, ran.size());
+        Assertions.assertEquals(batches, queue.getTakenBy(0).size());
+    }
+
+    @Test
+    public void failedBatchesAreNotRunAgainOnceCancelled() throws Exception {
+        TestBatchQueue queue = new TestBatchQueue(bucketsFor(":core:test", 20, 2, 0L), 2, 4);
+        FailFast failFast = new FailFast(1);
+        failFast.onCancel(queue::cancel);
+
+        Assertions.assertEquals(1, queue.drain(0, (fork, batch) -> failFast.record(1), TestBatchQueue.MAX_ATTEMPTS));
+        Assertions.assertTrue(queue.isCancelled());
+        Assertions.assertEquals(0, queue.size());
+        Assertions.assertEquals(1, queue.getTakenBy(0).size());
+
+        // Nor is the batch of a fork lost after that.
+        TestBatchQueue lost = new TestBatchQueue(bucketsFor(":core:test", 20, 2, 0L), 2, 4);
+        Assertions.assertThrows(IOException.class, () -> lost.drain(0, (fork, batch) -> {
+            lost.cancel();
+            throw new IOException("pod lost");
+        }));
+        Assertions.assertEquals(0, lost.size());
+    }
+
+    @Test
+    public void localRunnerRunsEveryBatchEndToEnd() throws Exception {
+        final Path directory = Files.createTempDirectory("local-pods");
+        try {
+            List<TestBucket> buckets = new ArrayList<>(bucketsFor(":core:test", 10, 2, 0L));
+            buckets.addAll(bucketsFor(":core:integrationTest", 5, 2, 0L));
+            TestBatchQueue queue = new TestBatchQueue(buckets, 2, 2);
+            Files.write(directory.resolve("build.gradle"), Collections.singletonList("// the project"));
+            Files.createDirectories(directory.resolve("build").resolve("classes"));
+            Files.createDirectories(directory.resolve(".gradle"));
+            // Stands in for gradlew:  just print where we are, and the options and tasks we are given.
+            LocalTestBatchRunner runner = new LocalTestBatchRunner(directory.toFile(),
+                    Arrays.asList("sh", "-c", "echo \"$(pwd)\" \"$@\"", "sh"), directory.resolve("forks").toFile(),
+                    Collections.singletonList(directory.resolve("build").toFile()));
+
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<Integer> fork0 = executor.submit(() -> queue.drain(0, runner));
+                Future<Integer> fork1 = executor.submit(() -> queue.drain(1, runner));
+                Assertions.assertEquals(0, fork0.get(30, TimeUnit.SECONDS).intValue());
+                Assertions.assertEquals(0, fork1.get(30, TimeUnit.SECONDS).intValue());
+            } finally {
+                executor.shutdownNow();
+            }
+
+            Map<String, List<String>> ran = new HashMap<>();
+            for (int fork = 0; fork < 2; fork++) {
+                if (queue.getTakenBy(fork).isEmpty()) {
+                    continue;
+                }
+                // Each fork builds its own copy of the project, without what the builds made.
+                final File project = runner.getProjectDirectory(fork);
+                Assertions.assertTrue(new File(project, "build.gradle").isFile());
+                Assertions.assertFalse(new File(project, "build").exists());
+                Assertions.assertFalse(new File(project, ".gradle").exists());
+                Assertions.assertFalse(new File(project, "forks").exists());
+                for (String line : Files.readAllLines(runner.getOutputFile(fork).toPath())) {
+                    List<String> arguments = Arrays.asList(line.split(" "));
+                    Assertions.assertEquals(project.getCanonicalPath(), new File(arguments.get(0)).getCanonicalPath());
+                    Assertions.assertTrue(arguments.stream().anyMatch(a -> a.startsWith("-D" + PhaseTimings.FORK_START_PROPERTY + "=")));
+                    String batchFile = arguments.stream().filter(a -> a.startsWith("-D" + TestPlanFile.PROPERTY + "="))
+                            .findFirst().orElseThrow(AssertionError::new).substring(TestPlanFile.PROPERTY.length() + 3);
+                    Assertions.assertTrue(arguments.contains("-PdockerFork=" + fork));
+                    try (Reader reader = new FileReader(new File(batchFile))) {
+                        Map<String, List<String>> slice = TestPlanFile.read(reader);
+                        Assertions.assertEquals(Collections.singleton(arguments.get(arguments.size() - 1)), slice.keySet());
+                        slice.forEach((task, tests) -> ran.computeIfAbsent(task, t -> new ArrayList<>()).addAll(tests));
+                    }
+                }
+            }
+
+            for (String task : Arrays.asList(":core:test", ":core:integrationTest")) {
+                Assertions.assertEquals(
+                        buckets.stream().filter(tb -> tb.testTask.equals(task)).map(tb -> tb.testName).sorted().collect(Collectors.toList()),
+                        ran.get(task).stream().sorted().collect(Collectors.toList()));
+            }
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.r3.testing;
+
+import com.r3.testing.TestDiscoveryIndex.ClassEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+
+public class TestDiscoveryIndexTest {
+
+    // Private, so that they aren't run as tests themselves.
+    private abstract static class Base {
+        @Test
+        public void inherited() {
+        }
+
+        @Test
+        @Deprecated
+        public void annotatedTwice() {
+        }
+    }
+
+    private static class Sub extends Base {
+        public void notATest() {
+        }
+    }
+
+    private static class SubSub extends Sub {
+        @Test
+        public void own() {
+        }
+    }
+
+    private interface Contract {
+        @Test
+        default void fromInterface() {
+        }
+    }
+
+    private static class Implementation implements Contract {
+    }
+
+    // An override without a test annotation isn't a test.
+    private static class Overriding extends Base implements Contract {
+        @Override
+        public void inherited() {
+        }
+
+        @Override
+        public void fromInterface() {
+        }
+    }
+
+    private static class Templates {
+        @RepeatedTest(3)
+        public void repeated() {
+        }
+
+        @TestFactory
+        public List<DynamicTest> made() {
+            return Collections.emptyList();
+        }
+    }
+
+    private static class Unrelated {
+        @SuppressWarnings("unused")
+        private final long value = 1L;
+
+        public void notATest() {
+        }
+    }
+
+    private static final List<Class<?>> FIXTURES = Arrays.asList(Base.class, Sub.class, SubSub.class, Unrelated.class);
+
+    private static byte[] classFile(Class<?> type) throws IOException {
+        final String name = type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = type.getResourceAsStream(name)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int length = 0;
+            for (int read; (read = in.read(buffer, length, buffer.length - length)) > 0; ) {
+                length += read;
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+
+    private static Path write(Path directory, Class<?> type) throws IOException {
+        final Path file = directory.resolve(type.getName().replace('.', '/') + ".class");
+        Files.createDirectories(file.getParent());
+        return Files.write(file, classFile(type));
+    }
+
+    private static List<String> names(List<ClassEntry> entries) {
+        return entries.stream().map(entry -> entry.className).collect(Collectors.toList());
+    }
+
+    @Test
+    public void readsTheNameSuperclassAndTestMethodsOfAClass() throws IOException {
+        ClassEntry base = TestDiscoveryIndex.readClass(classFile(Base.class));
+        Assertions.assertNotNull(base);
+        Assertions.assertEquals(Base.class.getName(), base.className);
+        Assertions.assertEquals(Object.class.getName(), base.superclassName);
+        Assertions.assertEquals(Arrays.asList("inherited", "annotatedTwice"), base.getTestMethods(TestDiscoveryIndex.JUNIT5_TEST));
+        Assertions.assertEquals(Collections.emptyList(), base.getTestMethods(TestDiscoveryIndex.JUNIT4_TEST));
+        Assertions.assertTrue(base.isAbstract);
+
+        ClassEntry sub = TestDiscoveryIndex.readClass(classFile(Sub.class));
+        Assertions.assertNotNull(sub);
+        Assertions.assertEquals(Base.class.getName(), sub.superclassName);
+        Assertions.assertFalse(sub.hasTestMethods());
+        Assertions.assertFalse(sub.isAbstract);
+
+        ClassEntry templates = TestDiscoveryIndex.readClass(classFile(Templates.class));
+        Assertions.assertNotNull(templates);
+        Assertions.assertEquals(Collections.singletonList("repeated"), templates.getTestMethods(TestDiscoveryIndex.JUNIT5_REPEATED_TEST));
+        Assertions.assertEquals(Collections.singletonList("made"), templates.getTestMethods(TestDiscoveryIndex.JUNIT5_TEST_FACTORY));
+
+        ClassEntry implementation = TestDiscoveryIndex.readClass(classFile(Implementation.class));
+        Assertions.assertNotNull(implementation);
+        Assertions.assertEquals(Collections.singletonList(Contract.class.getName()), implementation.interfaceNames);
+        ClassEntry contract = TestDiscoveryIndex.readClass(classFile(Contract.class));
+        Assertions.assertNotNull(contract);
+        Assertions.assertTrue(contract.isAbstract);
+        Assertions.assertEquals(Collections.singletonList("fromInterface()"), contract.methods);
+        ClassEntry overriding = TestDiscoveryIndex.readClass(classFile(Overriding.class));
+        Assertions.assertNotNull(overriding);
+        Assertions.assertEquals(Arrays.asList("inherited()", "fromInterface()"), overriding.methods);
+        Assertions.assertFalse(overriding.hasTestMethods());
+
+        // This class has longs in its constant pool, and test methods of its own.
+        Assertions.assertFalse(TestDiscoveryIndex.readClass(classFile(Unrelated.class)).hasTestMethods());
+        Assertions.assertTrue(TestDiscoveryIndex.readClass(classFile(TestDiscoveryIndexTest.class)).hasTestMethods());
+
+        Assertions.assertNull(TestDiscoveryIndex.readClass(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        Assertions.assertNull(TestDiscoveryIndex.readClass(new byte[]{1, 2}));
+        Assertions.assertThrows(IOException.class, () -> TestDiscoveryIndex.readClass(Arrays.copyOf(classFile(Base.class), 100)));
+    }
+
+    /**
+     * @return the class file with the type of its first lone annotation, one without values, replaced by nothing.
+     */
+    private static byte[] withUnreadableAnnotation(byte[] bytes) {
+        // An attribute of six bytes, holding one annotation, of some type, with no values.
+        for (int i = 0; i + 10 <= bytes.length; i++) {
+            if (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 0 && bytes[i + 3] == 6 && bytes[i + 4] == 0 && bytes[i + 5] == 1
+                    && bytes[i + 8] == 0 && bytes[i + 9] == 0) {
+                final byte[] corrupt = bytes.clone();
+                corrupt[i + 6] = 0;
+                corrupt[i + 7] = 0;
+                return corrupt;
+            }
+        }
+        throw new IllegalArgumentException("No lone annotation to corrupt");
+    }
+
+    @Test
+    public void classFilesWeCannotReadAreNotSilentlyLost() throws IOException {
+        final byte[] unreadable = withUnreadableAnnotation(classFile(Base.class));
+        Assertions.assertThrows(IOException.class, () -> TestDiscoveryIndex.readClass(unreadable));
+
+        final Path directory = Files.createTempDirectory("classes");
+        try {
+            final Path classes = directory.resolve("classes");
+            final Path library = directory.resolve("library");
+            write(classes, Sub.class);
+            write(classes, SubSub.class);
+            final Path base = Files.write(write(classes, Base.class), unreadable);
+
+            // One of ours would have its tests go unlisted, so the listing fails.
+            final IOException e = Assertions.assertThrows(IOException.class, () -> new TestDiscoveryIndex().update(Collections.singletonList(classes.toFile())));
+            Assertions.assertTrue(e.getMessage().contains(base.toAbsolutePath().toString()), e.getMessage());
+
+            // A library's is only warned of, as it costs at most the tests we'd inherit from it.
+            Files.move(base, Files.createDirectories(library.resolve(classes.relativize(base)).getParent()).resolve(base.getFileName()));
+            TestDiscoveryIndex index = new TestDiscoveryIndex();
+            index.update(Collections.singletonList(classes.toFile()), Collections.singletonList(library.toFile()));
+            Assertions.assertEquals(Collections.singletonList(SubSub.class.getName() + ".own"), index.getTests(DistributeTestsBy.METHOD));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void concreteClassesListTheTestsTheyInherit() throws IOException {
+        final Path directory = Files.createTempDirectory("classes");
+        try {
+            for (Class<?> fixture : FIXTURES) {
+                write(directory, fixture);
+            }
+            write(directory, Templates.class);
+            TestDiscoveryIndex index = new TestDiscoveryIndex();
+            index.update(Collections.singletonList(directory.toFile()));
+
+            final String sub = Sub.class.getName();
+            final String subSub = SubSub.class.getName();
+            final String templates = Templates.class.getName();
+            Assertions.assertEquals(Arrays.asList(sub + ".annotatedTwice", sub + ".inherited", subSub + ".annotatedTwice", subSub + ".inherited",
+                    subSub + ".own", templates + ".made", templates + ".repeated"), index.getTests(DistributeTestsBy.METHOD));
+            Assertions.assertEquals(Arrays.asList(sub, subSub, templates), index.getTests(DistributeTestsBy.CLASS));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void onlyChangedClassFilesAreReadAgain() throws IOException {
+        final Path directory = Files.createTempDirectory("classes");
+        try {
+            final Map<Class<?>, Path> files = new HashMap<>();
+            for (Class<?> fixture : FIXTURES) {
+                files.put(fixture, write(directory, fixture));
+            }
+
+            TestDiscoveryIndex index = new TestDiscoveryIndex();
+            index.update(Collections.singletonList(directory.toFile()));
+            Assertions.assertEquals(FIXTURES.size(), index.getClassFilesRead());
+            Assertions.assertEquals(Arrays.asList(Base.class.getName(), Sub.class.getName(), SubSub.class.getName()), names(index.getTestClasses()));
+
+            index.update(Collections.singletonList(directory.toFile()));
+            Assertions.assertEquals(0, index.getClassFilesRead());
+
+            // Recompiled, but no different.
+            Files.setLastModifiedTime(files.get(Sub.class), FileTime.fromMillis(Files.getLastModifiedTime(files.get(Sub.class)).toMillis() + 60_000L));
+            index.update(Collections.singletonList(directory.toFile()));
+            Assertions.assertEquals(0, index.getClassFilesRead());
+
+            // Sub no longer extends Base, so isn't a test class.
+            Files.write(files.get(Sub.class), classFile(Unrelated.class));
+            Files.delete(files.get(SubSub.class));
+            index.update(Collections.singletonList(directory.toFile()));
+            Assertions.assertEquals(0, index.getClassFilesRead());
+            Assertions.assertEquals(FIXTURES.size() - 1, index.size());
+            Assertions.assertEquals(Collections.singletonList(Base.class.getName()), names(index.getTestClasses()));
+
+            write(directory, TestDiscoveryIndexTest.class);
+            index.update(Collections.singletonList(directory.toFile()));
+            Assertions.assertEquals(1, index.getClassFilesRead());
+            Assertions.assertEquals(Arrays.asList(TestDiscoveryIndexTest.class.getName(), Base.class.getName()), names(index.getTestClasses()));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void indexSurvivesWriteAndRead() throws IOException {
+        final Path directory = Files.createTempDirectory("classes");
+        try {
+            for (Class<?> fixture : FIXTURES) {
+                write(directory, fixture);
+            }
+            TestDiscoveryIndex index = new TestDiscoveryIndex();
+            index.update(Collections.singletonList(directory.toFile()));
+            StringWriter writer = new StringWriter();
+            index.write(writer);
+
+            TestDiscoveryIndex readBack = new TestDiscoveryIndex();
+            readBack.read(new StringReader(writer.toString()));
+            Assertions.assertEquals(names(index.getTestClasses()), names(readBack.getTestClasses()));
+            Assertions.assertEquals(Arrays.asList("inherited", "annotatedTwice"),
+                    readBack.getTestClasses().get(0).getTestMethods(TestDiscoveryIndex.JUNIT5_TEST));
+
+            readBack.update(Collections.singletonList(directory.toFile()));
+            Assertions.assertEquals(0, readBack.getClassFilesRead());
+
+            // A missing or unreadable index just means reading every class file again.
+            File file = directory.resolve("index.csv").toFile();
+            Assertions.assertEquals(0, TestDiscoveryIndex.load(file).size());
+            Files.write(file.toPath(), Collections.singletonList("not,an\\nindex"));
+            Assertions.assertEquals(0, TestDiscoveryIndex.load(file).size());
+            index.save(file);
+            Assertions.assertEquals(index.size(), TestDiscoveryIndex.load(file).size());
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testsFromInterfacesAreInheritedAndOverridesDecide() throws IOException {
+        final Path directory = Files.createTempDirectory("classes");
+        try {
+            for (Class<?> fixture : Arrays.asList(Base.class, Contract.class, Implementation.class, Overriding.class)) {
+                write(directory, fixture);
+            }
+            TestDiscoveryIndex index = new TestDiscoveryIndex();
+            index.update(Collections.singletonList(directory.toFile()));
+
+            final String implementation = Implementation.class.getName();
+            final String overriding = Overriding.class.getName();
+            Assertions.assertEquals(Arrays.asList(implementation + ".fromInterface", overriding + ".annotatedTwice"), index.getTests(DistributeTestsBy.METHOD));
+            Assertions.assertEquals(Arrays.asList(implementation, overriding), index.getTests(DistributeTestsBy.CLASS));
+
+            // And so after reading the index back.
+            StringWriter writer = new StringWriter();
+            index.write(writer);
+            TestDiscoveryIndex readBack = new TestDiscoveryIndex();
+            readBack.read(new StringReader(writer.toString()));
+            Assertions.assertEquals(index.getTests(DistributeTestsBy.METHOD), readBack.getTests(DistributeTestsBy.METHOD));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void junit4RunsAnOverrideOfItsTestsButJUnit5DoesNot() throws IOException {
+        final String header = "Path,Size,Modified,Hash,Class,Abstract,Superclass,Interfaces,Methods,Test Methods,Library";
+        TestDiscoveryIndex index = new TestDiscoveryIndex();
+        index.read(new StringReader(String.join("\n", header,
+                "/classes/A.class,1,1,a,com.r3.A,true,java.lang.Object,,check(),check();" + TestDiscoveryIndex.JUNIT4_TEST + ",false",
+                "/classes/B.class,1,1,b,com.r3.B,false,com.r3.A,,check(),,false",
+                "/classes/C.class,1,1,c,com.r3.C,true,java.lang.Object,,check(),check();" + TestDiscoveryIndex.JUNIT5_TEST + ",false",
+                "/classes/D.class,1,1,d,com.r3.D,false,com.r3.C,,check(),,false")));
+
+        Assertions.assertEquals(Collections.singletonList("com.r3.B.check"), index.getTests(DistributeTestsBy.METHOD));
+        Assertions.assertEquals(Collections.singletonList("com.r3.B"), index.getTests(DistributeTestsBy.CLASS));
+    }
+
+    @Test
+    public void testsAreInheritedFromAnotherModulesJar() throws IOException {
+        final Path directory = Files.createTempDirectory("classes");
+        try {
+            final Path classes = Files.createDirectories(directory.resolve("classes"));
+            write(classes, Sub.class);
+            write(classes, SubSub.class);
+            // Base is another module's.
+            final File jar = directory.resolve("base.jar").toFile();
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+                out.putNextEntry(new JarEntry(Base.class.getName().replace('.', '/') + ".class"));
+                out.write(classFile(Base.class));
+                out.closeEntry();
+            }
+
+            TestDiscoveryIndex index = new TestDiscoveryIndex();
+            index.update(Collections.singletonList(classes.toFile()), Arrays.asList(classes.toFile(), jar));
+            Assertions.assertEquals(3, index.getClassFilesRead());
+            final String sub = Sub.class.getName();
+            final String subSub = SubSub.class.getName();
+            Assertions.assertEquals(Arrays.asList(sub + ".annotatedTwice", sub + ".inherited", subSub + ".annotatedTwice", subSub + ".inherited",
+                    subSub + ".own"), index.getTests(DistributeTestsBy.METHOD));
+            // The other module's classes aren't ours to run.
+            Assertions.assertEquals(Arrays.asList(sub, subSub), names(index.getTestClasses()));
+
+            // An unchanged jar isn't opened again, and its classes survive writing and reading the index.
+            StringWriter writer = new StringWriter();
+            index.write(writer);
+            TestDiscoveryIndex readBack = new TestDiscoveryIndex();
+            readBack.read(new StringReader(writer.toString()));
+            readBack.update(Collections.singletonList(classes.toFile()), Arrays.asList(classes.toFile(), jar));
+            Assertions.assertEquals(0, readBack.getClassFilesRead());
+            Assertions.assertEquals(index.getTests(DistributeTestsBy.METHOD), readBack.getTests(DistributeTestsBy.METHOD));
+
+            // Without the jar, nothing is inherited.
+            readBack.update(Collections.singletonList(classes.toFile()));
+            Assertions.assertEquals(Collections.singletonList(subSub + ".own"), readBack.getTests(DistributeTestsBy.METHOD));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
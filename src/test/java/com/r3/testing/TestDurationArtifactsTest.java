@@ -1,6 +1,7 @@
 package com.r3.testing;
 
 import groovy.lang.Tuple2;
+import groovy.lang.Tuple3;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
@@ -11,11 +12,16 @@ import org.junit.jupiter.api.Test;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -142,6 +148,136 @@ public class TestDurationArtifactsTest {
         Assertions.assertEquals(0L, results.get(1).getSecond().longValue());
     }
 
+    @Test
+    public void classSetupFromJunitXml() {
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<testsuite name=\"com.r3.SomeTest\" tests=\"2\" time=\"5.5\">\n" +
+                "    <testcase name=\"a\" classname=\"com.r3.SomeTest\" time=\"1.0\"/>\n" +
+                "    <testcase name=\"b\" classname=\"com.r3.SomeTest\" time=\"1.5\"/>\n" +
+                "</testsuite>";
+
+        final List<Tuple2<String, Long>> results
+                = TestDurationArtifacts.classSetupFromJunitXml(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        Assertions.assertEquals(1, results.size());
+        Assertions.assertEquals("com.r3.SomeTest", results.get(0).getFirst());
+        Assertions.assertEquals(3_000_000_000L, results.get(0).getSecond().longValue());
+    }
+
+    @Test
+    public void readJunitXmlReadsDurationsAndClassSetupAtOnce() {
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<testsuite name=\"com.r3.SomeTest\" tests=\"1\" time=\"3.0\">\n" +
+                "    <testcase name=\"a\" classname=\"com.r3.SomeTest\" time=\"1.0\"/>\n" +
+                "</testsuite>";
+
+        final TestDurationArtifacts.JunitXmlResults results
+                = TestDurationArtifacts.readJunitXml(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        Assertions.assertEquals(1, results.durations.size());
+        Assertions.assertEquals("com.r3.SomeTest.a", results.durations.get(0).getFirst());
+        Assertions.assertEquals(1_000_000_000L, results.durations.get(0).getSecond().longValue());
+        Assertions.assertEquals(1, results.classSetups.size());
+        Assertions.assertEquals(2_000_000_000L, results.classSetups.get(0).getSecond().longValue());
+        Assertions.assertEquals(Collections.singletonList(new Tuple2<>("com.r3.SomeTest.a", TestOutcome.PASSED)), results.outcomes);
+    }
+
+    @Test
+    public void classSetupFromJunitXmlSkipsSuitesWithoutTime() {
+        final List<Tuple2<String, Long>> results = TestDurationArtifacts.classSetupFromJunitXml(
+                new ByteArrayInputStream(getXml(new ArrayList<>()).getBytes(StandardCharsets.UTF_8)));
+
+        Assertions.assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void outcomesFromJunitXml() {
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<testsuite name=\"com.r3.A\" tests=\"4\" time=\"1.0\">\n" +
+                "  <testcase name=\"passes\" classname=\"com.r3.A\" time=\"0.1\"/>\n" +
+                "  <testcase name=\"fails\" classname=\"com.r3.A\" time=\"0.1\">\n" +
+                "    <failure message=\"expected:&lt;1&gt;\" type=\"java.lang.AssertionError\">trace</failure>\n" +
+                "  </testcase>\n" +
+                "  <testcase name=\"errors\" classname=\"com.r3.A\" time=\"0.1\">\n" +
+                "    <error message=\"boom\" type=\"java.lang.IllegalStateException\">trace</error>\n" +
+                "  </testcase>\n" +
+                "  <testcase name=\"ignored\" classname=\"com.r3.A\" time=\"0.0\">\n" +
+                "    <skipped/>\n" +
+                "  </testcase>\n" +
+                "</testsuite>\n";
+
+        List<Tuple2<String, TestOutcome>> results =
+                TestDurationArtifacts.outcomesFromJunitXml(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        Assertions.assertEquals(4, results.size());
+        Assertions.assertEquals(new Tuple2<>("com.r3.A.passes", TestOutcome.PASSED), results.get(0));
+        Assertions.assertEquals(new Tuple2<>("com.r3.A.fails", TestOutcome.FAILED), results.get(1));
+        Assertions.assertEquals(new Tuple2<>("com.r3.A.errors", TestOutcome.FAILED), results.get(2));
+        Assertions.assertEquals(new Tuple2<>("com.r3.A.ignored", TestOutcome.SKIPPED), results.get(3));
+    }
+
+    @Test
+    public void phaseTimingsSurviveWriteAndRead() {
+        final PhaseTimings timings = new PhaseTimings(":node:test", 1_000L);
+        timings.taskStarted(61_000L);
+        timings.testFinished(70_000L, 80_000L);
+        timings.testFinished(75_000L, 90_000L);
+        timings.taskFinished(95_000L);
+
+        final StringWriter writer = new StringWriter();
+        Assertions.assertTrue(timings.write(writer));
+        final List<Tuple3<String, Long, Long>> results = PhaseTimings.read(new StringReader(writer.toString()));
+
+        Assertions.assertEquals(1, results.size());
+        Assertions.assertEquals(":node:test", results.get(0).getFirst());
+        Assertions.assertEquals(60_000_000_000L, results.get(0).getSecond().longValue());
+        // 34s for the task, of which 20s were tests.
+        Assertions.assertEquals(14_000_000_000L, results.get(0).getThird().longValue());
+    }
+
+    @Test
+    public void phaseTimingsWithoutTestsOrForkStartAreUnknown() {
+        final PhaseTimings timings = new PhaseTimings(":node:test", PhaseTimings.UNKNOWN);
+        timings.taskStarted(61_000L);
+        timings.taskFinished(95_000L);
+
+        Assertions.assertEquals(PhaseTimings.UNKNOWN, timings.getForkSetupNanos());
+        Assertions.assertEquals(PhaseTimings.UNKNOWN, timings.getTaskSetupNanos());
+    }
+
+    @Test
+    public void addPhaseTimingsTakesEarliestTaskPerPod() throws IOException {
+        final Path root = Files.createTempDirectory("phase-timings");
+        try {
+            writePhaseTimings(root.resolve("test-results-xml/pod-0/node-test"), ":node:test", 1_000L, 31_000L);
+            writePhaseTimings(root.resolve("test-results-xml/pod-0/node-integrationTest"), ":node:integrationTest", 1_000L, 91_000L);
+            writePhaseTimings(root.resolve("test-results-xml/pod-1/node-test"), ":node:test", 1_000L, 51_000L);
+
+            final Tests tests = new Tests();
+            TestDurationArtifacts.addPhaseTimings(tests, root);
+
+            // Pods took 30s and 50s to reach their first Test task.
+            Assertions.assertEquals(40_000_000_000L, tests.getForkSetupDuration());
+            Assertions.assertEquals(2_000_000_000L, tests.getTaskSetupDuration(":node:test"));
+            Assertions.assertEquals(2_000_000_000L, tests.getTaskSetupDuration(":node:integrationTest"));
+            Assertions.assertEquals(0L, tests.getTaskSetupDuration(":other:test"));
+            Assertions.assertTrue(tests.isEmpty());
+        } finally {
+            Files.walk(root).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static void writePhaseTimings(Path dir, String taskPath, long forkStartMillis, long taskStartMillis) throws IOException {
+        Files.createDirectories(dir);
+        final PhaseTimings timings = new PhaseTimings(taskPath, forkStartMillis);
+        timings.taskStarted(taskStartMillis);
+        timings.testFinished(taskStartMillis + 1_000L, taskStartMillis + 11_000L);
+        timings.taskFinished(taskStartMillis + 12_000L);
+        try (Writer writer = new FileWriter(dir.resolve(PhaseTimings.FILE_NAME).toFile())) {
+            timings.write(writer);
+        }
+    }
+
     @Test
     public void canCreateZipFile() throws IOException {
         Tests outputTests = new Tests();
@@ -233,6 +369,101 @@ public class TestDurationArtifactsTest {
         Assertions.assertEquals((55 + 33 + 22) / 3, tests.getMeanDurationForTests());
     }
 
+    @Test
+    public void setupsCsvInZipIsReadAsSetups() throws IOException, ArchiveException {
+        Tests outputTests = new Tests();
+        outputTests.addDuration("com.corda.Class.testA", 55L);
+        outputTests.addClassSetupDuration("com.corda.Class", 10L);
+        StringWriter setups = new StringWriter();
+        outputTests.writeSetups(setups);
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (ArchiveOutputStream outputStream =
+                     new ArchiveStreamFactory("UTF-8").createArchiveOutputStream(ArchiveStreamFactory.ZIP, byteStream)) {
+            putIntoArchive(outputStream, "tests-durations.csv", write(outputTests));
+            putIntoArchive(outputStream, "tests-durations-setups.csv", setups.toString());
+        }
+
+        Tests tests = new Tests();
+        TestDurationArtifacts.addTestsFromZippedCsv(tests, new ByteArrayInputStream(byteStream.toByteArray()));
+
+        Assertions.assertEquals(1, tests.size());
+        Assertions.assertEquals(55L, tests.getDuration("com.corda.Class.testA"));
+        Assertions.assertEquals(10L, tests.getClassSetupDuration("com.corda.Class"));
+        // What an older version, which reads every csv as tests, makes of the setups csv.
+        Assertions.assertTrue(Tests.read(new StringReader(setups.toString())).isEmpty());
+    }
+
+    @Test
+    public void snapshotInZipIsPreferredToCsv() throws IOException, ArchiveException {
+        Tests csvTests = new Tests();
+        csvTests.addDuration("com.corda.testA", 55L);
+
+        Tests snapshotTests = new Tests();
+        snapshotTests.addDuration("com.corda.testA", 66L);
+        snapshotTests.addDuration("com.corda.testB", 22L);
+        snapshotTests.addClassSetupDuration("com.corda", 10L);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        TestDurationSnapshot.write(snapshotTests, snapshot);
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (ArchiveOutputStream outputStream =
+                     new ArchiveStreamFactory("UTF-8").createArchiveOutputStream(ArchiveStreamFactory.ZIP, byteStream)) {
+            putIntoArchive(outputStream, "tests-durations.csv", write(csvTests));
+            ZipArchiveEntry entry = new ZipArchiveEntry("tests-durations" + TestDurationSnapshot.EXTENSION);
+            outputStream.putArchiveEntry(entry);
+            outputStream.write(snapshot.toByteArray());
+            outputStream.closeArchiveEntry();
+        }
+
+        Tests tests = new Tests();
+        TestDurationArtifacts.addTestsFromZippedCsv(tests, new ByteArrayInputStream(byteStream.toByteArray()));
+
+        Assertions.assertEquals(2, tests.size());
+        Assertions.assertEquals(66L, tests.getDuration("com.corda.testA"));
+        Assertions.assertEquals(10L, tests.getClassSetupDuration("com.corda"));
+        Assertions.assertEquals(44L, tests.getMeanDurationForTests());
+    }
+
+    @Test
+    public void corruptSnapshotFallsBackToCsv() throws IOException, ArchiveException {
+        Tests csvTests = new Tests();
+        csvTests.addDuration("com.corda.testA", 55L);
+        csvTests.addDuration("com.corda.testB", 33L);
+
+        Tests snapshotTests = new Tests();
+        IntStream.range(0, 100).forEach(i -> snapshotTests.addDuration("com.corda.Class" + i + ".test", 66L));
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        TestDurationSnapshot.write(snapshotTests, snapshot);
+        final byte[] intact = snapshot.toByteArray();
+
+        // Cut short, and scribbled over after the header.
+        final byte[] truncated = Arrays.copyOf(intact, intact.length / 2);
+        final byte[] scribbled = intact.clone();
+        for (int i = scribbled.length / 4; i < scribbled.length; i += 3) {
+            scribbled[i] = (byte) 0xff;
+        }
+        for (byte[] corrupt : Arrays.asList(truncated, scribbled)) {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            try (ArchiveOutputStream outputStream =
+                         new ArchiveStreamFactory("UTF-8").createArchiveOutputStream(ArchiveStreamFactory.ZIP, byteStream)) {
+                putIntoArchive(outputStream, "tests-durations.csv", write(csvTests));
+                ZipArchiveEntry entry = new ZipArchiveEntry("tests-durations" + TestDurationSnapshot.EXTENSION);
+                outputStream.putArchiveEntry(entry);
+                outputStream.write(corrupt);
+                outputStream.closeArchiveEntry();
+            }
+
+            Tests tests = new Tests();
+            TestDurationArtifacts.addTestsFromZippedCsv(tests, new ByteArrayInputStream(byteStream.toByteArray()));
+
+            // Nothing from the snapshot, not even the rows before the corruption.
+            Assertions.assertEquals(2, tests.size());
+            Assertions.assertEquals(55L, tests.getDuration("com.corda.testA"));
+            Assertions.assertEquals(44L, tests.getMeanDurationForTests());
+        }
+    }
+
 //    // Uncomment to test a file.
 //    // Run a build to generate some test files, create a zip:
 //    // zip ~/tests.zip  $(find . -name "*.xml" -type f | grep test-results)
@@ -0,0 +1,149 @@
+package com.r3.testing;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class TestDurationSnapshotTest {
+
+    private static List<String> testNames() {
+        // Enough to span several restarts, sharing long prefixes, and not all ASCII.
+        return IntStream.range(0, 1000)
+                .mapToObj(i -> "net.corda.module" + (i % 7) + ".Class" + (i / 13) + ".`test \u00f1 " + i + "`")
+                .collect(Collectors.toList());
+    }
+
+    private static Tests tests(List<String> testNames) {
+        Tests tests = new Tests(DurationModel.EWMA, 5.0, 3.0);
+        for (int i = 0; i < testNames.size(); i++) {
+            tests.addDuration(testNames.get(i), 1000L + i);
+            tests.addDuration(testNames.get(i), 2000L + 3 * i);
+            tests.addOutcome(testNames.get(i), i % 10 == 0 ? TestOutcome.FAILED : TestOutcome.PASSED);
+        }
+        tests.addClassSetupDuration("net.corda.module0.Class0", 5000L);
+        tests.addTaskSetupDuration(":core:test", 7000L);
+        tests.addForkSetupDuration(60_000L);
+        return tests;
+    }
+
+    private static ByteBuffer snapshotOf(Tests tests) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        TestDurationSnapshot.write(tests, outputStream);
+        return ByteBuffer.wrap(outputStream.toByteArray());
+    }
+
+    @Test
+    public void testsSurviveWriteAndRead() throws IOException {
+        List<String> testNames = testNames();
+        Tests original = tests(testNames);
+
+        Tests loaded = new Tests(DurationModel.EWMA, 5.0, 3.0);
+        loaded.addTests(TestDurationSnapshot.wrap(snapshotOf(original)));
+
+        Assertions.assertEquals(original.size(), loaded.size());
+        Assertions.assertEquals(original.getMeanDurationForTests(), loaded.getMeanDurationForTests());
+        for (String testName : testNames) {
+            Assertions.assertEquals(original.getDuration(testName), loaded.getDuration(testName));
+            Assertions.assertEquals(original.getStandardDeviation(testName), loaded.getStandardDeviation(testName));
+            Assertions.assertEquals(original.getRunCount(testName), loaded.getRunCount(testName));
+            Assertions.assertEquals(original.getFailureRate(testName), loaded.getFailureRate(testName));
+        }
+        Assertions.assertEquals(5000L, loaded.getClassSetupDuration("net.corda.module0.Class0"));
+        Assertions.assertEquals(7000L, loaded.getTaskSetupDuration(":core:test"));
+        Assertions.assertEquals(60_000L, loaded.getForkSetupDuration());
+    }
+
+    @Test
+    public void testsCanBeLookedUpWithoutLoadingThem() throws IOException {
+        List<String> testNames = testNames();
+        Tests original = tests(testNames);
+        TestDurationSnapshot snapshot = TestDurationSnapshot.wrap(snapshotOf(original));
+
+        // The tests and the three setup costs.
+        Assertions.assertEquals(testNames.size() + 3, snapshot.size());
+        List<String> names = new ArrayList<>();
+        snapshot.forEach((name, stats) -> names.add(name));
+        Assertions.assertEquals(names.stream().sorted().collect(Collectors.toList()), names);
+
+        for (int row = 0; row < names.size(); row++) {
+            Assertions.assertEquals(row, snapshot.indexOf(names.get(row)));
+            Assertions.assertEquals(names.get(row), snapshot.getName(row));
+        }
+        for (String testName : testNames) {
+            Assertions.assertEquals(original.getRunCount(testName), snapshot.getStats(snapshot.indexOf(testName)).runs);
+        }
+        Assertions.assertEquals(-1, snapshot.indexOf("a.Before.everything"));
+        Assertions.assertEquals(-1, snapshot.indexOf("z.After.everything"));
+        Assertions.assertEquals(-1, snapshot.indexOf("net.corda.module0.Class0"));
+    }
+
+    @Test
+    public void snapshotCanBeMemoryMapped() throws IOException {
+        final Path directory = Files.createTempDirectory("snapshot");
+        try {
+            Path file = directory.resolve("tests-durations" + TestDurationSnapshot.EXTENSION);
+            List<String> testNames = testNames();
+            try (OutputStream outputStream = Files.newOutputStream(file)) {
+                TestDurationSnapshot.write(tests(testNames), outputStream);
+            }
+
+            TestDurationSnapshot snapshot = TestDurationSnapshot.map(file);
+            Assertions.assertTrue(snapshot.indexOf(testNames.get(500)) >= 0);
+            Tests loaded = new Tests();
+            loaded.addTests(snapshot);
+            Assertions.assertEquals(testNames.size(), loaded.size());
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void emptyTestsMakeAnEmptySnapshot() throws IOException {
+        TestDurationSnapshot snapshot = TestDurationSnapshot.wrap(snapshotOf(new Tests()));
+        Assertions.assertEquals(0, snapshot.size());
+        Assertions.assertEquals(-1, snapshot.indexOf("anything"));
+    }
+
+    @Test
+    public void unknownVersionsAndOtherFilesAreRejected() throws IOException {
+        ByteBuffer buffer = snapshotOf(tests(testNames()));
+        buffer.putInt(4, TestDurationSnapshot.VERSION + 1);
+        Assertions.assertThrows(IOException.class, () -> TestDurationSnapshot.wrap(buffer));
+
+        Assertions.assertThrows(IOException.class, () -> TestDurationSnapshot.wrap(ByteBuffer.wrap("Test Name,Mean".getBytes())));
+    }
+
+    @Test
+    public void corruptNamesAreRejectedAsTheSnapshotIsOpened() throws IOException {
+        ByteBuffer intact = snapshotOf(tests(testNames()));
+        final int namesOffset = intact.getInt(16);
+        final int namesLength = intact.getInt(20);
+
+        // A name that swallows those after it.
+        ByteBuffer overrun = snapshotOf(tests(testNames()));
+        overrun.put(namesOffset + 1, (byte) 0x7f);
+        Assertions.assertThrows(IOException.class, () -> TestDurationSnapshot.wrap(overrun));
+
+        // A restart pointing part way into a name.
+        ByteBuffer misplaced = snapshotOf(tests(testNames()));
+        misplaced.putInt(namesOffset - Integer.BYTES, misplaced.getInt(namesOffset - Integer.BYTES) + 1);
+        Assertions.assertThrows(IOException.class, () -> TestDurationSnapshot.wrap(misplaced));
+
+        // Names cut short.
+        ByteBuffer truncated = snapshotOf(tests(testNames()));
+        truncated.putInt(20, namesLength - 1);
+        Assertions.assertThrows(IOException.class, () -> TestDurationSnapshot.wrap(truncated));
+    }
+}
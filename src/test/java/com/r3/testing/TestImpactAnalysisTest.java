@@ -0,0 +1,143 @@
+package com.r3.testing;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+public class TestImpactAnalysisTest {
+
+    private static TestImpactAnalysis analysis() {
+        Map<String, List<String>> dependencies = new HashMap<>();
+        dependencies.put("net.corda.core.Crypto", Collections.emptyList());
+        dependencies.put("net.corda.core.Party", Collections.singletonList("net.corda.core.Crypto"));
+        dependencies.put("net.corda.node.Node", Arrays.asList("net.corda.core.Party", "net.corda.node.Config"));
+        dependencies.put("net.corda.node.Config", Collections.emptyList());
+        dependencies.put("net.corda.rpc.Client", Collections.emptyList());
+        dependencies.put("net.corda.core.CryptoTest", Collections.singletonList("net.corda.core.Crypto"));
+        dependencies.put("net.corda.nodetest.NodeTest", Collections.singletonList("net.corda.node.Node"));
+        dependencies.put("net.corda.nodetest.ConfigTest", Collections.singletonList("net.corda.node.Config"));
+        dependencies.put("net.corda.rpctest.ClientTest", Collections.singletonList("net.corda.rpc.Client"));
+        return new TestImpactAnalysis(dependencies);
+    }
+
+    @Test
+    public void sourceFilesMapToTheirPackages() {
+        Set<String> packages = TestImpactAnalysis.getChangedPackages(Arrays.asList(
+                "core/src/main/kotlin/net/corda/core/Crypto.kt",
+                "node/src/integration-test/java/net/corda/node/NodeTest.java",
+                "src/main/groovy/Default.groovy",
+                "README.md"));
+
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("net.corda.core", "net.corda.node", "")), packages);
+    }
+
+    @Test
+    public void anythingButSourceCodeMeansEveryTest() {
+        Assertions.assertNull(TestImpactAnalysis.getChangedPackages(Arrays.asList(
+                "core/src/main/kotlin/net/corda/core/Crypto.kt", "core/src/main/resources/reference.conf")));
+        Assertions.assertNull(TestImpactAnalysis.getChangedPackages(Collections.singletonList("node/build.gradle")));
+        Assertions.assertEquals(Collections.emptySet(), TestImpactAnalysis.getChangedPackages(Collections.emptyList()));
+    }
+
+    @Test
+    public void testsThatDependOnChangesIndirectlyAreSelected() {
+        Set<String> impacted = analysis().getImpactedClasses(Collections.singleton("net.corda.core"));
+
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("net.corda.core.Crypto", "net.corda.core.Party", "net.corda.core.CryptoTest",
+                "net.corda.node.Node", "net.corda.nodetest.NodeTest")), impacted);
+
+        List<String> methods = Arrays.asList("net.corda.core.CryptoTest.signs", "net.corda.nodetest.ConfigTest.parses",
+                "net.corda.nodetest.NodeTest.starts", "net.corda.nodetest.NodeTest.stops", "net.corda.rpctest.ClientTest.connects");
+        Assertions.assertEquals(Arrays.asList("net.corda.core.CryptoTest.signs", "net.corda.nodetest.NodeTest.starts", "net.corda.nodetest.NodeTest.stops"),
+                TestImpactAnalysis.select(methods, DistributeTestsBy.METHOD, impacted));
+
+        List<String> classes = Arrays.asList("net.corda.core.CryptoTest", "net.corda.nodetest.ConfigTest", "net.corda.nodetest.NodeTest");
+        Assertions.assertEquals(Arrays.asList("net.corda.core.CryptoTest", "net.corda.nodetest.NodeTest"),
+                TestImpactAnalysis.select(classes, DistributeTestsBy.CLASS, impacted));
+    }
+
+    @Test
+    public void changingATestSelectsOnlyThatTest() {
+        Set<String> impacted = analysis().getImpactedClasses(Collections.singleton("net.corda.rpctest"));
+
+        Assertions.assertEquals(Collections.singleton("net.corda.rpctest.ClientTest"), impacted);
+    }
+
+    @Test
+    public void changedFilesComeFromGitSinceTheTargetBranch() throws Exception {
+        final Path directory = Files.createTempDirectory("impact");
+        try {
+            git(directory, "init", "-q");
+            write(directory, "core/src/main/java/net/corda/core/Crypto.java", "class Crypto {}");
+            git(directory, "add", ".");
+            git(directory, "-c", "user.name=test", "-c", "user.email=test@r3.com", "commit", "-q", "-m", "first");
+            git(directory, "branch", "target");
+            git(directory, "checkout", "-q", "-b", "feature");
+            write(directory, "node/src/main/java/net/corda/node/Node.java", "class Node {}");
+            git(directory, "add", ".");
+            git(directory, "-c", "user.name=test", "-c", "user.email=test@r3.com", "commit", "-q", "-m", "second");
+            // Not yet committed.
+            write(directory, "core/src/main/java/net/corda/core/Crypto.java", "class Crypto { int x; }");
+
+            List<String> changed = TestImpactAnalysis.getChangedFiles(directory.toFile(), "target");
+
+            Assertions.assertEquals(Arrays.asList("core/src/main/java/net/corda/core/Crypto.java", "node/src/main/java/net/corda/node/Node.java"),
+                    changed);
+            Assertions.assertNull(TestImpactAnalysis.getChangedFiles(directory.toFile(), "no-such-branch"));
+            Assertions.assertNull(TestImpactAnalysis.getChangedFiles(directory.toFile(), ""));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void changedConstantsAndInlineFunctionsMeanEveryTest() throws Exception {
+        final Path directory = Files.createTempDirectory("impact");
+        try {
+            git(directory, "init", "-q");
+            write(directory, "core/src/main/java/net/corda/core/Crypto.java", "class Crypto {\n    public static final int SIZE = 1;\n    int x;\n}\n");
+            write(directory, "core/src/main/kotlin/net/corda/core/Utils.kt", "inline fun twice(f: () -> Unit) {\n    f()\n    f()\n}\n");
+            write(directory, "core/src/main/kotlin/net/corda/core/Party.kt", "class Party {\n    val name = \"a\"\n}\n");
+            git(directory, "add", ".");
+            git(directory, "-c", "user.name=test", "-c", "user.email=test@r3.com", "commit", "-q", "-m", "first");
+            git(directory, "branch", "target");
+            final File subdirectory = directory.resolve("core").toFile();
+
+            write(directory, "core/src/main/java/net/corda/core/Crypto.java", "class Crypto {\n    public static final int SIZE = 1;\n    int y;\n}\n");
+            write(directory, "core/src/main/kotlin/net/corda/core/Party.kt", "class Party {\n    val name = \"b\"\n}\n");
+            Assertions.assertFalse(TestImpactAnalysis.changesInlinedCode(subdirectory, "target"));
+
+            write(directory, "core/src/main/java/net/corda/core/Crypto.java", "class Crypto {\n    public static final int SIZE = 2;\n    int y;\n}\n");
+            Assertions.assertTrue(TestImpactAnalysis.changesInlinedCode(subdirectory, "target"));
+            git(directory, "checkout", "-q", "--", ".");
+
+            // The changed line isn't the one that says the function is inline.
+            write(directory, "core/src/main/kotlin/net/corda/core/Utils.kt", "inline fun twice(f: () -> Unit) {\n    f()\n    f()\n    f()\n}\n");
+            Assertions.assertTrue(TestImpactAnalysis.changesInlinedCode(subdirectory, "target"));
+
+            Assertions.assertTrue(TestImpactAnalysis.changesInlinedCode(subdirectory, "no-such-branch"));
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static void write(Path directory, String path, String content) throws IOException {
+        final Path file = directory.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void git(Path directory, String... arguments) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(arguments));
+        Process process = new ProcessBuilder(command).directory(directory.toFile()).inheritIO().start();
+        Assertions.assertEquals(0, process.waitFor());
+    }
+}
@@ -1,10 +1,16 @@
 package com.r3.testing;
 
+import groovy.lang.Tuple2;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class TestsTest {
     @Test
@@ -142,4 +148,394 @@ public class TestsTest {
         tests.addDuration("hello", 22);
         Assertions.assertEquals(7, tests.getRunCount("hello"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void startsWithFindsAllTestsWithPrefix() {
+        final Tests tests = new Tests();
+        tests.addDuration("com.r3.BTest.one", 10);
+        tests.addDuration("com.r3.ATest.one", 20);
+        tests.addDuration("com.r3.ATest.two", 30);
+        tests.addDuration("com.r3.ATestOther.one", 40);
+        tests.addDuration("com.r3.C", 50);
+
+        Assertions.assertEquals(Arrays.asList("com.r3.ATest.one", "com.r3.ATest.two"), namesOf(tests.startsWith("com.r3.ATest.")));
+        Assertions.assertEquals(Arrays.asList("com.r3.ATest.one", "com.r3.ATest.two", "com.r3.ATestOther.one"), namesOf(tests.startsWith("com.r3.ATest")));
+        Assertions.assertEquals(Collections.singletonList("com.r3.C"), namesOf(tests.startsWith("com.r3.C")));
+        Assertions.assertEquals(5, tests.startsWith("com.r3.").size());
+
+        // Unknown prefixes get the mean duration.
+        final List<Tuple2<String, Long>> unknown = tests.startsWith("com.r3.DTest");
+        Assertions.assertEquals(1, unknown.size());
+        Assertions.assertEquals("com.r3.DTest", unknown.get(0).getFirst());
+        Assertions.assertEquals(tests.getMeanDurationForTests(), unknown.get(0).getSecond().longValue());
+    }
+
+    @Test
+    public void startsWithSeesTestsAddedAfterALookup() {
+        final Tests tests = new Tests();
+        tests.addDuration("com.r3.ATest.one", 20);
+        Assertions.assertEquals(1, tests.startsWith("com.r3.ATest").size());
+
+        tests.addDuration("com.r3.ATest.two", 30);
+        Assertions.assertEquals(2, tests.startsWith("com.r3.ATest").size());
+
+        final String s = Tests.TEST_NAME + "," + Tests.MEAN_DURATION_NANOS + "," + Tests.NUMBER_OF_RUNS + '\n'
+                + "com.r3.ATest.three,100,4\n";
+        tests.addTests(Tests.read(new StringReader(s)));
+        Assertions.assertEquals(3, tests.startsWith("com.r3.ATest").size());
+        Assertions.assertEquals(100L, tests.startsWith("com.r3.ATest.three").get(0).getSecond().longValue());
+
+        tests.clear();
+        Assertions.assertEquals("com.r3.ATest", tests.startsWith("com.r3.ATest").get(0).getFirst());
+    }
+
+    @Test
+    public void standardDeviationIsTrackedOnline() {
+        final Tests tests = new Tests();
+        Assertions.assertEquals(0L, tests.getStandardDeviation("hello"));
+        tests.addDuration("hello", 2_000);
+        Assertions.assertEquals(0L, tests.getStandardDeviation("hello"));
+        for (long nanos : new long[]{4_000, 4_000, 4_000, 5_000, 5_000, 7_000, 9_000}) {
+            tests.addDuration("hello", nanos);
+        }
+
+        // mean 5000, sample variance 32_000_000 / 7, give or take the rounding in the running mean.
+        Assertions.assertEquals(5_000L, tests.getDuration("hello"), 10.0);
+        Assertions.assertEquals(Math.sqrt(32_000_000.0 / 7), tests.getStandardDeviation("hello"), 10.0);
+        final long expected = tests.getDuration("hello") + 2 * tests.getStandardDeviation("hello");
+        Assertions.assertEquals(expected, tests.getDuration("hello", 2.0), 1.0);
+        Assertions.assertEquals(expected, tests.equals("hello", 2.0).get(0).getSecond(), 1.0);
+
+        // Unknown tests are sized at the mean, whatever we ask for.
+        Assertions.assertEquals(tests.getMeanDurationForTests(), tests.getDuration("goodbye", 2.0));
+    }
+
+    @Test
+    public void standardDeviationSurvivesWriteAndRead() {
+        final Tests tests = new Tests();
+        for (long nanos : new long[]{1_000, 3_000, 8_000}) {
+            tests.addDuration("hello", nanos);
+        }
+        final StringWriter writer = new StringWriter();
+        tests.write(writer);
+
+        final Tests otherTests = new Tests();
+        otherTests.addStats(Tests.readStats(new StringReader(writer.toString())));
+        Assertions.assertEquals(tests.getDuration("hello"), otherTests.getDuration("hello"));
+        Assertions.assertEquals(tests.getRunCount("hello"), otherTests.getRunCount("hello"));
+        Assertions.assertEquals(tests.getStandardDeviation("hello"), otherTests.getStandardDeviation("hello"));
+
+        // and carries on accumulating.
+        tests.addDuration("hello", 4_000);
+        otherTests.addDuration("hello", 4_000);
+        Assertions.assertEquals(tests.getStandardDeviation("hello"), otherTests.getStandardDeviation("hello"), 1.0);
+    }
+
+    @Test
+    public void readsFilesWithoutStandardDeviation() {
+        final Tests tests = new Tests();
+        final String s = Tests.TEST_NAME + "," + Tests.MEAN_DURATION_NANOS + "," + Tests.NUMBER_OF_RUNS + '\n'
+                + "hello,100,4\n";
+        tests.addTests(Tests.read(new StringReader(s)));
+
+        Assertions.assertEquals(100L, tests.getDuration("hello"));
+        Assertions.assertEquals(0L, tests.getStandardDeviation("hello"));
+        Assertions.assertEquals(100L, tests.getDuration("hello", 1.28));
+    }
+
+    private static List<String> namesOf(List<Tuple2<String, Long>> tests) {
+        return tests.stream().map(Tuple2::getFirst).collect(Collectors.toList());
+    }
+
+    @Test
+    public void equalsFindsExactMatchOnly() {
+        final Tests tests = new Tests();
+        tests.addDuration("com.r3.ATest.one", 20);
+        tests.addDuration("com.r3.ATest.oneMore", 40);
+
+        final List<Tuple2<String, Long>> found = tests.equals("com.r3.ATest.one");
+        Assertions.assertEquals(1, found.size());
+        Assertions.assertEquals("com.r3.ATest.one", found.get(0).getFirst());
+        Assertions.assertEquals(20L, found.get(0).getSecond().longValue());
+
+        final List<Tuple2<String, Long>> unknown = tests.equals("com.r3.ATest.two");
+        Assertions.assertEquals(1, unknown.size());
+        Assertions.assertEquals("com.r3.ATest.two", unknown.get(0).getFirst());
+        Assertions.assertEquals(tests.getMeanDurationForTests(), unknown.get(0).getSecond().longValue());
+    }
+
+    @Test
+    public void methodFindsEveryRunOfAJUnitPlatformMethod() {
+        final Tests tests = new Tests();
+        tests.addDuration("com.r3.ATest.one", 20);
+        tests.addDuration("com.r3.ATest.two()", 30);
+        tests.addDuration("com.r3.ATest.param(String)[1]", 40);
+        tests.addDuration("com.r3.ATest.param(String)[2]", 50);
+        tests.addDuration("com.r3.ATest.paramOther()", 60);
+
+        Assertions.assertEquals(Collections.singletonList(new Tuple2<>("com.r3.ATest.one", 20L)), tests.method("com.r3.ATest.one", 0.0));
+        Assertions.assertEquals(Collections.singletonList(new Tuple2<>("com.r3.ATest.two()", 30L)), tests.method("com.r3.ATest.two", 0.0));
+        Assertions.assertEquals(Arrays.asList(new Tuple2<>("com.r3.ATest.param(String)[1]", 40L), new Tuple2<>("com.r3.ATest.param(String)[2]", 50L)),
+                tests.method("com.r3.ATest.param", 0.0));
+
+        final List<Tuple2<String, Long>> unknown = tests.method("com.r3.ATest.three", 0.0);
+        Assertions.assertEquals(1, unknown.size());
+        Assertions.assertEquals("com.r3.ATest.three", unknown.get(0).getFirst());
+        Assertions.assertEquals(tests.getMeanDurationForTests(), unknown.get(0).getSecond().longValue());
+    }
+
+    @Test
+    public void durationModelCanBeChangedAfterLoading() {
+        final Tests mean = new Tests(DurationModel.MEAN, 2.0, 0.0);
+        for (int i = 0; i < 20; i++) {
+            mean.addDuration("test", 1000);
+        }
+        for (int i = 0; i < 5; i++) {
+            mean.addDuration("test", 2000);
+        }
+        mean.addClassSetupDuration("com.example.Test", 500);
+
+        final Tests ewma = mean.withDurationModel(DurationModel.EWMA, 2.0, 0.0);
+        Assertions.assertEquals(1200, mean.getDuration("test"), 5);
+        Assertions.assertTrue(ewma.getDuration("test") > 1800, "EWMA should be close to 2000: " + ewma.getDuration("test"));
+        Assertions.assertEquals(mean.getClassSetupDuration("com.example.Test"), ewma.getClassSetupDuration("com.example.Test"));
+        Assertions.assertEquals(mean.getMeanDurationForTests(), ewma.getMeanDurationForTests());
+    }
+
+    @Test
+    public void ewmaFollowsALevelShiftFasterThanTheMean() {
+        final Tests mean = new Tests();
+        final Tests ewma = new Tests(DurationModel.EWMA, 2.0, 0.0);
+        for (int i = 0; i < 20; i++) {
+            mean.addDuration("test", 1000);
+            ewma.addDuration("test", 1000);
+        }
+        for (int i = 0; i < 5; i++) {
+            mean.addDuration("test", 2000);
+            ewma.addDuration("test", 2000);
+        }
+
+        Assertions.assertEquals(1200, mean.getDuration("test"), 5);
+        Assertions.assertTrue(ewma.getDuration("test") > 1800, "EWMA should be close to 2000: " + ewma.getDuration("test"));
+    }
+
+    @Test
+    public void singleOutlierIsRejectedButARepeatIsAccepted() {
+        final Tests tests = new Tests(DurationModel.EWMA, 1.0, 3.0);
+        for (int i = 0; i < 10; i++) {
+            tests.addDuration("test", 1000);
+        }
+
+        tests.addDuration("test", 60_000);
+        Assertions.assertEquals(1000, tests.getDuration("test"));
+        Assertions.assertEquals(11, tests.getRunCount("test"));
+
+        tests.addDuration("test", 60_000);
+        Assertions.assertEquals(30_500, tests.getDuration("test"));
+    }
+
+    @Test
+    public void recentDurationSurvivesWriteAndRead() {
+        final Tests tests = new Tests(DurationModel.EWMA, 1.0, 3.0);
+        for (int i = 0; i < 10; i++) {
+            tests.addDuration("test", 1000);
+        }
+        tests.addDuration("test", 60_000);
+
+        final StringWriter writer = new StringWriter();
+        tests.write(writer);
+        final Tests readBack = new Tests(DurationModel.EWMA, 1.0, 3.0);
+        readBack.addStats(Tests.readStats(new StringReader(writer.toString())));
+        Assertions.assertEquals(1000, readBack.getDuration("test"));
+
+        // The rejected outlier is remembered, so a repeat is accepted.
+        readBack.addDuration("test", 60_000);
+        Assertions.assertEquals(30_500, readBack.getDuration("test"));
+    }
+
+    @Test
+    public void meanDoesNotOverflowForLongRunningTests() {
+        final Tests tests = new Tests();
+        // mean * runs is well past Long.MAX_VALUE.
+        final long huge = Long.MAX_VALUE / 4;
+        tests.addTests(Tests.read(new StringReader(Tests.TEST_NAME + "," + Tests.MEAN_DURATION_NANOS + "," + Tests.NUMBER_OF_RUNS + '\n'
+                + "test," + huge + ",1000000\n")));
+        tests.addDuration("test", huge);
+        Assertions.assertEquals(huge, tests.getDuration("test"));
+        Assertions.assertEquals(1_000_001L, tests.getRunCount("test"));
+
+        // As is the sum of two runs.
+        tests.addDuration("other", Long.MAX_VALUE - 1);
+        tests.addDuration("other", Long.MAX_VALUE - 3);
+        Assertions.assertEquals(Long.MAX_VALUE - 2, tests.getDuration("other"));
+    }
+
+    @Test
+    public void classSetupIsStoredSeparatelyFromTests() {
+        final Tests tests = new Tests();
+        tests.addDuration("com.r3.A.m0", 1000);
+        tests.addClassSetupDuration("com.r3.A", 5000);
+        tests.addClassSetupDuration("com.r3.A", 7000);
+
+        Assertions.assertEquals(1, tests.size());
+        Assertions.assertEquals(1, tests.startsWith("com.r3.A").size());
+        Assertions.assertEquals(6000, tests.getClassSetupDuration("com.r3.A"));
+        Assertions.assertEquals(0, tests.getClassSetupDuration("com.r3.B"));
+
+        // Older versions read every row of the tests csv as a test, so the setups go in a csv of their own.
+        final StringWriter writer = new StringWriter();
+        tests.write(writer);
+        Assertions.assertFalse(writer.toString().contains(Tests.CLASS_SETUP_SUFFIX));
+        final StringWriter setupsWriter = new StringWriter();
+        Assertions.assertTrue(tests.writeSetups(setupsWriter));
+        Assertions.assertTrue(Tests.read(new StringReader(setupsWriter.toString())).isEmpty());
+
+        final Tests readBack = new Tests();
+        readBack.addTests(Tests.read(new StringReader(writer.toString())));
+        Assertions.assertTrue(readBack.addSetups(new StringReader(setupsWriter.toString())));
+        Assertions.assertEquals(1, readBack.size());
+        Assertions.assertEquals(1000, readBack.getDuration("com.r3.A.m0"));
+        Assertions.assertEquals(6000, readBack.getClassSetupDuration("com.r3.A"));
+
+        // A tests csv with setup rows in it still loads them as setups.
+        final Tests legacy = new Tests();
+        legacy.addTests(new StringReader(writer.toString() + "com.r3.A.<classSetup>,6000,2,1414,6000,0\n"));
+        Assertions.assertEquals(1, legacy.size());
+        Assertions.assertEquals(6000, legacy.getClassSetupDuration("com.r3.A"));
+    }
+
+    @Test
+    public void halfAMillionTestsAreKeptInArraysWithLittleSlack() {
+        final int count = 500_000;
+        final TestStatsTable table = new TestStatsTable();
+        for (int i = 0; i < count; i++) {
+            table.put("com.r3.module" + (i / 10 % 50) + ".SomeClass" + (i / 10) + ".testMethod" + i, new Tests.Stats(1000L + i, 1L, 0.0, 1000L + i, 0));
+        }
+
+        Assertions.assertEquals(count, table.size());
+        Assertions.assertEquals(1000L + count - 1, table.get("com.r3.module49.SomeClass49999.testMethod" + (count - 1)).mean);
+        // A test costs an element of each array rather than a map node and a stats object, which are only made when
+        // asked for.  The arrays grow by half, and the slots are doubled once half full, so neither is more than
+        // half again and twice again as big as it need be.
+        Assertions.assertNotSame(table.get(0), table.get(0));
+        Assertions.assertTrue(table.getCapacity() <= count * 3 / 2, "Capacity " + table.getCapacity() + " for " + count + " tests");
+        Assertions.assertTrue(table.getSlotCount() <= count * 4, table.getSlotCount() + " slots for " + count + " tests");
+        Assertions.assertTrue(table.getSlotCount() >= count * 2);
+    }
+
+    @Test
+    public void readingStraightIntoTestsMatchesReadingAList() {
+        final Tests original = new Tests();
+        IntStream.range(0, 1000).forEach(i -> {
+            original.addDuration("com.r3.Class" + (i % 37) + ".test" + i, 1000L + i);
+            original.addDuration("com.r3.Class" + (i % 37) + ".test" + i, 3000L + 2 * i);
+        });
+        original.addClassSetupDuration("com.r3.Class1", 5000L);
+        original.addForkSetupDuration(60_000L);
+        final StringWriter writer = new StringWriter();
+        Assertions.assertTrue(original.write(writer));
+        final StringWriter setupsWriter = new StringWriter();
+        Assertions.assertTrue(original.writeSetups(setupsWriter));
+
+        final Tests fromList = new Tests();
+        fromList.addStats(Tests.readStats(new StringReader(writer.toString())));
+        fromList.addSetups(new StringReader(setupsWriter.toString()));
+        final Tests streamed = new Tests();
+        // A test we already have is replaced, and the mean follows.
+        streamed.addDuration("com.r3.Class0.test0", 999_999L);
+        Assertions.assertTrue(streamed.addTests(new StringReader(writer.toString())));
+        Assertions.assertTrue(streamed.addSetups(new StringReader(setupsWriter.toString())));
+
+        Assertions.assertEquals(fromList.size(), streamed.size());
+        Assertions.assertEquals(fromList.getMeanDurationForTests(), streamed.getMeanDurationForTests());
+        Assertions.assertEquals(fromList.getClassSetupDuration("com.r3.Class1"), streamed.getClassSetupDuration("com.r3.Class1"));
+        Assertions.assertEquals(60_000L, streamed.getForkSetupDuration());
+        for (int i = 0; i < 1000; i++) {
+            final String testName = "com.r3.Class" + (i % 37) + ".test" + i;
+            Assertions.assertEquals(fromList.getDuration(testName), streamed.getDuration(testName));
+            Assertions.assertEquals(fromList.getStandardDeviation(testName), streamed.getStandardDeviation(testName));
+            Assertions.assertEquals(2, streamed.getRunCount(testName));
+        }
+        Assertions.assertEquals(fromList.startsWith("com.r3.Class5.").size(), streamed.startsWith("com.r3.Class5.").size());
+    }
+
+    @Test
+    public void malformedRecordsAreSkippedWhenReadingStraightIntoTests() {
+        final String csv = Tests.TEST_NAME + "," + Tests.MEAN_DURATION_NANOS + "," + Tests.NUMBER_OF_RUNS + '\n'
+                + "hello,100,4\n"
+                + "broken,notANumber,4\n"
+                + "world,300,1\n";
+        final Tests tests = new Tests();
+        Assertions.assertTrue(tests.addTests(new StringReader(csv)));
+
+        Assertions.assertEquals(2, tests.size());
+        Assertions.assertEquals(200L, tests.getMeanDurationForTests());
+        Assertions.assertEquals(0L, tests.getRunCount("broken"));
+    }
+
+    @Test
+    public void outcomesAreCountedAndSurviveWriteAndRead() {
+        final Tests tests = new Tests();
+        tests.addDuration("com.r3.A.flaky", 100L);
+        tests.addOutcome("com.r3.A.flaky", TestOutcome.PASSED);
+        tests.addDuration("com.r3.A.flaky", 100L);
+        tests.addOutcome("com.r3.A.flaky", TestOutcome.FAILED);
+        tests.addDuration("com.r3.A.flaky", 100L);
+        tests.addOutcome("com.r3.A.flaky", TestOutcome.PASSED);
+        tests.addDuration("com.r3.A.flaky", 100L);
+        tests.addOutcome("com.r3.A.flaky", TestOutcome.FAILED);
+        tests.addDuration("com.r3.A.ignored", 100L);
+        tests.addOutcome("com.r3.A.ignored", TestOutcome.SKIPPED);
+        // We only keep outcomes for tests with durations.
+        tests.addOutcome("com.r3.A.unknown", TestOutcome.FAILED);
+
+        Assertions.assertEquals(2, tests.getOutcomeCount("com.r3.A.flaky", TestOutcome.PASSED));
+        Assertions.assertEquals(2, tests.getOutcomeCount("com.r3.A.flaky", TestOutcome.FAILED));
+        // Passed, failed, passed, failed, each run weighing a little more than the one before.
+        final double weight = 1.0 - Math.pow(2.0, -1.0 / Tests.DEFAULT_HALF_LIFE_IN_RUNS);
+        final double failureRate = (weight * (1.0 - weight)) * (1.0 - weight) + weight;
+        Assertions.assertEquals(failureRate, tests.getFailureRate("com.r3.A.flaky"), 1e-9);
+        // Skips count for neither passing nor failing.
+        Assertions.assertEquals(1, tests.getOutcomeCount("com.r3.A.ignored", TestOutcome.SKIPPED));
+        Assertions.assertEquals(0.0, tests.getFailureRate("com.r3.A.ignored"), 1e-9);
+        Assertions.assertEquals(0, tests.getOutcomeCount("com.r3.A.unknown", TestOutcome.FAILED));
+        Assertions.assertEquals(2, tests.size());
+
+        // More runs keep the counts.
+        tests.addDuration("com.r3.A.flaky", 200L);
+        Assertions.assertEquals(2, tests.getOutcomeCount("com.r3.A.flaky", TestOutcome.FAILED));
+
+        final StringWriter writer = new StringWriter();
+        tests.write(writer);
+        final Tests readBack = new Tests();
+        readBack.addTests(new StringReader(writer.toString()));
+        Assertions.assertEquals(failureRate, readBack.getFailureRate("com.r3.A.flaky"), 1e-9);
+        Assertions.assertEquals(1, readBack.getOutcomeCount("com.r3.A.ignored", TestOutcome.SKIPPED));
+
+        // Files from before we weighted the outcomes have the failures over all the runs.
+        final Tests legacy = new Tests();
+        legacy.addTests(new StringReader("Test Name,Mean Duration Nanos,Number of runs,Passes,Failures,Skips\ncom.r3.A.flaky,100,4,3,1,0\n"));
+        Assertions.assertEquals(0.25, legacy.getFailureRate("com.r3.A.flaky"), 1e-9);
+    }
+
+    @Test
+    public void failureRateHalvesOverTheHalfLife() {
+        final Tests tests = new Tests(DurationModel.MEAN, 10.0, Tests.DEFAULT_OUTLIER_FACTOR);
+        tests.addDuration("com.r3.A.fixed", 100L);
+        tests.addOutcome("com.r3.A.fixed", TestOutcome.FAILED);
+        Assertions.assertEquals(1.0, tests.getFailureRate("com.r3.A.fixed"), 1e-9);
+
+        for (int run = 0; run < 10; run++) {
+            tests.addOutcome("com.r3.A.fixed", TestOutcome.PASSED);
+        }
+        Assertions.assertEquals(0.5, tests.getFailureRate("com.r3.A.fixed"), 1e-9);
+        for (int run = 0; run < 10; run++) {
+            tests.addOutcome("com.r3.A.fixed", TestOutcome.PASSED);
+        }
+        Assertions.assertEquals(0.25, tests.getFailureRate("com.r3.A.fixed"), 1e-9);
+        // Skips leave it alone.
+        tests.addOutcome("com.r3.A.fixed", TestOutcome.SKIPPED);
+        Assertions.assertEquals(0.25, tests.getFailureRate("com.r3.A.fixed"), 1e-9);
+        Assertions.assertEquals(1, tests.getOutcomeCount("com.r3.A.fixed", TestOutcome.FAILED));
+    }
+}